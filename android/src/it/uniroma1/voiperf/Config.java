@@ -1,6 +1,9 @@
 package it.uniroma1.voiperf;
 
+import it.uniroma1.voiperf.measurements.Measurements;
+import it.uniroma1.voiperf.measurements.PacketPacer;
 import it.uniroma1.voiperf.schedulers.FixedRepeatScheduler;
+import android.os.Process;
 
 /**
  * Constants used across all the project.
@@ -58,16 +61,78 @@ public final class Config {
     public static final int MAX_TRACE_PACKET_SIZE = 1500;
     public static final String TRACE_END_MESSAGE = "QUIT";
     public static final String MEASUREMENTS_END_MESSAGE = "END";
+    public static final String MEASUREMENT_SESSION_MESSAGE = "SESSION";
+    public static final String SERVER_FEATURES_MESSAGE = "FEATURES";
+    public static final int SERVER_FEATURES_TIMEOUT_MILLIS = 1000;
+    public static final boolean MEASUREMENT_SESSION_ENABLED = true;
+    public static final boolean CONTROL_FRAMES_ENABLED = true;
+    public static final boolean DELTA_ENCODING_ENABLED = true;
+    public static final int CONTROL_CHUNK_SIZE = 16384;
+    public static final int CONTROL_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int SESSION_STATISTICS_TIMEOUT_MILLIS = 30000;
+    public static final boolean CONCURRENT_FLOWS_ENABLED = false;
+    public static final int MAX_CONCURRENT_FLOWS = 4;
+    public static final boolean LATE_TRACEROUTE_ENABLED = true;
+    public static final boolean MICRO_TIMESTAMPS_ENABLED = true;
+    public static final boolean CLOCK_SYNC_ENABLED = true;
+    public static final boolean SYNTHETIC_TRACES_ENABLED = true;
+    public static final long SYNTHETIC_TRACE_DURATION_MILLIS = 30000;
+    
+    /* Measurement executor (phase timeouts abort the measurement) */
+    public static final int CONNECT_PHASE_TIMEOUT_MILLIS = 90000;
+    public static final int TRACEROUTE_PHASE_TIMEOUT_MILLIS = 120000;
+    public static final int TRACE_PHASE_TIMEOUT_MILLIS = 180000;
+    public static final int UPLOAD_PHASE_TIMEOUT_MILLIS = 90000;
+    public static final int TRACE_THREAD_PRIORITY = Process.THREAD_PRIORITY_URGENT_AUDIO;
     public static final String HOLE_PUNCHING_MESSAGE = "I HATE NAT";
     public static final int HOLE_PUNCHING_RETRIES = 3;
     public static final int HOLE_PUNCHING_WAIT_TIME_MILLIS = 100;
+    public static final int TRACE_ENGINE_DEFAULT = Measurements.ENGINE_SOCKET;
+    
+    /* Clock synchronization (probes exchanged before and after each trace) */
+    public static final int CLOCK_SYNC_PROBES = 8;
+    public static final int CLOCK_SYNC_PROBE_TIMEOUT_MILLIS = 500;
+    public static final int CLOCK_SYNC_INTERVAL_MILLIS = 20;
+    public static final double CLOCK_SYNC_ENVELOPE_FRACTION = 0.25;
+    
+    /* End of trace detection */
+    public static final double TRACE_DRAIN_RTT_FACTOR = 3.0;
+    public static final long TRACE_DRAIN_MIN_MILLIS = 200;
+    public static final int TRACE_DRAIN_POLL_MILLIS = 100;
+    
+    /* Call quality (E-model defaults for G.711 with packet loss concealment) */
+    public static final double EMODEL_R0 = 93.2;
+    public static final double EMODEL_IE = 0.0;
+    public static final double EMODEL_BPL = 25.1;
+    public static final double EMODEL_CODEC_DELAY_MILLIS = 25.0;
+    
+    /* Trace packets pacing */
+    public static final int PACKET_PACER_MODE = PacketPacer.MODE_HYBRID;
+    public static final long PACKET_PACER_SPIN_THRESHOLD_NANOS = 2000000;
+    public static final long LATE_PACKET_THRESHOLD_NANOS = 5000000;
+    
+    /* Trace cache */
+    public static final long TRACE_CACHE_MAX_BYTES = 4194304;
+    
+    /* Trace streaming (long random traces are read from their file as they are sent) */
+    public static final long TRACE_STREAM_MIN_BYTES = 8388608;
+    public static final int TRACE_READ_AHEAD_PACKETS = 64;
     
     /* Ping to the first hop */
+    public static final long FIRST_HOP_CACHE_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final int FIRST_HOP_WAIT_MILLIS = 30000;
+    public static final boolean NATIVE_PROBES_ENABLED = true;
+    public static final int PING_REPLY_TIMEOUT_MILLIS = 2000;
     public static final int DISCOVERY_PING_COUNT = 5;
     public static final int FIRST_HOP_PING_PER_SECOND = 2;
     public static final int FIRST_HOP_PING_PACKET_SIZE = 8;
     public static final int FIRST_HOPE_PING_MIN_DURATION_SECONDS = 2;
     
+    /* External commands (ping, traceroute) */
+    public static final int COMMAND_MAX_OUTPUT_LINES = 1000;
+    public static final int COMMAND_TIMEOUT_MARGIN_MILLIS = 5000;
+    public static final int TRACEROUTE_TIMEOUT_MILLIS = 110000;
+    
     /* CheckVersion TODO: these must be in strings.xml!!!! */
     public static final String VERSION_CONTENT_URL = "http://151.100.179.250/voiperf_update/";
     public static final String UPDATE_NOW_LABEL = "Update now";
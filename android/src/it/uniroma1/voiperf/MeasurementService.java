@@ -1,9 +1,12 @@
 package it.uniroma1.voiperf;
 
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.measurements.MeasurementExecutor;
+import it.uniroma1.voiperf.measurements.VoIPerfMeasurement;
 import it.uniroma1.voiperf.schedulers.Scheduler;
 import it.uniroma1.voiperf.schedulers.SchedulerException;
 import it.uniroma1.voiperf.schedulers.Schedulers;
+import it.uniroma1.voiperf.traces.TraceCache;
 import it.uniroma1.voiperf.util.NetworkStatus;
 import it.uniroma1.voiperf.util.PhoneStatus;
 import android.app.Notification;
@@ -90,6 +93,7 @@ public class MeasurementService extends Service {
     @Override
     public void onDestroy() {
         Logger.d(sTag, "onDestroy");
+        MeasurementExecutor.getInstance().cancelCurrent();
         mServiceClient = null;
         super.onDestroy();
     }
@@ -97,6 +101,7 @@ public class MeasurementService extends Service {
     @Override
     public void onLowMemory() {
         Logger.w(sTag, "Android is low on memory");
+        TraceCache.getInstance().trim();
         super.onLowMemory();
     }
 
@@ -182,6 +187,9 @@ public class MeasurementService extends Service {
             Logger.e(sTag, "BUG: failed to instantiate the scheduler object");
             throw e;
         }
+        // Load the traces now, so that measurements do not have to
+        VoIPerfMeasurement.preloadTraces();
+        
         scheduler.start();
 
         nStatus.start();
@@ -0,0 +1,178 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.util.DeltaCodec;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONStreamAware;
+
+/**
+ * Log of the packets received during a trace: arrival timestamp and sequence
+ * number of each packet, stored in growable primitive arrays so that recording
+ * an arrival on the receive thread does not allocate anything (as long as the
+ * log has been sized for the trace).
+ *
+ * Logs are meant to be reused across tasks: get one with obtain() and give it
+ * back with recycle() once its content has been sent to the server.
+ */
+public class ArrivalLog {
+
+    private static final int POOL_SIZE = 2;
+    private static final ArrivalLog[] sPool = new ArrivalLog[POOL_SIZE];
+    private static int sPoolCount = 0;
+
+    private long[] mTimestamps;
+    private int[] mSequenceNumbers;
+    private int mSize = 0;
+
+    /**
+     * Returns an empty log able to store at least capacity arrivals without growing.
+     */
+    public static ArrivalLog obtain(int capacity) {
+        ArrivalLog log = null;
+        synchronized (sPool) {
+            if (sPoolCount > 0) {
+                sPoolCount -= 1;
+                log = sPool[sPoolCount];
+                sPool[sPoolCount] = null;
+            }
+        }
+        if (log == null) {
+            return new ArrivalLog(capacity);
+        }
+        log.ensureCapacity(capacity);
+        return log;
+    }
+
+    /**
+     * Gives the log back to the pool. The log must not be used afterwards.
+     */
+    public static void recycle(ArrivalLog log) {
+        if (log == null) {
+            return;
+        }
+        log.clear();
+        synchronized (sPool) {
+            if (sPoolCount < POOL_SIZE) {
+                sPool[sPoolCount] = log;
+                sPoolCount += 1;
+            }
+        }
+    }
+
+    public ArrivalLog(int capacity) {
+        capacity = Math.max(capacity, 16);
+        mTimestamps = new long[capacity];
+        mSequenceNumbers = new int[capacity];
+    }
+
+    public void add(long timestamp, int sequenceNumber) {
+        if (mSize == mTimestamps.length) {
+            ensureCapacity(mSize + (mSize >> 1) + 1);
+        }
+        mTimestamps[mSize] = timestamp;
+        mSequenceNumbers[mSize] = sequenceNumber;
+        mSize += 1;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long timestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    public int sequenceNumber(int index) {
+        return mSequenceNumbers[index];
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mTimestamps.length) {
+            return;
+        }
+        long[] timestamps = new long[capacity];
+        int[] sequenceNumbers = new int[capacity];
+        System.arraycopy(mTimestamps, 0, timestamps, 0, mSize);
+        System.arraycopy(mSequenceNumbers, 0, sequenceNumbers, 0, mSize);
+        mTimestamps = timestamps;
+        mSequenceNumbers = sequenceNumbers;
+    }
+
+    /**
+     * Returns a JSON view of the arrival timestamps, serialized straight from the
+     * underlying array when the enclosing JSON object is.
+     */
+    public Object timestampsJSON() {
+        return new JSONView(true);
+    }
+
+    /**
+     * Returns a JSON view of the sequence numbers, see timestampsJSON().
+     */
+    public Object sequenceNumbersJSON() {
+        return new JSONView(false);
+    }
+
+    /**
+     * Returns the arrival timestamps encoded with DeltaCodec.
+     */
+    public Object timestampsEncoded() {
+        return DeltaCodec.toJSON(mTimestamps, mSize);
+    }
+
+    /**
+     * Returns the sequence numbers encoded with DeltaCodec.
+     */
+    public Object sequenceNumbersEncoded() {
+        return DeltaCodec.toJSON(mSequenceNumbers, mSize);
+    }
+
+    private class JSONView implements JSONAware, JSONStreamAware {
+
+        private final boolean mTimestampsView;
+
+        public JSONView(boolean timestampsView) {
+            mTimestampsView = timestampsView;
+        }
+
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            out.write('[');
+            for (int i = 0; i < mSize; ++i) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                if (mTimestampsView) {
+                    out.write(Long.toString(mTimestamps[i]));
+                } else {
+                    out.write(Integer.toString(mSequenceNumbers[i]));
+                }
+            }
+            out.write(']');
+        }
+
+        @Override
+        public String toJSONString() {
+            StringWriter out = new StringWriter(mSize * (mTimestampsView ? 14 : 6) + 2);
+            try {
+                writeJSONString(out);
+            } catch (IOException e) {
+                // StringWriter does not throw
+            }
+            return out.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toJSONString();
+        }
+    }
+}
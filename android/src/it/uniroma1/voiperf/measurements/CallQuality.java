@@ -0,0 +1,220 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+
+import java.util.BitSet;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Incremental estimate of the quality a VoIP call would have had over the path
+ * measured by a trace, updated in constant time by the receive/reply loops.
+ *
+ * - Interarrival jitter as defined by RFC 3550 (section 6.4.1), computed on the
+ *   transit time of each packet. Only the differences between transit times are
+ *   used, so the clocks of the two ends need not be synchronized; for the senders
+ *   the transit time is the round trip time, which gives the round trip jitter.
+ * - Loss bursts, with a two state Gilbert-Elliott model (p is the probability of
+ *   losing a packet after a received one, r the probability of receiving a packet
+ *   after a lost one). Packets are expected in sequence number order; packets
+ *   arriving after a later one have already been counted as lost. Duplicated
+ *   packets are only counted as late, they are left out of every estimate.
+ * - The R-factor of the ITU-T G.107 E-model, using the Cole-Rosenbluth
+ *   approximation of the delay impairment and the G.107 effective equipment
+ *   impairment for bursty loss, and the corresponding MOS.
+ * - The distribution of the transit times, in a LatencySketch: round trip times
+ *   for the senders, one way delays relative to the first packet for the
+ *   receivers (the clock offset between the two ends is unknown).
+ */
+public class CallQuality {
+
+    public static final String JITTER_INFO = "jitter_millis";
+    public static final String LOSS_INFO = "loss";
+    public static final String BURST_P_INFO = "burst_p";
+    public static final String BURST_R_INFO = "burst_r";
+    public static final String R_FACTOR_INFO = "r_factor";
+    public static final String MOS_INFO = "mos";
+    public static final String LATE_INFO = "late_packets";
+
+    private final int mExpectedPackets;
+    private final boolean mRoundTrip;
+
+    // Jitter
+    private boolean mFirst = true;
+    private double mFirstTransit = 0.0;
+    private double mLastTransit = 0.0;
+    private double mJitter = 0.0;
+    private double mTransitSum = 0.0;
+    private int mReceived = 0;
+
+    // Loss bursts: transition counts of the received (0) / lost (1) chain,
+    // the chain starting from the received state
+    private int mNext = 0;
+    private int mLost = 0;
+    private int mLate = 0;
+    private long m00 = 0;
+    private long m01 = 0;
+    private long m10 = 0;
+    private long m11 = 0;
+    private final BitSet mSeen;
+
+    private final LatencySketch mDelays = new LatencySketch();
+
+    /**
+     * @param expectedPackets number of packets of the trace (sequence numbers go
+     *                        from 0 to expectedPackets - 1)
+     * @param roundTrip whether the transit times are round trip times, in which case
+     *                  half their average is used as the one way network delay
+     */
+    public CallQuality(int expectedPackets, boolean roundTrip) {
+        mExpectedPackets = expectedPackets;
+        mRoundTrip = roundTrip;
+        // Sized once, so that add() never grows it
+        mSeen = new BitSet(Math.max(expectedPackets, 0));
+    }
+
+    /**
+     * Records a packet.
+     *
+     * @param seq sequence number of the packet, starting from 0
+     * @param transitMillis arrival time minus send time, up to a constant (with
+     *                      the resolution of the timestamps, see TimestampSource)
+     */
+    public void add(int seq, double transitMillis) {
+        boolean inRange = seq >= 0 && seq < mExpectedPackets;
+        if (inRange && mSeen.get(seq)) {
+            mLate += 1;
+            return;
+        }
+        if (inRange) {
+            mSeen.set(seq);
+        }
+        if (mFirst) {
+            mFirst = false;
+            mFirstTransit = transitMillis;
+        } else {
+            double d = transitMillis - mLastTransit;
+            mJitter += (Math.abs(d) - mJitter) / 16.0;
+        }
+        mLastTransit = transitMillis;
+        mTransitSum += transitMillis;
+        mReceived += 1;
+        mDelays.add(Math.round(mRoundTrip ? transitMillis : transitMillis - mFirstTransit));
+
+        if (seq < mNext || seq >= mExpectedPackets) {
+            mLate += 1;
+            return;
+        }
+        int gap = seq - mNext;
+        if (gap > 0) {
+            m01 += 1;
+            m11 += gap - 1;
+            m10 += 1;
+        } else {
+            m00 += 1;
+        }
+        mLost += gap;
+        mNext = seq + 1;
+    }
+
+    public double jitterMillis() {
+        return mJitter;
+    }
+
+    /**
+     * Distribution of the transit times of the packets received so far.
+     */
+    public LatencySketch delaySketch() {
+        return mDelays;
+    }
+
+    public int receivedPackets() {
+        return mReceived;
+    }
+
+    /**
+     * Packets received after a later one, or duplicated.
+     */
+    public int latePackets() {
+        return mLate;
+    }
+
+    private int trailingLosses() {
+        return Math.max(mExpectedPackets - mNext, 0);
+    }
+
+    public double lossRate() {
+        if (mExpectedPackets == 0) {
+            return 0.0;
+        }
+        return (mLost + trailingLosses()) / (double) mExpectedPackets;
+    }
+
+    /**
+     * Probability of losing a packet after a received one.
+     */
+    public double burstP() {
+        long n01 = trailingLosses() > 0 ? m01 + 1 : m01;
+        long n = m00 + n01;
+        return n > 0 ? n01 / (double) n : 0.0;
+    }
+
+    /**
+     * Probability of receiving a packet after a lost one.
+     */
+    public double burstR() {
+        int trailing = trailingLosses();
+        long n11 = trailing > 0 ? m11 + trailing - 1 : m11;
+        long n = m10 + n11;
+        return n > 0 ? m10 / (double) n : 1.0;
+    }
+
+    /**
+     * Estimated mouth-to-ear delay: network delay (if known), a jitter buffer
+     * of twice the jitter and the codec delay.
+     */
+    public double delayMillis() {
+        double network = 0.0;
+        if (mRoundTrip && mReceived > 0) {
+            network = mTransitSum / (double) mReceived / 2.0;
+        }
+        return network + 2 * mJitter + Config.EMODEL_CODEC_DELAY_MILLIS;
+    }
+
+    public double rFactor() {
+        double d = delayMillis();
+        double id = 0.024 * d + (d > 177.3 ? 0.11 * (d - 177.3) : 0.0);
+
+        // BurstR is 1 for random loss, > 1 for bursty loss
+        double ppl = lossRate() * 100;
+        double pr = burstP() + burstR();
+        double burstR = pr > 0 ? 1.0 / pr : 1.0;
+        double ie = Config.EMODEL_IE;
+        double ieEff = ie + (95 - ie) * ppl / (ppl / burstR + Config.EMODEL_BPL);
+
+        return Config.EMODEL_R0 - id - ieEff;
+    }
+
+    public double mos() {
+        double r = rFactor();
+        if (r <= 0) {
+            return 1.0;
+        } else if (r >= 100) {
+            return 4.5;
+        }
+        return 1 + 0.035 * r + 7e-6 * r * (r - 60) * (100 - r);
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put(JITTER_INFO, jitterMillis());
+        o.put(LOSS_INFO, lossRate());
+        o.put(BURST_P_INFO, burstP());
+        o.put(BURST_R_INFO, burstR());
+        o.put(R_FACTOR_INFO, rFactor());
+        o.put(MOS_INFO, mos());
+        o.put(LATE_INFO, latePackets());
+        return o;
+    }
+}
@@ -0,0 +1,342 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Estimates the offset and the drift of the server clock with respect to ours, so
+ * that the server can split the RTTs of a trace in uplink and downlink one way
+ * delays.
+ *
+ * Timestamped probes are exchanged on the trace connection before and after the
+ * trace, as in NTP: a probe carries its send time t1, the server adds its receive
+ * and send times t2 and t3, and the reply is received at t4. Each probe gives an
+ * offset ((t2 - t1) + (t3 - t4)) / 2, exact if the path is symmetric, and a round
+ * trip delay (t4 - t1) - (t3 - t2). Queueing only ever adds delay, so the probes
+ * with the smallest round trip delays of each exchange (the minimum delay
+ * envelope) are the most accurate: the offset and the drift are estimated by a
+ * least squares fit of their offsets against time. With a single exchange the
+ * drift is assumed to be zero.
+ *
+ * All times are in microseconds. The server clock is modeled as
+ * client time + offset + skew * (client time - reference time).
+ *
+ * Clock sync is only used with servers announcing FEATURE; probe losses or a
+ * missing server only make the estimate unavailable.
+ */
+public class ClockSync {
+
+    public static final String FEATURE = "clock_sync";
+
+    public static final String PROBE = "VOIPERF_SYNC";
+    public static final String DONE = "VOIPERF_SYNC_DONE";
+
+    public static final int BEFORE_TRACE = 0;
+    public static final int AFTER_TRACE = 1;
+
+    public static final String OFFSET_KEY = "offset_us";
+    public static final String SKEW_KEY = "skew_ppm";
+    public static final String REFERENCE_KEY = "ref_us";
+    public static final String MIN_DELAY_KEY = "min_delay_us";
+    public static final String SAMPLES_KEY = "samples";
+    public static final String ENVELOPE_KEY = "envelope";
+    public static final String PROBES_KEY = "probes";
+
+    private static final String sTag = ClockSync.class.getName();
+
+    private final TimestampSource mClock;
+    // {exchange, t1, t2, t3, t4} of each probe answered
+    private final ArrayList<long[]> mSamples = new ArrayList<long[]>();
+    private final byte[] mBuffer = new byte[Config.MAX_TRACE_PACKET_SIZE];
+    private int mNextSeq = 0;
+
+    private boolean mEstimated = false;
+    private double mOffset;
+    private double mSkew;
+    private long mReference;
+    private long mMinDelay;
+    private int mEnvelope;
+
+    /**
+     * Receives a datagram in buffer within the given time, returning its length,
+     * or -1 on timeout.
+     */
+    private interface Transport {
+        public void send(byte[] data, int length) throws IOException;
+        public int receive(byte[] buffer, long timeoutMillis) throws IOException;
+    }
+
+    /**
+     * @param clock clock of the trace, which the estimate refers to
+     */
+    public ClockSync(TimestampSource clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Exchanges the probes on a blocking socket, connected to the server.
+     */
+    public void exchange(final DatagramSocket socket, int exchange) {
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            exchange(new Transport() {
+                @Override
+                public void send(byte[] data, int length) throws IOException {
+                    socket.send(new DatagramPacket(data, length));
+                }
+
+                @Override
+                public int receive(byte[] buffer, long timeoutMillis) throws IOException {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.setSoTimeout((int) Math.max(timeoutMillis, 1));
+                    try {
+                        socket.receive(packet);
+                        return packet.getLength();
+                    } catch (SocketTimeoutException e) {
+                        return -1;
+                    }
+                }
+            }, exchange);
+        } catch (IOException e) {
+            Logger.w(sTag, "clock sync failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.setSoTimeout(timeout);
+            } catch (IOException e) {
+                // The socket is gone, nothing to restore
+            }
+        }
+    }
+
+    /**
+     * Exchanges the probes on a non-blocking channel, connected to the server and
+     * registered for reading with the given selector.
+     */
+    public void exchange(final DatagramChannel channel, final Selector selector, int exchange) {
+        try {
+            exchange(new Transport() {
+                @Override
+                public void send(byte[] data, int length) throws IOException {
+                    channel.write(ByteBuffer.wrap(data, 0, length));
+                }
+
+                @Override
+                public int receive(byte[] buffer, long timeoutMillis) throws IOException {
+                    ByteBuffer b = ByteBuffer.wrap(buffer);
+                    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+                    while (true) {
+                        int length = channel.read(b);
+                        if (length > 0) {
+                            return length;
+                        }
+                        long timeLeft = (deadline - System.nanoTime()) / 1000000L;
+                        if (timeLeft <= 0) {
+                            return -1;
+                        }
+                        selector.select(timeLeft);
+                        selector.selectedKeys().clear();
+                    }
+                }
+            }, exchange);
+        } catch (IOException e) {
+            Logger.w(sTag, "clock sync failed: " + e.getMessage());
+        }
+    }
+
+    private void exchange(Transport transport, int exchange) throws IOException {
+        int answered = 0;
+        for (int i = 0; i < Config.CLOCK_SYNC_PROBES; ++i) {
+            int seq = mNextSeq++;
+            long t1 = mClock.toMicros(mClock.now());
+            byte[] probe = (PROBE + " " + seq + " " + t1).getBytes();
+            transport.send(probe, probe.length);
+
+            // Wait for its reply, skipping late replies to earlier probes and any
+            // packet of the trace
+            long deadline = System.nanoTime() + Config.CLOCK_SYNC_PROBE_TIMEOUT_MILLIS * 1000000L;
+            while (true) {
+                long timeLeft = (deadline - System.nanoTime()) / 1000000L;
+                if (timeLeft <= 0) {
+                    break;
+                }
+                int length = transport.receive(mBuffer, timeLeft);
+                if (length < 0) {
+                    break;
+                }
+                long t4 = mClock.toMicros(mClock.now());
+                long[] reply = parseReply(mBuffer, length, seq);
+                if (reply != null) {
+                    addSample(exchange, reply[0], reply[1], reply[2], t4);
+                    answered += 1;
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(Config.CLOCK_SYNC_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // The server stops waiting for probes once it gets this (or times out)
+        byte[] done = DONE.getBytes();
+        transport.send(done, done.length);
+        transport.send(done, done.length);
+        Logger.d(sTag, answered + " clock sync probes out of " + Config.CLOCK_SYNC_PROBES +
+                       " answered");
+        mEstimated = false;
+    }
+
+    /**
+     * Returns {t1, t2, t3} if the packet is the reply to the probe with the given
+     * sequence number, null otherwise.
+     */
+    private static long[] parseReply(byte[] data, int length, int seq) {
+        if (length <= PROBE.length() || length > 128) {
+            return null;
+        }
+        String[] fields = new String(data, 0, length).split(" ");
+        if (fields.length != 5 || fields[0].equals(PROBE) == false) {
+            return null;
+        }
+        try {
+            if (Integer.parseInt(fields[1]) != seq) {
+                return null;
+            }
+            return new long[] {Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                               Long.parseLong(fields[4])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records a probe of the given exchange sent at t1, received and answered by
+     * the server at t2 and t3 (server clock), whose reply was received at t4.
+     */
+    void addSample(int exchange, long t1, long t2, long t3, long t4) {
+        mSamples.add(new long[] {exchange, t1, t2, t3, t4});
+        mEstimated = false;
+    }
+
+    private static long delay(long[] s) {
+        return (s[4] - s[1]) - (s[3] - s[2]);
+    }
+
+    private static double offset(long[] s) {
+        return ((s[2] - s[1]) + (s[3] - s[4])) / 2.0;
+    }
+
+    private static long time(long[] s) {
+        return (s[1] + s[4]) / 2;
+    }
+
+    /**
+     * Fits the offset and the skew on the minimum delay envelope of each exchange.
+     * Returns false if no probe has been answered.
+     */
+    public boolean estimate() {
+        if (mEstimated) {
+            return true;
+        }
+        ArrayList<long[]> envelope = new ArrayList<long[]>();
+        boolean[] exchanges = new boolean[2];
+        mMinDelay = Long.MAX_VALUE;
+        for (int exchange = BEFORE_TRACE; exchange <= AFTER_TRACE; ++exchange) {
+            ArrayList<long[]> samples = new ArrayList<long[]>();
+            for (long[] s: mSamples) {
+                if (s[0] == exchange) {
+                    samples.add(s);
+                }
+            }
+            if (samples.isEmpty()) {
+                continue;
+            }
+            long[][] sorted = samples.toArray(new long[samples.size()][]);
+            Arrays.sort(sorted, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    long d = delay(a) - delay(b);
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            });
+            int keep = (int) Math.max(1, Math.ceil(sorted.length *
+                                                   Config.CLOCK_SYNC_ENVELOPE_FRACTION));
+            envelope.addAll(Arrays.asList(sorted).subList(0, keep));
+            mMinDelay = Math.min(mMinDelay, delay(sorted[0]));
+            exchanges[exchange] = true;
+        }
+        if (envelope.isEmpty()) {
+            return false;
+        }
+
+        mReference = time(envelope.get(0));
+        double sumX = 0.0, sumY = 0.0;
+        for (long[] s: envelope) {
+            sumX += time(s) - mReference;
+            sumY += offset(s);
+        }
+        int n = envelope.size();
+        double meanX = sumX / n, meanY = sumY / n;
+        double sxx = 0.0, sxy = 0.0;
+        for (long[] s: envelope) {
+            double dx = time(s) - mReference - meanX;
+            sxx += dx * dx;
+            sxy += dx * (offset(s) - meanY);
+        }
+        // The drift is only observable across the trace
+        mSkew = exchanges[BEFORE_TRACE] && exchanges[AFTER_TRACE] && sxx > 0 ? sxy / sxx : 0.0;
+        mOffset = meanY - mSkew * meanX;
+        mEnvelope = n;
+        mEstimated = true;
+        return true;
+    }
+
+    /**
+     * Returns the offset of the server clock (in microseconds) at the given time
+     * of our clock, in microseconds.
+     */
+    public double offsetAt(long micros) {
+        return mOffset + mSkew * (micros - mReference);
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        JSONArray probes = new JSONArray();
+        for (long[] s: mSamples) {
+            JSONArray probe = new JSONArray();
+            for (long v: s) {
+                probe.add(v);
+            }
+            probes.add(probe);
+        }
+        o.put(PROBES_KEY, probes);
+        o.put(SAMPLES_KEY, mSamples.size());
+        if (estimate()) {
+            o.put(OFFSET_KEY, Math.round(mOffset));
+            o.put(SKEW_KEY, mSkew * 1e6);
+            o.put(REFERENCE_KEY, mReference);
+            o.put(MIN_DELAY_KEY, mMinDelay);
+            o.put(ENVELOPE_KEY, mEnvelope);
+        } else {
+            o.put(OFFSET_KEY, null);
+        }
+        return o;
+    }
+}
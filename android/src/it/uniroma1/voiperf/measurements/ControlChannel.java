@@ -0,0 +1,396 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.util.DeltaCodec;
+import it.uniroma1.voiperf.util.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Control connection to the measurement server.
+ *
+ * The legacy protocol is made of text lines and JSON documents preceded by their
+ * length on a line of their own. Once both ends have agreed on the FEATURE feature,
+ * every message is sent as a binary frame instead:
+ *
+ *   version (1 byte) | type (1 byte) | flags (2 bytes) | length (4 bytes) | payload
+ *
+ * all big endian. Lines become TYPE_TEXT frames and JSON documents become TYPE_JSON
+ * frames, gzip'd if FLAG_GZIP is set, so the protocol itself does not change. Frames
+ * are read with two readFully() calls instead of the byte by byte readLine().
+ *
+ * A payload may be split in several frames of the same type, all but the last one
+ * having FLAG_MORE set. Compressed JSON documents are sent this way: they are
+ * serialized straight into a gzip stream which is cut into frames of CHUNK_SIZE
+ * bytes, so neither their string nor their compressed form is ever held in memory.
+ *
+ * Concurrent flows share the channel through the views returned by forFlow(): their
+ * messages are written atomically, and their JSON documents are preceded by the tag
+ * of the flow so that the server can tell them apart.
+ */
+public class ControlChannel {
+
+    public static final String FEATURE = "frames";
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_JSON = 2;
+
+    public static final int FLAG_GZIP = 0x0001;
+    public static final int FLAG_MORE = 0x0002;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+    private final Object mWriteLock;
+    private final String mFlowTag;
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private byte[] mChunk = null;
+    private boolean mFramed = false;
+    private boolean mDeltaEncoding = false;
+    private boolean mMicroTimestamps = false;
+    private boolean mClockSync = false;
+    private boolean mSyntheticTraces = false;
+
+    public ControlChannel(DataInputStream in, DataOutputStream out) {
+        mIn = in;
+        mOut = out;
+        mWriteLock = new Object();
+        mFlowTag = null;
+    }
+
+    private ControlChannel(ControlChannel parent, String flowTag) {
+        mIn = parent.mIn;
+        mOut = parent.mOut;
+        mWriteLock = parent.mWriteLock;
+        mFlowTag = flowTag;
+        mFramed = parent.mFramed;
+        mDeltaEncoding = parent.mDeltaEncoding;
+        mMicroTimestamps = parent.mMicroTimestamps;
+        mClockSync = parent.mClockSync;
+        mSyntheticTraces = parent.mSyntheticTraces;
+    }
+
+    /**
+     * Returns a view of this channel for a flow running concurrently with others:
+     * every JSON document it writes is preceded by a line with the given tag. Only
+     * the writes of the view are meant to be used.
+     */
+    public ControlChannel forFlow(String flowTag) {
+        return new ControlChannel(this, flowTag);
+    }
+
+    public void setFramed(boolean framed) {
+        mFramed = framed;
+    }
+
+    public boolean isFramed() {
+        return mFramed;
+    }
+
+    /**
+     * Whether the server accepts per-packet series encoded with DeltaCodec.
+     */
+    public void setDeltaEncoding(boolean deltaEncoding) {
+        mDeltaEncoding = deltaEncoding;
+    }
+
+    public boolean hasDeltaEncoding() {
+        return mDeltaEncoding;
+    }
+    
+    /**
+     * Whether the server accepts trace timestamps in microseconds (see
+     * TimestampSource).
+     */
+    public void setMicroTimestamps(boolean microTimestamps) {
+        mMicroTimestamps = microTimestamps;
+    }
+    
+    public boolean hasMicroTimestamps() {
+        return mMicroTimestamps;
+    }
+    
+    /**
+     * Whether the server answers the clock sync probes (see ClockSync).
+     */
+    public void setClockSync(boolean clockSync) {
+        mClockSync = clockSync;
+    }
+    
+    public boolean hasClockSync() {
+        return mClockSync;
+    }
+    
+    /**
+     * Whether the server can generate the random traces of a session from their
+     * seed (see SyntheticTrace).
+     */
+    public void setSyntheticTraces(boolean syntheticTraces) {
+        mSyntheticTraces = syntheticTraces;
+    }
+    
+    public boolean hasSyntheticTraces() {
+        return mSyntheticTraces;
+    }
+
+    /**
+     * Returns the JSON representation of a per-packet series for the measurement
+     * info: a DeltaCodec series if the server supports it, a plain array otherwise.
+     */
+    public Object encodeSeries(long[] values) {
+        if (mDeltaEncoding) {
+            return DeltaCodec.toJSON(values, values.length);
+        }
+        return Utils.toJSONArray(values);
+    }
+
+    public void writeLine(String line) throws IOException {
+        synchronized (mWriteLock) {
+            writeLineLocked(line);
+        }
+    }
+
+    private void writeLineLocked(String line) throws IOException {
+        if (mFramed) {
+            writeFrame(TYPE_TEXT, 0, line.getBytes(CHARSET));
+        } else {
+            mOut.writeBytes(line + "\n");
+        }
+    }
+
+    private void writeFlowTag() throws IOException {
+        if (mFlowTag != null) {
+            writeLineLocked(mFlowTag);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public String readLine() throws IOException {
+        if (mFramed == false) {
+            return mIn.readLine();
+        }
+        return new String(readFrame(TYPE_TEXT), CHARSET);
+    }
+
+    public void writeJSON(JSONAware obj) throws IOException {
+        byte[] data = obj.toJSONString().getBytes(CHARSET);
+        synchronized (mWriteLock) {
+            writeFlowTag();
+            if (mFramed) {
+                writeFrame(TYPE_JSON, 0, data);
+            } else {
+                mOut.writeBytes(data.length + "\n");
+                mOut.write(data);
+            }
+        }
+    }
+
+    /**
+     * Sends a gzip'd JSON document. A null document is sent as an empty one.
+     * In legacy mode the length comes first, so the document is compressed in
+     * memory before being sent.
+     */
+    public void writeCompressedJSON(JSONStreamAware obj) throws IOException {
+        if (mFramed) {
+            synchronized (mWriteLock) {
+                writeFlowTag();
+                if (obj == null) {
+                    writeFrame(TYPE_JSON, FLAG_GZIP, new byte[0]);
+                } else {
+                    Utils.writeCompressedJSON(obj, new FrameOutputStream(TYPE_JSON, FLAG_GZIP));
+                }
+            }
+        } else {
+            byte[] data = obj != null ? Utils.compressJSON(obj) : new byte[0];
+            synchronized (mWriteLock) {
+                writeFlowTag();
+                mOut.writeBytes(data.length + "\n");
+                mOut.write(data);
+            }
+        }
+    }
+
+    /**
+     * Reads a JSON document. In legacy mode the server only sends plain JSON.
+     */
+    @SuppressWarnings("deprecation")
+    public Object readJSON() throws IOException, ParseException {
+        byte[] data;
+        if (mFramed) {
+            data = readFrame(TYPE_JSON);
+        } else {
+            String line = mIn.readLine();
+            if (line == null) {
+                throw new IOException("connection closed by the server");
+            }
+            try {
+                data = new byte[Integer.parseInt(line.trim())];
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid JSON length \"" + line + "\"");
+            }
+            mIn.readFully(data);
+        }
+        if (data.length == 0) {
+            return null;
+        }
+        return JSONValue.parseWithException(new String(data, CHARSET));
+    }
+
+    private void writeFrame(int type, int flags, byte[] payload) throws IOException {
+        writeFrame(type, flags, payload, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, byte[] payload, int length)
+        throws IOException {
+        mOut.write(buildHeader(type, flags, length));
+        mOut.write(payload, 0, length);
+        mOut.flush();
+    }
+
+    private byte[] buildHeader(int type, int flags, int length) {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte) VERSION;
+        header[1] = (byte) type;
+        header[2] = (byte) (flags >> 8);
+        header[3] = (byte) flags;
+        header[4] = (byte) (length >> 24);
+        header[5] = (byte) (length >> 16);
+        header[6] = (byte) (length >> 8);
+        header[7] = (byte) length;
+        return header;
+    }
+
+    /**
+     * Reads the payload of the next frame, joining it with the following ones if it
+     * has been split, and decompresses it if needed.
+     */
+    private byte[] readFrame(int expectedType) throws IOException {
+        int flags = readFrameHeader(expectedType);
+        byte[] payload = readPayload();
+        if ((flags & FLAG_MORE) != 0) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream(payload.length * 2);
+            chunks.write(payload, 0, payload.length);
+            do {
+                flags = readFrameHeader(expectedType);
+                byte[] chunk = readPayload();
+                if (chunks.size() + chunk.length > Config.CONTROL_MAX_FRAME_SIZE) {
+                    throw new IOException("control frame payload too large");
+                }
+                chunks.write(chunk, 0, chunk.length);
+            } while ((flags & FLAG_MORE) != 0);
+            payload = chunks.toByteArray();
+        }
+        if ((flags & FLAG_GZIP) != 0 && payload.length > 0) {
+            payload = decompress(payload);
+        }
+        return payload;
+    }
+
+    /**
+     * Reads the next frame header, checking its version and type, and returns its
+     * flags. The payload length is left in the header buffer.
+     */
+    private int readFrameHeader(int expectedType) throws IOException {
+        mIn.readFully(mHeader);
+        int version = mHeader[0] & 0xff;
+        int type = mHeader[1] & 0xff;
+        if (version != VERSION) {
+            throw new IOException("unsupported control frame version " + version);
+        }
+        if (type != expectedType) {
+            throw new IOException("unexpected control frame type " + type +
+                                  " (expecting " + expectedType + ")");
+        }
+        return ((mHeader[2] & 0xff) << 8) | (mHeader[3] & 0xff);
+    }
+
+    private byte[] readPayload() throws IOException {
+        int length = ((mHeader[4] & 0xff) << 24) | ((mHeader[5] & 0xff) << 16) |
+                     ((mHeader[6] & 0xff) << 8) | (mHeader[7] & 0xff);
+        if (length < 0 || length > Config.CONTROL_MAX_FRAME_SIZE) {
+            throw new IOException("invalid control frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        mIn.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try {
+            byte[] buff = new byte[8192];
+            int nread;
+            while ((nread = gzis.read(buff)) != -1) {
+                out.write(buff, 0, nread);
+            }
+            return out.toByteArray();
+        } finally {
+            gzis.close();
+        }
+    }
+
+    /**
+     * Cuts whatever is written to it in frames of the given type, using the chunk
+     * buffer of the channel. Closing the stream sends the last frame.
+     */
+    private class FrameOutputStream extends OutputStream {
+
+        private final int mType;
+        private final int mFlags;
+        private int mLength = 0;
+
+        public FrameOutputStream(int type, int flags) {
+            mType = type;
+            mFlags = flags;
+            if (mChunk == null) {
+                mChunk = new byte[Config.CONTROL_CHUNK_SIZE];
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mLength == mChunk.length) {
+                writeFrame(mType, mFlags | FLAG_MORE, mChunk, mLength);
+                mLength = 0;
+            }
+            mChunk[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mLength == mChunk.length) {
+                    writeFrame(mType, mFlags | FLAG_MORE, mChunk, mLength);
+                    mLength = 0;
+                }
+                int n = Math.min(len, mChunk.length - mLength);
+                System.arraycopy(b, off, mChunk, mLength, n);
+                mLength += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeFrame(mType, mFlags, mChunk, mLength);
+            mLength = 0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package it.uniroma1.voiperf.measurements;
+
+/**
+ * Estimates how long to keep waiting for packets once a trace is over, from the
+ * distribution of some observed delay (RTTs of the replies for the senders,
+ * inter-arrival gaps of the trace packets for the receivers).
+ *
+ * Delays are collected in a histogram with 1ms buckets, so adding a sample is
+ * constant time and allocation free. The drain is max(factor * p99, floor),
+ * capped to a maximum; the maximum is also used until enough samples have been
+ * collected.
+ */
+public class DrainEstimator {
+
+    private static final int BUCKETS = 1024;
+    private static final int MIN_SAMPLES = 10;
+    private static final double PERCENTILE = 0.99;
+
+    private final int[] mHistogram = new int[BUCKETS + 1];
+    private final double mFactor;
+    private final long mFloorMillis;
+    private final long mMaxMillis;
+    private int mCount = 0;
+    private long mDrainMillis = -1;
+
+    public DrainEstimator(double factor, long floorMillis, long maxMillis) {
+        mFactor = factor;
+        mFloorMillis = floorMillis;
+        mMaxMillis = maxMillis;
+    }
+
+    public void add(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        mHistogram[(int) Math.min(millis, BUCKETS)] += 1;
+        mCount += 1;
+        mDrainMillis = -1;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest delay (in ms) greater or equal than the given fraction
+     * of the samples. Delays beyond the histogram range are reported as its end.
+     */
+    public long percentile(double p) {
+        if (mCount == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(p * mCount);
+        long seen = 0;
+        for (int i = 0; i < mHistogram.length; ++i) {
+            seen += mHistogram[i];
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return BUCKETS;
+    }
+
+    public long drainMillis() {
+        if (mDrainMillis < 0) {
+            if (mCount < MIN_SAMPLES) {
+                mDrainMillis = mMaxMillis;
+            } else {
+                long drain = (long) Math.ceil(mFactor * percentile(PERCENTILE));
+                mDrainMillis = Math.min(Math.max(drain, mFloorMillis), mMaxMillis);
+            }
+        }
+        return mDrainMillis;
+    }
+}
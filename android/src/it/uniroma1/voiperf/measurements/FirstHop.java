@@ -0,0 +1,137 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * First reachable hop towards the measurement server, pinged during the traces.
+ *
+ * The traceroute finding it runs in the background while the first traces are
+ * sent, and its result is delivered through a future. Until it is available, the
+ * first hop found the last time on the same network (same access point or cell),
+ * if recent enough, is used instead.
+ *
+ * With servers announcing LATE_TRACEROUTE_FEATURE the traceroute result is sent
+ * after the traces, so nothing waits for it.
+ */
+public class FirstHop {
+
+    public static final String LATE_TRACEROUTE_FEATURE = "late_traceroute";
+
+    private static final String sTag = FirstHop.class.getName();
+
+    private static class CachedHop {
+        public final String host;
+        public final long timestamp;
+
+        public CachedHop(String host, long timestamp) {
+            this.host = host;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Network identity -> first hop found on that network
+    private static final HashMap<String, CachedHop> sCache = new HashMap<String, CachedHop>();
+
+    private final Traceroute mTraceroute;
+    private final String mNetwork;
+    private final FutureTask<String> mFuture;
+
+    /**
+     * Starts the given traceroute in the background.
+     *
+     * @param network identity of the current network (see
+     *                NetworkStatus.getNetworkIdentity()), null if unknown
+     */
+    public static FirstHop resolve(Traceroute traceroute, String network) {
+        FirstHop firstHop = new FirstHop(traceroute, network);
+        Thread thread = new Thread(firstHop.mFuture, "Traceroute");
+        thread.setDaemon(true);
+        thread.start();
+        return firstHop;
+    }
+
+    private FirstHop(final Traceroute traceroute, final String network) {
+        mTraceroute = traceroute;
+        mNetwork = network;
+        mFuture = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws MeasurementException {
+                traceroute.run();
+                String host = traceroute.findFirstHop();
+                if (host == null) {
+                    Logger.w(sTag, "failed to find the first hop!");
+                } else {
+                    Logger.i(sTag, "first hop is " + host);
+                }
+                if (host != null && network != null) {
+                    synchronized (sCache) {
+                        sCache.put(network, new CachedHop(host, System.currentTimeMillis()));
+                    }
+                }
+                return host;
+            }
+        });
+    }
+
+    public Traceroute getTraceroute() {
+        return mTraceroute;
+    }
+
+    /**
+     * Returns the first hop found on the current network by a previous
+     * measurement, or null.
+     */
+    public String cached() {
+        if (mNetwork == null) {
+            return null;
+        }
+        synchronized (sCache) {
+            CachedHop hop = sCache.get(mNetwork);
+            if (hop == null ||
+                System.currentTimeMillis() - hop.timestamp > Config.FIRST_HOP_CACHE_MILLIS) {
+                return null;
+            }
+            return hop.host;
+        }
+    }
+
+    /**
+     * Returns the first hop. If the traceroute has not finished yet, either waits
+     * for it (up to FIRST_HOP_WAIT_MILLIS) or returns the cached one.
+     */
+    public String get(boolean wait) {
+        if (wait == false && mFuture.isDone() == false) {
+            return cached();
+        }
+        try {
+            String host = mFuture.get(Config.FIRST_HOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            return host != null ? host : cached();
+        } catch (TimeoutException e) {
+            Logger.w(sTag, "traceroute is taking too long, using the cached first hop");
+        } catch (ExecutionException e) {
+            Logger.w(sTag, "failed to find the first hop: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return cached();
+    }
+
+    /**
+     * Waits for the traceroute to finish.
+     */
+    public void await() throws InterruptedException {
+        try {
+            mFuture.get();
+        } catch (ExecutionException e) {
+            // The traceroute result tells what went wrong
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+
+/**
+ * In-process ICMP echo prober, used instead of forking the ping binary.
+ *
+ * It uses the unprivileged ICMP datagram sockets ("ping sockets") of Linux, which
+ * Android apps can open since the kernel fills in the identifier and checksum of
+ * the echo requests. They are only reachable through android.system.Os, available
+ * from API 21, so everything is looked up by reflection: on older platforms
+ * isSupported() returns false and the callers fall back to the binaries.
+ *
+ * Echo requests carry a 16 bit sequence number and are matched with their reply
+ * by it; the send time is kept on our side, so the payload is just padding.
+ * Replies are returned as structured records, with no output to parse.
+ */
+public class IcmpProber {
+
+    private static final String sTag = IcmpProber.class.getName();
+
+    private static final int ICMP_HEADER_SIZE = 8;
+    private static final int ICMP_ECHO_REQUEST = 8;
+    private static final int ICMP_ECHO_REPLY = 0;
+
+    // android.system.Os and android.system.OsConstants, if available
+    private static boolean sLoaded = false;
+    private static Method sSocket;
+    private static Method sSetsockoptTimeval;
+    private static Method sSendto;
+    private static Method sRecvfrom;
+    private static Method sClose;
+    private static Method sTimevalFromMillis;
+    private static int AF_INET;
+    private static int SOCK_DGRAM;
+    private static int IPPROTO_ICMP;
+    private static int SOL_SOCKET;
+    private static int SO_RCVTIMEO;
+    private static int EAGAIN;
+
+    private final FileDescriptor mFd;
+    private final byte[] mReceiveBuffer = new byte[ICMP_HEADER_SIZE + 65536];
+    // Sequence number -> send time of the requests waiting for a reply
+    private final HashMap<Integer, Long> mPending = new HashMap<Integer, Long>();
+
+    /**
+     * A reply to an echo request.
+     */
+    public static class Reply {
+        public final int seq;
+        public final int bytes;
+        public final String from;
+        public final double rttMillis;
+
+        public Reply(int seq, int bytes, String from, double rttMillis) {
+            this.seq = seq;
+            this.bytes = bytes;
+            this.from = from;
+            this.rttMillis = rttMillis;
+        }
+    }
+
+    private static synchronized boolean load() {
+        if (sLoaded) {
+            return sSocket != null;
+        }
+        sLoaded = true;
+        try {
+            Class<?> os = Class.forName("android.system.Os");
+            Class<?> constants = Class.forName("android.system.OsConstants");
+            Class<?> timeval = Class.forName("android.system.StructTimeval");
+            sSocket = os.getMethod("socket", int.class, int.class, int.class);
+            sSetsockoptTimeval = os.getMethod("setsockoptTimeval", FileDescriptor.class,
+                                              int.class, int.class, timeval);
+            sSendto = os.getMethod("sendto", FileDescriptor.class, byte[].class, int.class,
+                                   int.class, int.class, InetAddress.class, int.class);
+            sRecvfrom = os.getMethod("recvfrom", FileDescriptor.class, byte[].class, int.class,
+                                     int.class, int.class, InetSocketAddress.class);
+            sClose = os.getMethod("close", FileDescriptor.class);
+            sTimevalFromMillis = timeval.getMethod("fromMillis", long.class);
+            AF_INET = constants.getField("AF_INET").getInt(null);
+            SOCK_DGRAM = constants.getField("SOCK_DGRAM").getInt(null);
+            IPPROTO_ICMP = constants.getField("IPPROTO_ICMP").getInt(null);
+            SOL_SOCKET = constants.getField("SOL_SOCKET").getInt(null);
+            SO_RCVTIMEO = constants.getField("SO_RCVTIMEO").getInt(null);
+            EAGAIN = constants.getField("EAGAIN").getInt(null);
+            return true;
+        } catch (Exception e) {
+            Logger.i(sTag, "ICMP sockets not available (" + e + ")");
+            sSocket = null;
+            return false;
+        }
+    }
+
+    /**
+     * Whether ICMP datagram sockets can be used on this platform.
+     */
+    public static boolean isSupported() {
+        return load();
+    }
+
+    /**
+     * Opens an ICMP datagram socket. Fails if the platform does not support them,
+     * or if the kernel does not let us open one (see net.ipv4.ping_group_range).
+     */
+    public static IcmpProber open() throws IOException {
+        if (load() == false) {
+            throw new IOException("ICMP sockets are not supported");
+        }
+        FileDescriptor fd = (FileDescriptor) invoke(sSocket, AF_INET, SOCK_DGRAM, IPPROTO_ICMP);
+        return new IcmpProber(fd);
+    }
+
+    private IcmpProber(FileDescriptor fd) {
+        mFd = fd;
+    }
+
+    /**
+     * Sends an echo request with the given sequence number and payload size.
+     */
+    public void send(InetAddress destination, int seq, int payloadSize) throws IOException {
+        byte[] packet = new byte[ICMP_HEADER_SIZE + Math.max(payloadSize, 0)];
+        packet[0] = (byte) ICMP_ECHO_REQUEST;
+        packet[6] = (byte) (seq >> 8);
+        packet[7] = (byte) seq;
+        mPending.put(seq & 0xffff, System.nanoTime());
+        invoke(sSendto, mFd, packet, 0, packet.length, 0, destination, 0);
+    }
+
+    /**
+     * Waits up to the given time for the reply to one of the requests sent, and
+     * returns it, or null on timeout. Duplicated and unexpected replies are skipped.
+     */
+    public Reply receive(long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        InetSocketAddress source = new InetSocketAddress(0);
+        while (true) {
+            long timeLeft = (deadline - System.nanoTime()) / 1000000L;
+            if (timeLeft <= 0) {
+                return null;
+            }
+            invoke(sSetsockoptTimeval, mFd, SOL_SOCKET, SO_RCVTIMEO,
+                   invoke(sTimevalFromMillis, timeLeft));
+            int length;
+            try {
+                length = (Integer) invoke(sRecvfrom, mFd, mReceiveBuffer, 0,
+                                          mReceiveBuffer.length, 0, source);
+            } catch (ErrnoIOException e) {
+                if (e.errno == EAGAIN) {
+                    return null;
+                }
+                throw e;
+            }
+            long now = System.nanoTime();
+            if (length < ICMP_HEADER_SIZE || (mReceiveBuffer[0] & 0xff) != ICMP_ECHO_REPLY) {
+                continue;
+            }
+            int seq = ((mReceiveBuffer[6] & 0xff) << 8) | (mReceiveBuffer[7] & 0xff);
+            Long sent = mPending.remove(seq);
+            if (sent == null) {
+                continue;
+            }
+            InetAddress from = source.getAddress();
+            return new Reply(seq, length, from != null ? from.getHostAddress() : null,
+                             (now - sent) / 1e6);
+        }
+    }
+
+    public void close() {
+        try {
+            invoke(sClose, mFd);
+        } catch (IOException e) {
+            Logger.w(sTag, "failed to close ICMP socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Failure of an android.system.Os call, with its errno.
+     */
+    private static class ErrnoIOException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int errno;
+
+        public ErrnoIOException(String message, int errno) {
+            super(message);
+            this.errno = errno;
+        }
+    }
+
+    private static Object invoke(Method method, Object... args) throws IOException {
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            int errno = -1;
+            try {
+                Field field = cause.getClass().getField("errno");
+                errno = field.getInt(cause);
+            } catch (Exception ignored) {
+                // Not an ErrnoException
+            }
+            throw new ErrnoIOException(method.getName() + " failed: " + cause.getMessage(), errno);
+        } catch (IllegalAccessException e) {
+            throw new IOException(method.getName() + " not accessible");
+        }
+    }
+}
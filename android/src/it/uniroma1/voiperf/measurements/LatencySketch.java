@@ -0,0 +1,239 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.util.DeltaCodec;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Mergeable streaming histogram of delays in milliseconds, used instead of keeping
+ * and sorting the whole series to get its percentiles.
+ *
+ * Buckets are log-linear, as in HDR histograms: values below 2 * SUB_BUCKETS have a
+ * bucket of their own, larger ones are split in SUB_BUCKETS buckets per power of two,
+ * so any quantile is within 1 / SUB_BUCKETS (about 3%) of the exact one. Negative
+ * values (one way transit times of unsynchronized clocks) use a mirrored set of
+ * buckets. Adding a value is constant time, and two sketches are merged by adding
+ * their bucket counts, so results of many sessions can be combined without the raw
+ * samples.
+ *
+ * In the measurement info a sketch is a JSON object with the exact count, sum, min
+ * and max, and the non empty buckets as two DeltaCodec series: their signed indexes
+ * (negative ones for negative values) in increasing order and their counts.
+ */
+public class LatencySketch {
+
+    public static final String NAME = "log_linear";
+
+    public static final String SKETCH_KEY = "sketch";
+    public static final String SUB_BUCKETS_KEY = "sub_buckets";
+    public static final String COUNT_KEY = "count";
+    public static final String SUM_KEY = "sum";
+    public static final String MIN_KEY = "min";
+    public static final String MAX_KEY = "max";
+    public static final String INDEXES_KEY = "indexes";
+    public static final String COUNTS_KEY = "counts";
+
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private long[] mPositive = new long[4 * SUB_BUCKETS];
+    private long[] mNegative = new long[0];
+    private long mCount = 0;
+    private long mSum = 0;
+    private double mSumSquares = 0.0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    public void add(long value, long count) {
+        if (value >= 0) {
+            int index = bucketIndex(value);
+            mPositive = ensureCapacity(mPositive, index);
+            mPositive[index] += count;
+        } else {
+            int index = bucketIndex(-value);
+            mNegative = ensureCapacity(mNegative, index);
+            mNegative[index] += count;
+        }
+        mCount += count;
+        mSum += value * count;
+        mSumSquares += (double) value * value * count;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     */
+    public void merge(LatencySketch other) {
+        mPositive = ensureCapacity(mPositive, other.mPositive.length - 1);
+        for (int i = 0; i < other.mPositive.length; ++i) {
+            mPositive[i] += other.mPositive[i];
+        }
+        mNegative = ensureCapacity(mNegative, other.mNegative.length - 1);
+        for (int i = 0; i < other.mNegative.length; ++i) {
+            mNegative[i] += other.mNegative[i];
+        }
+        mCount += other.mCount;
+        mSum += other.mSum;
+        mSumSquares += other.mSumSquares;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long count() {
+        return mCount;
+    }
+
+    public long min() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    public long max() {
+        return mCount > 0 ? mMax : 0;
+    }
+
+    public double mean() {
+        return mCount > 0 ? mSum / (double) mCount : 0.0;
+    }
+
+    public double standardDeviation() {
+        if (mCount == 0) {
+            return 0.0;
+        }
+        double mean = mean();
+        return Math.sqrt(Math.max(mSumSquares / mCount - mean * mean, 0.0));
+    }
+
+    /**
+     * Returns the value below which the given fraction of the values fall, as the
+     * middle of its bucket (clamped to the exact min and max).
+     */
+    public long quantile(double q) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * mCount);
+        rank = Math.min(Math.max(rank, 1), mCount);
+        long seen = 0;
+        for (int i = mNegative.length - 1; i >= 0; --i) {
+            seen += mNegative[i];
+            if (seen >= rank) {
+                return clamp(-bucketMiddle(i));
+            }
+        }
+        for (int i = 0; i < mPositive.length; ++i) {
+            seen += mPositive[i];
+            if (seen >= rank) {
+                return clamp(bucketMiddle(i));
+            }
+        }
+        return mMax;
+    }
+
+    private long clamp(long value) {
+        return Math.min(Math.max(value, mMin), mMax);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >> shift);
+    }
+
+    static long bucketLow(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private static long bucketMiddle(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return bucketLow(index) + ((1L << shift) - 1) / 2;
+    }
+
+    private static long[] ensureCapacity(long[] buckets, int index) {
+        if (index < buckets.length) {
+            return buckets;
+        }
+        long[] grown = new long[Math.max(index + 1, buckets.length * 2)];
+        System.arraycopy(buckets, 0, grown, 0, buckets.length);
+        return grown;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        int buckets = 0;
+        for (long c: mNegative) {
+            if (c > 0) buckets += 1;
+        }
+        for (long c: mPositive) {
+            if (c > 0) buckets += 1;
+        }
+        long[] indexes = new long[buckets];
+        long[] counts = new long[buckets];
+        int n = 0;
+        for (int i = mNegative.length - 1; i >= 0; --i) {
+            if (mNegative[i] > 0) {
+                indexes[n] = -(i + 1);
+                counts[n++] = mNegative[i];
+            }
+        }
+        for (int i = 0; i < mPositive.length; ++i) {
+            if (mPositive[i] > 0) {
+                indexes[n] = i;
+                counts[n++] = mPositive[i];
+            }
+        }
+
+        JSONObject o = new JSONObject();
+        o.put(SKETCH_KEY, NAME);
+        o.put(SUB_BUCKETS_KEY, SUB_BUCKETS);
+        o.put(COUNT_KEY, mCount);
+        o.put(SUM_KEY, mSum);
+        o.put(MIN_KEY, min());
+        o.put(MAX_KEY, max());
+        o.put(INDEXES_KEY, DeltaCodec.toJSON(indexes, buckets));
+        o.put(COUNTS_KEY, DeltaCodec.toJSON(counts, buckets));
+        return o;
+    }
+
+    /**
+     * Rebuilds a sketch serialized by toJSON(). The sum of squares is not
+     * serialized, so it is estimated from the buckets.
+     */
+    public static LatencySketch fromJSON(JSONObject o) {
+        if (NAME.equals(o.get(SKETCH_KEY)) == false ||
+            ((Number) o.get(SUB_BUCKETS_KEY)).intValue() != SUB_BUCKETS) {
+            throw new IllegalArgumentException("unsupported latency sketch " + o.get(SKETCH_KEY));
+        }
+        long[] indexes = DeltaCodec.fromJSON((JSONObject) o.get(INDEXES_KEY));
+        long[] counts = DeltaCodec.fromJSON((JSONObject) o.get(COUNTS_KEY));
+        if (indexes.length != counts.length) {
+            throw new IllegalArgumentException("corrupted latency sketch");
+        }
+        LatencySketch sketch = new LatencySketch();
+        for (int i = 0; i < indexes.length; ++i) {
+            long middle = indexes[i] >= 0 ? bucketMiddle((int) indexes[i]) :
+                                            -bucketMiddle((int) (-indexes[i] - 1));
+            sketch.add(middle, counts[i]);
+        }
+        // Keep the exact values
+        sketch.mSum = ((Number) o.get(SUM_KEY)).longValue();
+        if (sketch.mCount > 0) {
+            sketch.mMin = ((Number) o.get(MIN_KEY)).longValue();
+            sketch.mMax = ((Number) o.get(MAX_KEY)).longValue();
+        }
+        return sketch;
+    }
+}
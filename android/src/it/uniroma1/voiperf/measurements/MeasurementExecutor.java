@@ -0,0 +1,169 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * Runs the measurements on a thread of their own, instead of the serial AsyncTask
+ * executor shared with the UI, so that a measurement starts when it is scheduled.
+ *
+ * Measurements run one at a time. Each one is returned as a Future: cancelling it
+ * aborts the measurement (see VoIPerfMeasurement.abort()), which also happens when
+ * one of its phases takes longer than its timeout (see startPhase()).
+ */
+public class MeasurementExecutor {
+
+    private static final String sTag = MeasurementExecutor.class.getName();
+
+    private static MeasurementExecutor sInstance = null;
+
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mWatchdog;
+    private MeasurementFuture mCurrent = null;
+
+    /**
+     * Future of a measurement: cancelling it aborts the measurement, since
+     * interrupting its thread does not wake up blocking socket reads. A measurement
+     * cancelled before it started is cleaned up here, since it will never run.
+     */
+    private static class MeasurementFuture extends FutureTask<Void> {
+
+        private final VoIPerfMeasurement mMeasurement;
+
+        public MeasurementFuture(VoIPerfMeasurement measurement) {
+            super(measurement);
+            mMeasurement = measurement;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mMeasurement.abort("cancelled");
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                mMeasurement.cancelledBeforeStart();
+            }
+        }
+    }
+
+    /**
+     * A measurement phase with a timeout. Ending it before the timeout disarms it.
+     */
+    public class Phase {
+
+        private final String mName;
+        private final ScheduledFuture<?> mTimeout;
+
+        private Phase(final VoIPerfMeasurement measurement, String name, long timeoutMillis) {
+            mName = name;
+            mTimeout = mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Logger.w(sTag, "phase " + mName + " timed out");
+                    measurement.abort("phase " + mName + " timed out");
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public void end() {
+            mTimeout.cancel(false);
+        }
+    }
+
+    public static synchronized MeasurementExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new MeasurementExecutor();
+        }
+        return sInstance;
+    }
+
+    private MeasurementExecutor() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MeasurementExecutor");
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MeasurementWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a measurement. The measurement must have been prepared on the
+     * calling thread (see VoIPerfMeasurement.prepare()).
+     */
+    public synchronized Future<Void> submit(VoIPerfMeasurement measurement) {
+        MeasurementFuture future = new MeasurementFuture(measurement);
+        mCurrent = future;
+        mExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Cancels the last measurement submitted, if it has not finished yet.
+     */
+    public void cancelCurrent() {
+        // Cancelled without holding the lock: a measurement cancelled before it
+        // started reports to its scheduler, which may be submitting another one
+        MeasurementFuture current;
+        synchronized (this) {
+            current = mCurrent;
+            mCurrent = null;
+        }
+        if (current != null && current.isDone() == false) {
+            Logger.i(sTag, "cancelling the current measurement");
+            current.cancel(true);
+        }
+    }
+
+    /**
+     * Starts a phase of the given measurement, which is aborted if the phase does
+     * not end within the given time.
+     */
+    public Phase startPhase(VoIPerfMeasurement measurement, String name, long timeoutMillis) {
+        Logger.d(sTag, "starting phase " + name + " (timeout " + timeoutMillis + "ms)");
+        return new Phase(measurement, name, timeoutMillis);
+    }
+
+    /**
+     * Raises the priority of the calling thread to the one of the trace send and
+     * receive loops, returning the previous one.
+     */
+    public static int raiseTracePriority() {
+        int previous = Process.getThreadPriority(Process.myTid());
+        setThreadPriority(Config.TRACE_THREAD_PRIORITY);
+        return previous;
+    }
+
+    public static void setThreadPriority(int priority) {
+        try {
+            Process.setThreadPriority(priority);
+        } catch (SecurityException e) {
+            Logger.w(sTag, "cannot set thread priority " + priority + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Logger.w(sTag, "cannot set thread priority " + priority + ": " + e.getMessage());
+        }
+    }
+}
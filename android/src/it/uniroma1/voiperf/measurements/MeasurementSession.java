@@ -0,0 +1,349 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.measurements.VoIPerfMeasurement.Measurement;
+import it.uniroma1.voiperf.traces.MappedTrace;
+import it.uniroma1.voiperf.traces.SyntheticTrace;
+import it.uniroma1.voiperf.traces.Trace;
+import it.uniroma1.voiperf.util.JavaRandom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import android.content.Context;
+
+/**
+ * Pipelined measurement session.
+ *
+ * Instead of negotiating each trace in lock-step, the client announces the whole
+ * task list up front and the server allocates the UDP endpoints of all the traces
+ * at once. The server then pushes the statistics of each trace as soon as they are
+ * ready (preceded by the index of their task), and a reader thread collects them,
+ * so the client can start the next trace right after sending the measurement info
+ * of the previous one.
+ *
+ * Sessions are only used with servers announcing the FEATURE feature.
+ *
+ * With servers announcing FLOWS_FEATURE, consecutive tasks with the same group are
+ * run at the same time (e.g., an upload and a download trace, to emulate both
+ * directions of a call), each on its own thread with its own sender or receiver.
+ * The measurement info of each flow is preceded by the index of its task.
+ *
+ * With servers announcing SyntheticTrace.FEATURE, the random traces of the tasks
+ * with a codec profile are generated from a new seed, sent with the task, instead
+ * of being loaded from their trace file.
+ */
+public class MeasurementSession {
+
+    public static final String FEATURE = "session";
+    public static final String FLOWS_FEATURE = "flows";
+
+    private static final String sTag = MeasurementSession.class.getName();
+    
+    private static final JavaRandom sSeeds = new JavaRandom();
+
+    private final ControlChannel mCtrl;
+    private final boolean mFlows;
+    private final ArrayList<Measurement> mTasks;
+    private final Trace[] mTraces;
+    private final String[] mAddresses;
+    private final int[] mPorts;
+    private final TraceStatistics[] mStatistics;
+    private final CallQuality[] mQualities;
+    private int mStatisticsCount = 0;
+    private Exception mReaderError = null;
+
+    /**
+     * @param flows whether the server supports concurrent flows; if not, the tasks
+     *              of a group are run one after another
+     */
+    public MeasurementSession(ControlChannel ctrl, ArrayList<Measurement> tasks,
+                              boolean flows) {
+        mCtrl = ctrl;
+        mFlows = flows;
+        mTasks = tasks;
+        mTraces = new Trace[tasks.size()];
+        mAddresses = new String[tasks.size()];
+        mPorts = new int[tasks.size()];
+        mStatistics = new TraceStatistics[tasks.size()];
+        mQualities = new CallQuality[tasks.size()];
+    }
+
+    public int size() {
+        return mTasks.size();
+    }
+
+    /**
+     * Sends the task list to the server, reads back the endpoints allocated for
+     * each task and starts collecting the trace statistics.
+     */
+    @SuppressWarnings("unchecked")
+    public void start(Context context) throws MeasurementException {
+        try {
+            JSONArray taskList = new JSONArray();
+            for (int i = 0; i < mTasks.size(); ++i) {
+                Measurement task = mTasks.get(i);
+                JSONObject o = new JSONObject();
+                if (isSynthetic(task)) {
+                    SyntheticTrace trace = new SyntheticTrace(
+                        sSeeds.nextLong(), task.profile, Config.SYNTHETIC_TRACE_DURATION_MILLIS);
+                    mTraces[i] = trace;
+                    o.put("synthetic", trace.toJSON());
+                } else {
+                    String traceFilename = context.getFileStreamPath(task.traceFilename)
+                                                  .getAbsolutePath();
+                    mTraces[i] = loadTrace(task.measurementType, traceFilename);
+                }
+                o.put("type", task.measurementType);
+                o.put("trace_name", task.traceFilename);
+                o.put("trace_id", mTraces[i].id());
+                o.put("trace_size", mTraces[i].size());
+                if (mFlows && task.group != Measurement.NO_GROUP) {
+                    o.put("group", task.group);
+                }
+                taskList.add(o);
+            }
+
+            Logger.i(sTag, "starting session with " + mTasks.size() + " tasks");
+            mCtrl.writeLine(Config.MEASUREMENT_SESSION_MESSAGE);
+            mCtrl.writeJSON(taskList);
+
+            JSONArray endpoints = (JSONArray) mCtrl.readJSON();
+            if (endpoints == null || endpoints.size() != mTasks.size()) {
+                throw new MeasurementException("Invalid session endpoints received");
+            }
+            for (int i = 0; i < mTasks.size(); ++i) {
+                JSONObject endpoint = (JSONObject) endpoints.get(i);
+                mAddresses[i] = (String) endpoint.get("IP");
+                mPorts[i] = ((Number) endpoint.get("port")).intValue();
+                Logger.d(sTag, "task " + i + " endpoint is " + mAddresses[i] + ":" + mPorts[i]);
+            }
+        } catch (IOException e) {
+            throw new MeasurementException("Failed to start session: " + e.getMessage(), e);
+        } catch (ParseException e) {
+            throw new MeasurementException("Failed to parse session endpoints", e);
+        } catch (ClassCastException e) {
+            throw new MeasurementException("Invalid session endpoints received", e);
+        } catch (NullPointerException e) {
+            throw new MeasurementException("Invalid session endpoints received", e);
+        } catch (IllegalArgumentException e) {
+            throw new MeasurementException("Invalid synthetic trace profile", e);
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readStatistics();
+            }
+        }, "SessionStatisticsReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Runs all the tasks, concurrently for each group if the server supports it,
+     * without waiting for their statistics. Each task (or group) is a phase of the
+     * given measurement, aborted if it takes too long. The first task does not
+     * wait for the traceroute to find the first hop.
+     */
+    public void runTasks(FirstHop firstHop, VoIPerfMeasurement measurement)
+        throws MeasurementException {
+        int start = 0;
+        while (start < mTasks.size()) {
+            int end = start + 1;
+            int group = mTasks.get(start).group;
+            if (mFlows && group != Measurement.NO_GROUP) {
+                while (end < mTasks.size() && mTasks.get(end).group == group) {
+                    end += 1;
+                }
+            }
+            MeasurementExecutor.Phase phase = MeasurementExecutor.getInstance().startPhase(
+                measurement, "session task " + start, Config.TRACE_PHASE_TIMEOUT_MILLIS);
+            try {
+                String hop = firstHop.get(start > 0);
+                if (end - start == 1) {
+                    runTask(mCtrl, start, hop);
+                } else {
+                    runFlows(start, end, hop);
+                }
+            } finally {
+                phase.end();
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Runs the tasks with index from start to end (excluded) at the same time.
+     * Only the first flow pings the first hop.
+     */
+    private void runFlows(final int start, int end, final String firstHop)
+        throws MeasurementException {
+        Logger.i(sTag, "running session tasks " + start + "-" + (end - 1) + " concurrently");
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Math.min(end - start, Config.MAX_CONCURRENT_FLOWS));
+        try {
+            ArrayList<Future<Void>> flows = new ArrayList<Future<Void>>();
+            for (int i = start; i < end; ++i) {
+                final int index = i;
+                final ControlChannel ctrl = mCtrl.forFlow(Integer.toString(index));
+                flows.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws MeasurementException {
+                        runTask(ctrl, index, index == start ? firstHop : null);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> flow: flows) {
+                flow.get();
+            }
+        } catch (InterruptedException e) {
+            throw new MeasurementException("Session flows interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MeasurementException) {
+                throw (MeasurementException) e.getCause();
+            }
+            throw new MeasurementException("Session flow failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the task with the given index and sends its measurement info, without
+     * waiting for its statistics.
+     */
+    private void runTask(ControlChannel ctrl, int index, String firstHop)
+        throws MeasurementException {
+        Measurement task = mTasks.get(index);
+        String type = task.measurementType;
+        Logger.i(sTag, "running session task " + index + " (" + type + ")");
+        try {
+            if (type.equals(RTPTraceReceiver.TYPENAME)) {
+                mQualities[index] = RTPTraceReceiver.runTrace(
+                    ctrl, rtpTrace(index), mAddresses[index], mPorts[index],
+                    firstHop, task.engine);
+            } else if (type.equals(RandomTraceReceiver.TYPENAME)) {
+                mQualities[index] = RandomTraceReceiver.runTrace(
+                    ctrl, mTraces[index], mAddresses[index], mPorts[index],
+                    firstHop, task.engine);
+            } else if (type.equals(RTPTraceSender.TYPENAME)) {
+                mQualities[index] = RTPTraceSender.runTrace(
+                    ctrl, rtpTrace(index), mAddresses[index], mPorts[index],
+                    firstHop, task.engine);
+            } else if (type.equals(RandomTraceSender.TYPENAME)) {
+                mQualities[index] = RandomTraceSender.runTrace(
+                    ctrl, mTraces[index], mAddresses[index], mPorts[index],
+                    firstHop, task.engine);
+            }
+        } catch (IOException e) {
+            Logger.e(sTag, "Session task " + index + " failed: " + e.getMessage(), e);
+            throw new MeasurementException("Session task " + index + " failed", e);
+        } catch (InterruptedException e) {
+            throw new MeasurementException("Session task " + index + " interrupted", e);
+        }
+    }
+
+    /**
+     * Returns the call quality estimated while running the task with the given
+     * index, available as soon as the task has been run.
+     */
+    public CallQuality getCallQuality(int index) {
+        return mQualities[index];
+    }
+
+    /**
+     * Waits for the statistics of the task with the given index.
+     */
+    public synchronized TraceStatistics awaitStatistics(int index, long timeoutMillis)
+        throws MeasurementException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (mStatistics[index] == null) {
+                if (mReaderError != null) {
+                    throw new MeasurementException("Failed to read session statistics",
+                                                   mReaderError);
+                }
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    throw new MeasurementException("Timeout waiting for the statistics of " +
+                                                   "session task " + index);
+                }
+                wait(timeLeft);
+            }
+        } catch (InterruptedException e) {
+            throw new MeasurementException("Interrupted", e);
+        }
+        mStatistics[index].setCallQuality(mQualities[index]);
+        return mStatistics[index];
+    }
+
+    private void readStatistics() {
+        try {
+            while (mStatisticsCount < mTasks.size()) {
+                String line = mCtrl.readLine();
+                if (line == null) {
+                    throw new IOException("connection closed by the server");
+                }
+                int index = Integer.parseInt(line.trim());
+                TraceStatistics statistics = TraceSender.receiveTraceStatistics(mCtrl);
+                synchronized (this) {
+                    mStatistics[index] = statistics;
+                    mStatisticsCount += 1;
+                    notifyAll();
+                }
+                Logger.d(sTag, "statistics of session task " + index + " received");
+            }
+        } catch (Exception e) {
+            Logger.w(sTag, "session statistics reader failed: " + e.getMessage());
+            synchronized (this) {
+                mReaderError = e;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Whether the trace of the task is generated rather than loaded from its file.
+     */
+    private boolean isSynthetic(Measurement task) {
+        return task.profile != null && mCtrl.hasSyntheticTraces() &&
+               (task.measurementType.equals(RandomTraceSender.TYPENAME) ||
+                task.measurementType.equals(RandomTraceReceiver.TYPENAME));
+    }
+
+    /**
+     * Returns the trace of an RTP task, which the RTP engines load mapped.
+     */
+    private MappedTrace rtpTrace(int index) throws MeasurementException {
+        if (mTraces[index] instanceof MappedTrace == false) {
+            throw new MeasurementException("Session task " + index + " has no RTP trace");
+        }
+        return (MappedTrace) mTraces[index];
+    }
+
+    private static Trace loadTrace(String type, String traceFilename)
+        throws IOException, MeasurementException {
+        if (type.equals(RTPTraceReceiver.TYPENAME)) {
+            return RTPTraceReceiver.loadTrace(traceFilename);
+        } else if (type.equals(RandomTraceReceiver.TYPENAME)) {
+            return RandomTraceReceiver.loadTrace(traceFilename);
+        } else if (type.equals(RTPTraceSender.TYPENAME)) {
+            return RTPTraceSender.loadTrace(traceFilename);
+        } else if (type.equals(RandomTraceSender.TYPENAME)) {
+            return RandomTraceSender.loadTrace(traceFilename);
+        }
+        throw new MeasurementException("Unknown measurement type " + type);
+    }
+}
@@ -15,8 +15,21 @@ public class Measurements {
     public static final String SENT_TIMESTAMPS_INFO = "sent_timestamps";
     public static final String RECV_TIMESTAMPS_INFO = "recv_timestamps";
     public static final String RECV_SEQ_INFO = "recv_seq";
+    public static final String SEND_SCHEDULE_INFO = "send_schedule";
+    public static final String DUPLICATE_REPLIES_INFO = "duplicate_replies";
+    public static final String REORDERED_REPLIES_INFO = "reordered_replies";
+    public static final String DRAIN_MILLIS_INFO = "drain_millis";
+    public static final String CALL_QUALITY_INFO = "call_quality";
+    public static final String DELAY_SKETCH_INFO = "delay_sketch";
+    public static final String CLOCK_INFO = "clock";
+    public static final String CLOCK_SYNC_INFO = "clock_sync";
+    public static final String FIRST_SEQ_INFO = "first_seq";
     public static final int CONNECT_TIMEOUT = 60000;
     
+    /* Trace engines */
+    public static final int ENGINE_SOCKET = 0;
+    public static final int ENGINE_CHANNEL = 1;
+    
     private static final String sTag = Measurements.class.getName();
 
     public static Socket connectToMeasurementServer() throws MeasurementException {
@@ -0,0 +1,114 @@
+package it.uniroma1.voiperf.measurements;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the departure of trace packets against absolute deadlines.
+ *
+ * The pacer is anchored to System.nanoTime() when the first packet is sent: the
+ * deadline of each following packet is computed from its trace timestamp relative
+ * to the first one, so that sleeping overshoots do not accumulate along the trace.
+ * How the pacer waits for a deadline depends on the chosen mode:
+ *
+ *  - MODE_HYBRID parks the thread until the deadline is close, then spins;
+ *  - MODE_PARK only parks the thread (cheapest, least accurate);
+ *  - MODE_BUSY spins for the whole wait (most accurate, burns a core).
+ */
+public class PacketPacer {
+
+    public static final int MODE_HYBRID = 0;
+    public static final int MODE_PARK = 1;
+    public static final int MODE_BUSY = 2;
+
+    private final int mMode;
+    private final long mSpinThresholdNanos;
+
+    private long mOriginNanos = -1;
+    private double mOriginTs = 0.0;
+
+    public static PacketPacer create(int mode, long spinThresholdNanos) {
+        switch (mode) {
+            case MODE_HYBRID:
+            case MODE_PARK:
+            case MODE_BUSY:
+                return new PacketPacer(mode, spinThresholdNanos);
+            default:
+                throw new IllegalArgumentException("Unknown packet pacer mode " + mode);
+        }
+    }
+
+    public PacketPacer(int mode, long spinThresholdNanos) {
+        mMode = mode;
+        mSpinThresholdNanos = spinThresholdNanos;
+    }
+
+    public int mode() {
+        return mMode;
+    }
+
+    /**
+     * Anchors the schedule: the packet with trace timestamp ts is due now.
+     */
+    public void start(double ts) {
+        mOriginNanos = System.nanoTime();
+        mOriginTs = ts;
+    }
+
+    /**
+     * Returns the System.nanoTime() instant the schedule is anchored to.
+     */
+    public long originNanos() {
+        return mOriginNanos;
+    }
+
+    public boolean isStarted() {
+        return mOriginNanos >= 0;
+    }
+
+    /**
+     * Forgets the current anchor, so the pacer can be reused for another trace.
+     */
+    public void reset() {
+        mOriginNanos = -1;
+        mOriginTs = 0.0;
+    }
+
+    /**
+     * Returns the System.nanoTime() instant a packet with trace timestamp ts is due at.
+     */
+    public long deadlineNanos(double ts) {
+        return mOriginNanos + Math.round((ts - mOriginTs) * 1e9);
+    }
+
+    /**
+     * Waits until the packet with trace timestamp ts is due, anchoring the schedule
+     * on the first call. Returns the send time error in nanoseconds, that is, how
+     * late (positive) or early (negative) the caller has been woken up.
+     */
+    public long awaitPacket(double ts) throws InterruptedException {
+        if (mOriginNanos < 0) {
+            start(ts);
+            return 0;
+        }
+        long deadline = deadlineNanos(ts);
+        awaitDeadline(deadline);
+        return System.nanoTime() - deadline;
+    }
+
+    private void awaitDeadline(long deadline) throws InterruptedException {
+        long timeLeft = deadline - System.nanoTime();
+        while (timeLeft > 0) {
+            if (mMode == MODE_BUSY) {
+                // spin
+            } else if (mMode == MODE_PARK) {
+                LockSupport.parkNanos(timeLeft);
+            } else if (timeLeft > mSpinThresholdNanos) {
+                LockSupport.parkNanos(timeLeft - mSpinThresholdNanos);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            timeLeft = deadline - System.nanoTime();
+        }
+    }
+}
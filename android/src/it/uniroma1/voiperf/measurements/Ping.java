@@ -1,10 +1,14 @@
 package it.uniroma1.voiperf.measurements;
 
+import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.util.ProcessRunner;
 import it.uniroma1.voiperf.util.Utils;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,9 +46,17 @@ public class Ping implements Runnable {
     public static final String COUNT = "count";
     public static final String DESTINATION = "destination";
     public static final String DEADLINE = "deadline";
+    public static final String ENGINE = "engine";
+    
+    public static final String ENGINE_NATIVE = "icmp_socket";
+    public static final String ENGINE_BINARY = "binary";
     
     private static final String sTag = Ping.class.getName();
     
+    private static final Pattern sReplyPattern =
+        Pattern.compile("(\\S+) bytes from (\\S+\\.\\S+\\.\\S+\\.\\S+): " +
+                        "icmp_seq=(\\S+) ttl=(\\S+) time=(\\S+) ms");
+    
     private final String mDestination;
     
     private int mPacketSize = -1;
@@ -54,6 +66,7 @@ public class Ping implements Runnable {
     
     private JSONObject mResult;
     private MeasurementException mError;
+    private ArrayList<IcmpProber.Reply> mReplies = null;
     
     public Ping(String destination) {
         mDestination = destination;
@@ -87,6 +100,31 @@ public class Ping implements Runnable {
         return mError;
     }
     
+    /**
+     * Replies received, if the ping was run in-process, null otherwise.
+     */
+    public ArrayList<IcmpProber.Reply> getReplies() {
+        return mReplies;
+    }
+    
+    /**
+     * Whether at least one reply was received.
+     */
+    public boolean isReachable() {
+        if (mReplies != null) {
+            return mReplies.isEmpty() == false;
+        }
+        try {
+            String received = (String) ((JSONObject) mResult.get(PACKETS_STATS))
+                                                            .get(PACKETS_RECEIVED);
+            return Integer.parseInt(received) > 0;
+        } catch (NullPointerException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
     private String generateCommandLine(String destination) {
         String command = "ping";
         if (mPacketSize > 0)
@@ -103,76 +141,250 @@ public class Ping implements Runnable {
     
     public void run() {
         
-        mError = null;        
+        mError = null;
+        mReplies = null;
+        mResult = null;
+        // InetAddress would resolve a missing destination to the loopback address
+        if (mDestination == null || mDestination.length() == 0) {
+            mError = new MeasurementException("No destination to ping");
+            return;
+        }
+        if (Config.NATIVE_PROBES_ENABLED && IcmpProber.isSupported()) {
+            try {
+                runNative();
+                return;
+            } catch (IOException e) {
+                Logger.w(sTag, "In-process ping failed (" + e.getMessage() +
+                               "), falling back to the ping command");
+                mReplies = null;
+            }
+        }
+        runBinary();
+    }
+    
+    /**
+     * Sends the echo requests on an ICMP socket, with the same semantics as the
+     * options of the ping command: one every interval seconds (1 by default), until
+     * count have been sent or deadline seconds have passed. Without a deadline, the
+     * replies to the last request are waited for up to PING_REPLY_TIMEOUT_MILLIS.
+     */
+    private void runNative() throws IOException {
+        Logger.i(sTag, "Pinging " + mDestination + " in-process");
+        InetAddress destination = InetAddress.getByName(mDestination);
+        long intervalMillis = mInterval > 0 ? (long) (mInterval * 1000) : 1000;
+        int payloadSize = mPacketSize >= 0 ? mPacketSize : 56;
+        
+        long startTime = System.currentTimeMillis();
+        long deadline = mDeadline > 0 ? startTime + mDeadline * 1000L : Long.MAX_VALUE;
+        ArrayList<IcmpProber.Reply> replies = new ArrayList<IcmpProber.Reply>();
+        int sent = 0;
+        IcmpProber prober = IcmpProber.open();
+        try {
+            long nextSend = startTime;
+            long lastReplyDeadline = Long.MAX_VALUE;
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline || now >= lastReplyDeadline) {
+                    break;
+                }
+                if ((mCount < 0 || sent < mCount) && now >= nextSend) {
+                    prober.send(destination, sent + 1, payloadSize);
+                    sent += 1;
+                    nextSend += intervalMillis;
+                    if (mCount >= 0 && sent == mCount && mDeadline <= 0) {
+                        lastReplyDeadline = now + Config.PING_REPLY_TIMEOUT_MILLIS;
+                    }
+                    continue;
+                }
+                long wakeUp = Math.min(deadline, lastReplyDeadline);
+                if (mCount < 0 || sent < mCount) {
+                    wakeUp = Math.min(wakeUp, nextSend);
+                }
+                IcmpProber.Reply reply = prober.receive(wakeUp - now);
+                if (reply != null) {
+                    replies.add(reply);
+                    if (mCount >= 0 && replies.size() == mCount) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            prober.close();
+        }
+        long endTime = System.currentTimeMillis();
+        Logger.i(sTag, "Ping finished");
+        
+        mReplies = replies;
+        mResult = convertToJSON(replies, sent, mDestination, startTime, endTime);
+    }
+    
+    /**
+     * Returns how long the ping command may run before it is killed, or 0 if it
+     * runs until interrupted.
+     */
+    private long commandTimeoutMillis() {
+        if (mDeadline > 0) {
+            return mDeadline * 1000L + Config.COMMAND_TIMEOUT_MARGIN_MILLIS;
+        }
+        if (mCount >= 0) {
+            long intervalMillis = mInterval > 0 ? (long) (mInterval * 1000) : 1000;
+            return mCount * intervalMillis + Config.PING_REPLY_TIMEOUT_MILLIS +
+                   Config.COMMAND_TIMEOUT_MARGIN_MILLIS;
+        }
+        return 0;
+    }
+    
+    private void runBinary() {
+        
         String command = generateCommandLine(mDestination);
         try {
             Logger.i(sTag, "Running ping command: " + command);
             
+            // Replies are parsed as they arrive, the other lines at the end
+            final ArrayList<JSONObject> replies = new ArrayList<JSONObject>();
+            ProcessRunner runner = new ProcessRunner(command);
+            runner.setTimeout(commandTimeoutMillis());
+            runner.setMaxLines(Config.COMMAND_MAX_OUTPUT_LINES);
+            runner.setOutputListener(new ProcessRunner.LineListener() {
+                @Override
+                public void onLine(String line) {
+                    if (replies.size() < Config.COMMAND_MAX_OUTPUT_LINES) {
+                        replies.add(parseReply(line));
+                    }
+                }
+            });
+            
             long startTime = System.currentTimeMillis();
-            Process p = Runtime.getRuntime().exec(command);
-
-            // TODO: warning, this way of reading output from a process may deadlock
-            // implement a Popen.communicate()-like method in Utils and use that one instead
-            BufferedReader obr = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            StringBuffer osb = new StringBuffer();
-            String line;
-            while ((line = obr.readLine()) != null) {
-                osb.append(line).append("\n");
-            }
-            String output = osb.toString();
-
-            BufferedReader ebr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-            StringBuffer esb = new StringBuffer();
-            while((line = ebr.readLine()) != null) {
-                esb.append(line).append("\n");
-            }
-            String error = esb.toString();
-            ebr.close();
-            obr.close();
-
-            int retVal = p.waitFor();
+            ProcessRunner.Result result = runner.run();
             long endTime = System.currentTimeMillis();
-            Logger.i(sTag, "Ping finished");
+            Logger.i(sTag, "Ping finished" + (result.killed ? " (killed)" : ""));
 
-            mResult = convertToJSON(output, error, retVal, mDestination, startTime, endTime);
+            mResult = convertToJSON(result.output, replies, result.errorText(),
+                                    result.exitValue, mDestination, startTime, endTime);
+            mResult.put(ENGINE, ENGINE_BINARY);
         } catch (Exception e) {
             Logger.e(sTag, "Ping command error: " + e.getMessage());
             mError = new MeasurementException("Failed to run ping command: " + command, e);
         }
     }
     
+    /**
+     * Builds the same JSON object as the one parsed from the output of the ping
+     * command, with all the values as strings.
+     */
     @SuppressWarnings("unchecked")
-    private JSONObject convertToJSON(String output, String error, int retVal,
+    private JSONObject convertToJSON(ArrayList<IcmpProber.Reply> replies, int sent,
                                      String destination, long startTime, long endTime) {
         
+        JSONObject ping = new JSONObject();
+        
+        JSONArray rttList = new JSONArray();
+        double min = Double.MAX_VALUE, max = 0.0, sum = 0.0, sumSquares = 0.0;
+        for (IcmpProber.Reply r: replies) {
+            String rtt = String.format(Locale.US, "%.3f", r.rttMillis);
+            JSONObject reply = new JSONObject();
+            reply.put(LINE, r.bytes + " bytes from " + r.from + ": icmp_seq=" + r.seq +
+                            " time=" + rtt + " ms");
+            reply.put(BYTES, String.valueOf(r.bytes));
+            reply.put(FROM, r.from);
+            reply.put(ICMP_SEQ, String.valueOf(r.seq));
+            reply.put(TTL, null);
+            reply.put(RTT, rtt);
+            rttList.add(reply);
+            
+            min = Math.min(min, r.rttMillis);
+            max = Math.max(max, r.rttMillis);
+            sum += r.rttMillis;
+            sumSquares += r.rttMillis * r.rttMillis;
+        }
+        ping.put(REPLIES, rttList);
+        
+        int received = replies.size();
+        JSONObject packets_stats = new JSONObject();
+        packets_stats.put(LINE, null);
+        packets_stats.put(PACKETS_TRANSMITTED, String.valueOf(sent));
+        packets_stats.put(PACKETS_RECEIVED, String.valueOf(received));
+        packets_stats.put(PACKET_LOSS,
+                          String.valueOf(sent > 0 ? 100 * (sent - received) / sent : 0));
+        packets_stats.put(TIME_MS, String.valueOf(endTime - startTime));
+        ping.put(PACKETS_STATS, packets_stats);
+        
+        JSONObject rtt_stats = new JSONObject();
+        rtt_stats.put(LINE, null);
+        if (received > 0) {
+            double avg = sum / received;
+            double mdev = Math.sqrt(Math.max(sumSquares / received - avg * avg, 0.0));
+            rtt_stats.put(RTT_MIN, String.format(Locale.US, "%.3f", min));
+            rtt_stats.put(RTT_AVG, String.format(Locale.US, "%.3f", avg));
+            rtt_stats.put(RTT_MAX, String.format(Locale.US, "%.3f", max));
+            rtt_stats.put(RTT_MDEV, String.format(Locale.US, "%.3f", mdev));
+        } else {
+            rtt_stats.put(RTT_MIN, null);
+            rtt_stats.put(RTT_AVG, null);
+            rtt_stats.put(RTT_MAX, null);
+            rtt_stats.put(RTT_MDEV, null);
+        }
+        ping.put(RTT_STATS, rtt_stats);
+        
+        ping.put(RET, received > 0 ? 0 : 1);
+        ping.put(STDERR, "");
+        ping.put(START_TIME, Utils.ms_to_s(startTime));
+        ping.put(END_TIME, Utils.ms_to_s(endTime));
+        ping.put(INTERVAL, mInterval);
+        ping.put(PACKETSIZE, mPacketSize);
+        ping.put(COUNT, mCount);
+        ping.put(DEADLINE, mDeadline);
+        ping.put(DESTINATION, destination);
+        ping.put(ENGINE, ENGINE_NATIVE);
+        
+        return ping;
+    }
+    
+    /**
+     * Parses a line of the output of the ping command as a reply. Lines that do
+     * not match are kept with null fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject parseReply(String line) {
+        JSONObject reply = new JSONObject();
+        Matcher match = sReplyPattern.matcher(line);
+        if (match.find()) {
+            reply.put(LINE, match.group(0));
+            reply.put(BYTES, match.group(1));
+            reply.put(FROM, match.group(2));
+            reply.put(ICMP_SEQ, match.group(3));
+            reply.put(TTL, match.group(4));
+            reply.put(RTT, match.group(5));
+        } else {
+            reply.put(LINE, line);
+            reply.put(BYTES, null);
+            reply.put(FROM, null);
+            reply.put(ICMP_SEQ, null);
+            reply.put(TTL, null);
+            reply.put(RTT, null);
+        }
+        return reply;
+    }
+    
+    /**
+     * @param parsedLines the output lines, as parsed by parseReply()
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject convertToJSON(ArrayList<String> output, ArrayList<JSONObject> parsedLines,
+                                     String error, int retVal, String destination,
+                                     long startTime, long endTime) {
+        
         Logger.d(sTag, "convertToJSON");
 
         JSONObject ping = new JSONObject();
-        String lines[] = output.split("\\n");
+        String lines[] = output.toArray(new String[output.size()]);
         
-        // Parse the rtt of the replied pings
+        // The rtt of the replied pings, between the header and the statistics
         JSONArray rttList = new JSONArray();
-        Pattern reply_re = Pattern.compile("(\\S+) bytes from (\\S+\\.\\S+\\.\\S+\\.\\S+): " +
-                                           "icmp_seq=(\\S+) ttl=(\\S+) time=(\\S+) ms");
         for (int i = 1; i < lines.length - 4; ++i) {
-            JSONObject reply = new JSONObject();
-            
-            Matcher match = reply_re.matcher(lines[i]);
-            if (match != null && match.find()) {
-                reply.put(LINE, match.group(0));
-                reply.put(BYTES, match.group(1));
-                reply.put(FROM, match.group(2));
-                reply.put(ICMP_SEQ, match.group(3));
-                reply.put(TTL, match.group(4));
-                reply.put(RTT, match.group(5));
-            } else {
+            JSONObject reply = parsedLines.get(i);
+            if (reply.get(RTT) == null) {
                 Logger.w(sTag, "\"" + lines[i] + "\" Not Matched");
-                reply.put(LINE, lines[i]);
-                reply.put(BYTES, null);
-                reply.put(FROM, null);
-                reply.put(ICMP_SEQ, null);
-                reply.put(TTL, null);
-                reply.put(RTT, null);
             }
             rttList.add(reply);
         }
@@ -2,16 +2,13 @@ package it.uniroma1.voiperf.measurements;
 
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.traces.MappedTrace;
 import it.uniroma1.voiperf.traces.RTPHeader;
-import it.uniroma1.voiperf.traces.RTPTrace;
-import it.uniroma1.voiperf.util.Utils;
+import it.uniroma1.voiperf.traces.TraceCache;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
-import java.util.ArrayList;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class RTPTraceReceiver extends TraceReceiver {
@@ -20,111 +17,180 @@ public class RTPTraceReceiver extends TraceReceiver {
     
     private static final String sTag = RTPTraceReceiver.class.getName();
 
-    private final RTPTrace mTrace;
+    private final MappedTrace mTrace;
     
-    private ArrayList<Long> mRecvTimestamps;
-    private ArrayList<Integer> mRecvSequenceNumbers;
+    private ArrivalLog mArrivals;
+    private CallQuality mQuality;
+    private long[] mSendOffsets;
+    private RTPHeader.SequenceTracker mTracker;
     
-    @SuppressWarnings({ "unchecked" })
-    public static TraceStatistics receiveTrace(DataOutputStream ctrlOut, DataInputStream ctrlIn,
-                                               String traceFilename, String firstHop)
+    public static TraceStatistics receiveTrace(ControlChannel ctrl, String traceFilename,
+                                               String firstHop, int engine)
         throws MeasurementException {
         
         try {
             // Load the trace and send its id to the server
-            RTPTrace trace = RTPTrace.loadFromFile(traceFilename);
+            MappedTrace trace = loadTrace(traceFilename);
             
             Logger.i(sTag, "sending trace info");
-            TraceReceiver.sendTraceInfo(ctrlOut, traceFilename, trace);
+            TraceReceiver.sendTraceInfo(ctrl, traceFilename, trace);
             
             // Read the address and port we have to connect to
-            String udpAddress = ctrlIn.readLine();
+            String udpAddress = ctrl.readLine();
             Logger.i(sTag, "udpAddress is " + udpAddress);
-            int udpPort = Integer.parseInt(ctrlIn.readLine());
+            int udpPort = Integer.parseInt(ctrl.readLine());
             Logger.i(sTag, "trace will be sent to " + udpAddress + ":" + udpPort);
             
-            // Start a concurrent ping to the first hop
-            Thread pingFirstHopThread = null;
-            Ping pingFirstHop = null;
-            if (firstHop != null) {
-                Logger.i(sTag, "starting first hop ping to " + firstHop);
-                pingFirstHop = new Ping(firstHop);
-                pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
-                pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
-                pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
-                              Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
-                pingFirstHopThread = new Thread(pingFirstHop);
-                pingFirstHopThread.start();
-            }
-            
-            // Send the trace packets. This is blocking.
-            RTPTraceReceiver receiver = new RTPTraceReceiver(trace, udpAddress, udpPort);
-            receiver.run();
-            
-            // Trace sent, wait for the ping command to finish
-            if (pingFirstHopThread != null) {
-                pingFirstHopThread.join();
-            }
-            
-            // Send client info about the measurement
-            JSONObject measurementInfo = new JSONObject();
-            JSONObject localAddress = TraceReceiver.getLocalAddress(receiver.getLocalAddressUsed(),
-                                                                    receiver.getLocalPortUsed());
-            measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
-            JSONArray recvTimestamps = Utils.toJSONArray(receiver.getRecvTimestamps());
-            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, recvTimestamps);
-            JSONArray recvSequenceNumbers = Utils.toJSONArray(receiver.getRecvSequenceNumbers());
-            measurementInfo.put(Measurements.RECV_SEQ_INFO, recvSequenceNumbers);
-            if (pingFirstHop != null) {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
-            } else {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, null);
-            }
-            Utils.sendCompressedJSON(ctrlOut, measurementInfo);
+            CallQuality quality = runTrace(ctrl, trace, udpAddress, udpPort, firstHop, engine);
             
             // Receive some statistics about the trace we just sent (e.g., packet loss, rate etc)
-            return TraceReceiver.receiveTraceStatistics(ctrlIn);
+            TraceStatistics statistics = TraceReceiver.receiveTraceStatistics(ctrl);
+            statistics.setCallQuality(quality);
+            return statistics;
         } catch (Exception e) {
             Logger.e(sTag, "Measurement failed: " + e.getMessage(), e);
             throw new MeasurementException("RTPTrace measurement failed");
         }
     }
     
-    public RTPTraceReceiver(RTPTrace trace, String address, int port) {
+    /**
+     * Loads the trace from the trace cache.
+     */
+    public static MappedTrace loadTrace(String traceFilename)
+        throws IOException, MeasurementException {
+        MappedTrace trace = TraceCache.getInstance().get(traceFilename);
+        if (trace.hasRTPHeaders() == false) {
+            throw new MeasurementException("Trace " + traceFilename + " is not an RTP trace");
+        }
+        return trace;
+    }
+    
+    /**
+     * Runs the trace against the given UDP endpoint and sends the client side
+     * measurement info to the server. Trace statistics are not read here: in
+     * session mode they are pushed asynchronously by the server. Returns the call
+     * quality estimated while the trace was running.
+     */
+    @SuppressWarnings({ "unchecked" })
+    public static CallQuality runTrace(ControlChannel ctrl, MappedTrace trace,
+                                String udpAddress, int udpPort, String firstHop, int engine)
+        throws IOException, InterruptedException, MeasurementException {
+        
+        // Start a concurrent ping to the first hop
+        Thread pingFirstHopThread = null;
+        Ping pingFirstHop = null;
+        if (firstHop != null) {
+            Logger.i(sTag, "starting first hop ping to " + firstHop);
+            pingFirstHop = new Ping(firstHop);
+            pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
+            pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
+            pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
+                          Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
+            pingFirstHopThread = new Thread(pingFirstHop);
+            pingFirstHopThread.start();
+        }
+        
+        // Send the trace packets. This is blocking.
+        TimestampSource clock = new TimestampSource(ctrl.hasMicroTimestamps());
+        ClockSync sync = ctrl.hasClockSync() ? new ClockSync(clock) : null;
+        RTPTraceReceiver receiver = new RTPTraceReceiver(trace, udpAddress, udpPort);
+        receiver.setEngine(engine);
+        receiver.setTimestampSource(clock);
+        receiver.setClockSync(sync);
+        receiver.run();
+        
+        // Trace sent, wait for the ping command to finish
+        if (pingFirstHopThread != null) {
+            pingFirstHopThread.join();
+        }
+        
+        // Send client info about the measurement
+        JSONObject measurementInfo = new JSONObject();
+        JSONObject localAddress = TraceReceiver.getLocalAddress(receiver.getLocalAddressUsed(),
+                                                                receiver.getLocalPortUsed());
+        measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
+        measurementInfo.put(Measurements.DRAIN_MILLIS_INFO, receiver.getDrainMillis());
+        measurementInfo.put(Measurements.CLOCK_INFO, clock.toJSON());
+        if (sync != null) {
+            measurementInfo.put(Measurements.CLOCK_SYNC_INFO, sync.toJSON());
+        }
+        ArrivalLog arrivals = receiver.getArrivalLog();
+        if (ctrl.hasDeltaEncoding()) {
+            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, arrivals.timestampsEncoded());
+            measurementInfo.put(Measurements.RECV_SEQ_INFO, arrivals.sequenceNumbersEncoded());
+        } else {
+            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, arrivals.timestampsJSON());
+            measurementInfo.put(Measurements.RECV_SEQ_INFO, arrivals.sequenceNumbersJSON());
+        }
+        if (pingFirstHop != null) {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
+        } else {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, null);
+        }
+        CallQuality quality = receiver.getCallQuality();
+        measurementInfo.put(Measurements.CALL_QUALITY_INFO, quality.toJSON());
+        measurementInfo.put(Measurements.DELAY_SKETCH_INFO, quality.delaySketch().toJSON());
+        ctrl.writeCompressedJSON(measurementInfo);
+        ArrivalLog.recycle(arrivals);
+        return quality;
+    }
+    
+    public RTPTraceReceiver(MappedTrace trace, String address, int port) {
         super(trace, address, port);
         mTrace = trace;
     }
     
-    public ArrayList<Long> getRecvTimestamps() {
-        return mRecvTimestamps;
+    public ArrivalLog getArrivalLog() {
+        return mArrivals;
     }
     
-    public ArrayList<Integer> getRecvSequenceNumbers() {
-        return mRecvSequenceNumbers;
+    public CallQuality getCallQuality() {
+        return mQuality;
     }
     
     @Override
     protected void sendRepliesInit() {
         // We expect to receive somewhere around mTrace.sequenceNumberRange() packets
-        // (something less or a little more, depending on packet loss and/or packet duplication)
-        mRecvTimestamps = new ArrayList<Long>(mTrace.sequenceNumberRange());
-        mRecvSequenceNumbers = new ArrayList<Integer>(mTrace.sequenceNumberRange());  
+        // (something less or a little more, depending on packet loss and/or packet duplication),
+        // which are about as many as the packets of the trace since sequence numbers are
+        // extended (see MappedTrace.sequenceNumber())
+        mArrivals = ArrivalLog.obtain(mTrace.sequenceNumberRange());
+        mQuality = new CallQuality(mTrace.sequenceNumberRange(), false);
+        
+        // Offset of each packet from the start of the trace, by sequence number,
+        // from which the transit time of the packets is computed
+        TimestampSource clock = getTimestampSource();
+        mSendOffsets = new long[mTrace.sequenceNumberRange()];
+        for (int i = 0; i < mTrace.size(); ++i) {
+            mSendOffsets[mTrace.sequenceNumber(i) - mTrace.minSequenceNumber()] =
+                clock.fromSeconds(mTrace.ts(i));
+        }
+        
+        // The server sends the packets in the order of the trace, so received sequence
+        // numbers are extended as the trace ones, starting from its first packet
+        mTracker = mTrace.size() > 0 ?
+                   new RTPHeader.SequenceTracker(mTrace.sequenceNumber(0)) :
+                   new RTPHeader.SequenceTracker();
     }
     
     @Override
     protected boolean packetReceived(DatagramPacket receivedPacket,
                                      long now, DatagramPacket replyPacket) {
-        mRecvTimestamps.add(Long.valueOf(now));
         int seq;
         try {
             seq = RTPHeader.getSequenceNumber(receivedPacket.getData(), receivedPacket.getLength());
         } catch (IllegalArgumentException e) {
             // RTP traces should (be definition) always store an RTP header
             Logger.w(sTag, "received packet with no valid RTP header: " + e.getMessage());
-            mRecvSequenceNumbers.add(Integer.valueOf(-1));
+            mArrivals.add(now, -1);
             return false;
         }
-        mRecvSequenceNumbers.add(Integer.valueOf(seq));
+        seq = mTracker.extend(seq);
+        mArrivals.add(now, seq);
+        int index = seq - mTrace.minSequenceNumber();
+        if (index >= 0 && index < mSendOffsets.length) {
+            mQuality.add(index, getTimestampSource().toMillis(now - mSendOffsets[index]));
+        }
         System.arraycopy(receivedPacket.getData(), 0, replyPacket.getData(), 0, RTPHeader.SIZE);
         replyPacket.setLength(RTPHeader.SIZE);
         return true;
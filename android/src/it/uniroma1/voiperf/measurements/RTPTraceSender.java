@@ -2,16 +2,14 @@ package it.uniroma1.voiperf.measurements;
 
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.traces.MappedTrace;
 import it.uniroma1.voiperf.traces.RTPHeader;
-import it.uniroma1.voiperf.traces.RTPTrace;
-import it.uniroma1.voiperf.traces.Trace;
-import it.uniroma1.voiperf.util.Utils;
+import it.uniroma1.voiperf.traces.TraceCache;
+import it.uniroma1.voiperf.traces.TraceCursor;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class RTPTraceSender extends TraceSender {
@@ -20,77 +18,124 @@ public class RTPTraceSender extends TraceSender {
     
     private static final String sTag = RTPTraceSender.class.getName();
 
-    private final RTPTrace mTrace;
+    private final MappedTrace mTrace;
     
+    private byte[] mPayload;
     private long[] mSentTimestamps;
     private RTPHeader[] mReplies;
     private long[] mRepliesTimestamps;
+    private RTPHeader.SequenceTracker mReplyTracker;
+    private CallQuality mQuality;
     
-    @SuppressWarnings({ "unchecked" })
-    public static TraceStatistics sendTrace(DataOutputStream ctrlOut, DataInputStream ctrlIn,
-                                            String traceFilename, String firstHop)
+    public static TraceStatistics sendTrace(ControlChannel ctrl, String traceFilename,
+                                            String firstHop, int engine)
         throws MeasurementException {
         
         try {
             // Load the trace and send its id to the server
-            RTPTrace trace = RTPTrace.loadFromFile(traceFilename);
+            MappedTrace trace = loadTrace(traceFilename);
             
             Logger.i(sTag, "sending trace info");
-            TraceSender.sendTraceInfo(ctrlOut, trace);
+            TraceSender.sendTraceInfo(ctrl, trace);
             
             // Read the address and port we have to connect to
-            String udpAddress = ctrlIn.readLine();
-            int udpPort = Integer.parseInt(ctrlIn.readLine());
+            String udpAddress = ctrl.readLine();
+            int udpPort = Integer.parseInt(ctrl.readLine());
             Logger.i(sTag, "trace will be sent to " + udpAddress + ":" + udpPort);
             
-            // Start a concurrent ping to the first hop
-            Thread pingFirstHopThread = null;
-            Ping pingFirstHop = null;
-            if (firstHop != null) {
-                Logger.i(sTag, "starting first hop ping to " + firstHop);
-                pingFirstHop = new Ping(firstHop);
-                pingFirstHop.setInterval(1.0 / Config.FIRST_HOP_PING_PER_SECOND);
-                pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
-                pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
-                              Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
-                pingFirstHopThread = new Thread(pingFirstHop);
-                pingFirstHopThread.start();
-            }
-            
-            // Send the trace packets. This is blocking.
-            RTPTraceSender sender = new RTPTraceSender(trace, udpAddress, udpPort);
-            sender.run();
-            
-            // Trace sent, wait for the ping command to finish
-            if (pingFirstHopThread != null) {
-                pingFirstHopThread.join();
-            }
-            
-            // Send client info about the measurement
-            JSONObject measurementInfo = new JSONObject();
-            JSONObject localAddress = TraceSender.getLocalAddress(sender.getLocalAddressUsed(),
-                                                                  sender.getLocalPortUsed());
-            measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
-            JSONArray traceRTTs = Utils.toJSONArray(sender.getRTTs());
-            measurementInfo.put(Measurements.TRACE_RTTS_INFO, traceRTTs);
-            JSONArray sentTimestamps = Utils.toJSONArray(sender.getSentTimestamps());
-            measurementInfo.put(Measurements.SENT_TIMESTAMPS_INFO, sentTimestamps);
-            if (pingFirstHop != null) {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
-            } else {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, null);
-            }
-            Utils.sendCompressedJSON(ctrlOut, measurementInfo);
+            CallQuality quality = runTrace(ctrl, trace, udpAddress, udpPort, firstHop, engine);
             
             // Receive some statistics about the trace we just sent (e.g., packet loss, rate etc)
-            return TraceSender.receiveTraceStatistics(ctrlIn);
+            TraceStatistics statistics = TraceSender.receiveTraceStatistics(ctrl);
+            statistics.setCallQuality(quality);
+            return statistics;
         } catch (Exception e) {
             Logger.e(sTag, "Measurement failed: " + e.getMessage(), e);
             throw new MeasurementException("RTPTrace measurement failed");
         }
     }
     
-    public RTPTraceSender(RTPTrace trace, String address, int port) {
+    /**
+     * Loads the trace from the trace cache.
+     */
+    public static MappedTrace loadTrace(String traceFilename)
+        throws IOException, MeasurementException {
+        MappedTrace trace = TraceCache.getInstance().get(traceFilename);
+        if (trace.hasRTPHeaders() == false) {
+            throw new MeasurementException("Trace " + traceFilename + " is not an RTP trace");
+        }
+        return trace;
+    }
+    
+    /**
+     * Runs the trace against the given UDP endpoint and sends the client side
+     * measurement info to the server. Trace statistics are not read here: in
+     * session mode they are pushed asynchronously by the server. Returns the call
+     * quality estimated while the trace was running.
+     */
+    @SuppressWarnings({ "unchecked" })
+    public static CallQuality runTrace(ControlChannel ctrl, MappedTrace trace,
+                                String udpAddress, int udpPort, String firstHop, int engine)
+        throws IOException, InterruptedException, MeasurementException {
+        
+        // Start a concurrent ping to the first hop
+        Thread pingFirstHopThread = null;
+        Ping pingFirstHop = null;
+        if (firstHop != null) {
+            Logger.i(sTag, "starting first hop ping to " + firstHop);
+            pingFirstHop = new Ping(firstHop);
+            pingFirstHop.setInterval(1.0 / Config.FIRST_HOP_PING_PER_SECOND);
+            pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
+            pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
+                          Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
+            pingFirstHopThread = new Thread(pingFirstHop);
+            pingFirstHopThread.start();
+        }
+        
+        // Send the trace packets. This is blocking.
+        TimestampSource clock = new TimestampSource(ctrl.hasMicroTimestamps());
+        ClockSync sync = ctrl.hasClockSync() ? new ClockSync(clock) : null;
+        RTPTraceSender sender = new RTPTraceSender(trace, udpAddress, udpPort);
+        sender.setEngine(engine);
+        sender.setTimestampSource(clock);
+        sender.setClockSync(sync);
+        sender.run();
+        
+        // Trace sent, wait for the ping command to finish
+        if (pingFirstHopThread != null) {
+            pingFirstHopThread.join();
+        }
+        
+        // Send client info about the measurement
+        JSONObject measurementInfo = new JSONObject();
+        JSONObject localAddress = TraceSender.getLocalAddress(sender.getLocalAddressUsed(),
+                                                              sender.getLocalPortUsed());
+        measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
+        measurementInfo.put(Measurements.DRAIN_MILLIS_INFO, sender.getDrainMillis());
+        measurementInfo.put(Measurements.CLOCK_INFO, clock.toJSON());
+        if (sync != null) {
+            measurementInfo.put(Measurements.CLOCK_SYNC_INFO, sync.toJSON());
+        }
+        measurementInfo.put(Measurements.FIRST_SEQ_INFO, trace.minSequenceNumber());
+        measurementInfo.put(Measurements.TRACE_RTTS_INFO,
+                            ctrl.encodeSeries(sender.getRTTs()));
+        measurementInfo.put(Measurements.SENT_TIMESTAMPS_INFO,
+                            ctrl.encodeSeries(sender.getSentTimestamps()));
+        measurementInfo.put(Measurements.SEND_SCHEDULE_INFO,
+                            sender.getSendSchedule().toJSON());
+        if (pingFirstHop != null) {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
+        } else {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, null);
+        }
+        CallQuality quality = sender.getCallQuality();
+        measurementInfo.put(Measurements.CALL_QUALITY_INFO, quality.toJSON());
+        measurementInfo.put(Measurements.DELAY_SKETCH_INFO, quality.delaySketch().toJSON());
+        ctrl.writeCompressedJSON(measurementInfo);
+        return quality;
+    }
+    
+    public RTPTraceSender(MappedTrace trace, String address, int port) {
         super(trace, address, port);
         mTrace = trace;
     }
@@ -107,6 +152,10 @@ public class RTPTraceSender extends TraceSender {
         return RTTs;
     }
     
+    public CallQuality getCallQuality() {
+        return mQuality;
+    }
+    
     public long[] getSentTimestamps() {
         return mSentTimestamps;
     }
@@ -121,52 +170,73 @@ public class RTPTraceSender extends TraceSender {
     
     @Override
     protected void receiveRepliesInit() {
+        // Replies are indexed by extended sequence number (see MappedTrace.sequenceNumber()),
+        // so these arrays are about as long as the trace
         mReplies = new RTPHeader[mTrace.sequenceNumberRange()];
         mRepliesTimestamps = new long[mTrace.sequenceNumberRange()];
+        mQuality = new CallQuality(mTrace.sequenceNumberRange(), true);
+        mReplyTracker = mTrace.size() > 0 ?
+                        new RTPHeader.SequenceTracker(mTrace.sequenceNumber(0)) :
+                        new RTPHeader.SequenceTracker();
     }
     
     @Override
-    protected void replyReceived(DatagramPacket packet, long now) {
+    protected long replyReceived(DatagramPacket packet, long now) {
         RTPHeader header;
         try {
             header = RTPHeader.load(packet.getData(), packet.getLength());
         } catch (IllegalArgumentException e) {
             Logger.w(sTag, "received packet with no valid RTP header: " + e.getMessage());
-            return;
+            return NOT_A_REPLY;
         }
 
-        int seq = header.sequenceNumber() - mTrace.minSequenceNumber();
-        if (seq >= mReplies.length) {
+        int extended = mReplyTracker.extend(header.sequenceNumber());
+        int seq = extended - mTrace.minSequenceNumber();
+        if (seq < 0 || seq >= mReplies.length) {
             Logger.w(sTag,
-                     "BUG: received packet with invalid sequence number (got" +
-                     header.sequenceNumber() + ")");
-            return;
+                     "BUG: received packet with invalid sequence number (got " +
+                     header.sequenceNumber() + ", extended to " + extended + ")");
+            return NOT_A_REPLY;
+        }
+        if (mReplies[seq] != null) {
+            return NOT_A_REPLY;
         }
-        if (mReplies[seq] == null) {
-            mReplies[seq] = header;
-            mRepliesTimestamps[seq] = now;
+        mReplies[seq] = header;
+        mRepliesTimestamps[seq] = now;
+        long[] sentTimestamps = mSentTimestamps;
+        if (sentTimestamps == null || sentTimestamps[seq] == 0) {
+            return RTT_UNKNOWN;
         }
+        double rttMillis = getTimestampSource().toMillis(now - sentTimestamps[seq]);
+        mQuality.add(seq, rttMillis);
+        return Math.round(rttMillis);
     }
     
     @Override
     protected void sendPacketsInit() {
         mSentTimestamps = new long[mTrace.sequenceNumberRange()];
+        mPayload = new byte[Config.MAX_TRACE_PACKET_SIZE];
     }
     
     @Override
-    protected boolean preparePacket(DatagramPacket rawPacket, Trace.Packet tracePacket) {
+    protected boolean preparePacket(DatagramPacket rawPacket, TraceCursor cursor) {
         
-        RTPTrace.Packet rtpPacket = (RTPTrace.Packet) tracePacket;
-        
-        int seq = rtpPacket.getHeader().sequenceNumber() - mTrace.minSequenceNumber();
+        int index = cursor.index();
+        int seq = mTrace.sequenceNumber(index) - mTrace.minSequenceNumber();
         if (seq >= mSentTimestamps.length) {
             Logger.w(sTag,
                      "BUG: tried to send packet with invalid sequence number ("+ seq +")");
             return false;
         }
+        int size = cursor.packetSize();
+        if (mPayload.length < size) {
+            Logger.w(sTag, "BUG: packet " + index + " of trace is too big for our buffer");
+            return false;
+        }
         
-        mSentTimestamps[seq] = System.currentTimeMillis();
-        rawPacket.setData(rtpPacket.payload(), 0, rtpPacket.size());
+        mSentTimestamps[seq] = getTimestampSource().now();
+        cursor.copyPayload(mPayload, 0);
+        rawPacket.setData(mPayload, 0, size);
         
         return true;
     }
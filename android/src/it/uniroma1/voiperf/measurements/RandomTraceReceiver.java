@@ -2,16 +2,14 @@ package it.uniroma1.voiperf.measurements;
 
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.traces.MappedTrace;
 import it.uniroma1.voiperf.traces.PacketFooter;
 import it.uniroma1.voiperf.traces.Trace;
-import it.uniroma1.voiperf.util.Utils;
+import it.uniroma1.voiperf.traces.TraceCache;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
-import java.util.ArrayList;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class RandomTraceReceiver extends TraceReceiver {
@@ -20,95 +18,135 @@ public class RandomTraceReceiver extends TraceReceiver {
     
     private static final String sTag = RandomTraceReceiver.class.getName();
 
-    private ArrayList<Long> mRecvTimestamps;
-    private ArrayList<Integer> mRecvSequenceNumbers;
+    private ArrivalLog mArrivals;
+    private CallQuality mQuality;
     
-    @SuppressWarnings({ "unchecked" })
-    public static TraceStatistics receiveTrace(DataOutputStream ctrlOut, DataInputStream ctrlIn,
-                                               String traceFilename, String firstHop)
+    public static TraceStatistics receiveTrace(ControlChannel ctrl, String traceFilename,
+                                               String firstHop, int engine)
         throws MeasurementException {
         
         try {
             // Load the trace and send its id to the server
-            Trace trace = Trace.loadFromFile(traceFilename);
+            MappedTrace trace = loadTrace(traceFilename);
 
             Logger.i(sTag, "sending trace info");
-            TraceReceiver.sendTraceInfo(ctrlOut, traceFilename, trace);
+            TraceReceiver.sendTraceInfo(ctrl, traceFilename, trace);
             
             // Read the address and port we have to connect to
-            String udpAddress = ctrlIn.readLine();
-            int udpPort = Integer.parseInt(ctrlIn.readLine());
+            String udpAddress = ctrl.readLine();
+            int udpPort = Integer.parseInt(ctrl.readLine());
             Logger.i(sTag, "trace will be sent to " + udpAddress + ":" + udpPort);
             
-            // Start a concurrent ping to the first hop
-            Thread pingFirstHopThread = null;
-            Ping pingFirstHop = null;
-            if (firstHop != null) {
-                Logger.i(sTag, "starting first hop ping to " + firstHop);
-                pingFirstHop = new Ping(firstHop);
-                pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
-                pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
-                pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
-                              Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
-                pingFirstHopThread = new Thread(pingFirstHop);
-                pingFirstHopThread.start();
-            }
-            
-            // Send the trace packets. This is blocking.
-            RandomTraceReceiver receiver = new RandomTraceReceiver(trace, udpAddress, udpPort);
-            receiver.run();
-            
-            // Trace sent, wait for the ping command to finish
-            if (pingFirstHopThread != null) {
-                pingFirstHopThread.join();
-            }
-            
-            // Send client info about the measurement
-            JSONObject measurementInfo = new JSONObject();
-            JSONObject localAddress = TraceReceiver.getLocalAddress(receiver.getLocalAddressUsed(),
-                                                                    receiver.getLocalPortUsed());
-            measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
-            JSONArray recvTimestamps = Utils.toJSONArray(receiver.getRecvTimestamps());
-            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, recvTimestamps);
-            JSONArray recvSequenceNumbers = Utils.toJSONArray(receiver.getRecvSequenceNumbers());
-            measurementInfo.put(Measurements.RECV_SEQ_INFO, recvSequenceNumbers);
-            if (pingFirstHop != null) {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
-            } else {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, null);
-            }
-            Utils.sendCompressedJSON(ctrlOut, measurementInfo);
+            CallQuality quality = runTrace(ctrl, trace, udpAddress, udpPort, firstHop, engine);
             
             // Receive some statistics about the trace we just sent (e.g., packet loss, rate etc)
-            return TraceReceiver.receiveTraceStatistics(ctrlIn);
+            TraceStatistics statistics = TraceReceiver.receiveTraceStatistics(ctrl);
+            statistics.setCallQuality(quality);
+            return statistics;
         } catch (Exception e) {
             Logger.e(sTag, "Measurement failed: " + e.getMessage(), e);
             throw new MeasurementException("RTPTrace measurement failed");
         }
     }
     
+    /**
+     * Loads the trace from the trace cache.
+     */
+    public static MappedTrace loadTrace(String traceFilename) throws IOException {
+        return TraceCache.getInstance().get(traceFilename);
+    }
+    
+    /**
+     * Runs the trace against the given UDP endpoint and sends the client side
+     * measurement info to the server. Trace statistics are not read here: in
+     * session mode they are pushed asynchronously by the server. Returns the call
+     * quality estimated while the trace was running.
+     */
+    @SuppressWarnings({ "unchecked" })
+    public static CallQuality runTrace(ControlChannel ctrl, Trace trace,
+                                String udpAddress, int udpPort, String firstHop, int engine)
+        throws IOException, InterruptedException, MeasurementException {
+        
+        // Start a concurrent ping to the first hop
+        Thread pingFirstHopThread = null;
+        Ping pingFirstHop = null;
+        if (firstHop != null) {
+            Logger.i(sTag, "starting first hop ping to " + firstHop);
+            pingFirstHop = new Ping(firstHop);
+            pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
+            pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
+            pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
+                          Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
+            pingFirstHopThread = new Thread(pingFirstHop);
+            pingFirstHopThread.start();
+        }
+        
+        // Send the trace packets. This is blocking.
+        TimestampSource clock = new TimestampSource(ctrl.hasMicroTimestamps());
+        ClockSync sync = ctrl.hasClockSync() ? new ClockSync(clock) : null;
+        RandomTraceReceiver receiver = new RandomTraceReceiver(trace, udpAddress, udpPort);
+        receiver.setEngine(engine);
+        receiver.setTimestampSource(clock);
+        receiver.setClockSync(sync);
+        receiver.run();
+        
+        // Trace sent, wait for the ping command to finish
+        if (pingFirstHopThread != null) {
+            pingFirstHopThread.join();
+        }
+        
+        // Send client info about the measurement
+        JSONObject measurementInfo = new JSONObject();
+        JSONObject localAddress = TraceReceiver.getLocalAddress(receiver.getLocalAddressUsed(),
+                                                                receiver.getLocalPortUsed());
+        measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
+        measurementInfo.put(Measurements.DRAIN_MILLIS_INFO, receiver.getDrainMillis());
+        measurementInfo.put(Measurements.CLOCK_INFO, clock.toJSON());
+        if (sync != null) {
+            measurementInfo.put(Measurements.CLOCK_SYNC_INFO, sync.toJSON());
+        }
+        ArrivalLog arrivals = receiver.getArrivalLog();
+        if (ctrl.hasDeltaEncoding()) {
+            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, arrivals.timestampsEncoded());
+            measurementInfo.put(Measurements.RECV_SEQ_INFO, arrivals.sequenceNumbersEncoded());
+        } else {
+            measurementInfo.put(Measurements.RECV_TIMESTAMPS_INFO, arrivals.timestampsJSON());
+            measurementInfo.put(Measurements.RECV_SEQ_INFO, arrivals.sequenceNumbersJSON());
+        }
+        if (pingFirstHop != null) {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
+        } else {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, null);
+        }
+        CallQuality quality = receiver.getCallQuality();
+        measurementInfo.put(Measurements.CALL_QUALITY_INFO, quality.toJSON());
+        measurementInfo.put(Measurements.DELAY_SKETCH_INFO, quality.delaySketch().toJSON());
+        ctrl.writeCompressedJSON(measurementInfo);
+        ArrivalLog.recycle(arrivals);
+        return quality;
+    }
+    
     public RandomTraceReceiver(Trace trace, String address, int port) {
         super(trace, address, port);
     }
     
-    public ArrayList<Long> getRecvTimestamps() {
-        return mRecvTimestamps;
+    public ArrivalLog getArrivalLog() {
+        return mArrivals;
     }
     
-    public ArrayList<Integer> getRecvSequenceNumbers() {
-        return mRecvSequenceNumbers;
+    public CallQuality getCallQuality() {
+        return mQuality;
     }
     
     @Override
     protected void sendRepliesInit() {
-        mRecvTimestamps = new ArrayList<Long>(super.getTrace().size());
-        mRecvSequenceNumbers = new ArrayList<Integer>(super.getTrace().size()); 
+        mArrivals = ArrivalLog.obtain(super.getTrace().size());
+        mQuality = new CallQuality(super.getTrace().size(), false);
     }
 
     @Override
     protected boolean packetReceived(DatagramPacket receivedPacket,
                                      long now, DatagramPacket replyPacket) {
-        mRecvTimestamps.add(Long.valueOf(now));
         int seq;
         try {
             seq = PacketFooter.getSequenceNumber(receivedPacket.getData(),
@@ -116,10 +154,15 @@ public class RandomTraceReceiver extends TraceReceiver {
         } catch (IllegalArgumentException e) {
             // This is not an error, it's just that the trace packet was too small
             // to store a footer. We don't need to send back a reply to the server.
-            mRecvSequenceNumbers.add(Integer.valueOf(-1));
+            mArrivals.add(now, -1);
             return false;
         }
-        mRecvSequenceNumbers.add(Integer.valueOf(seq));
+        mArrivals.add(now, seq);
+        // The server timestamps its packets in milliseconds
+        TimestampSource clock = getTimestampSource();
+        long sentTimestamp = PacketFooter.getTimestamp(receivedPacket.getData(),
+                                                       receivedPacket.getLength());
+        mQuality.add(seq, clock.toMillis(now - clock.fromMillis(sentTimestamp)));
         System.arraycopy(receivedPacket.getData(), receivedPacket.getLength() - PacketFooter.SIZE,
                          replyPacket.getData(), 0, PacketFooter.SIZE);
         replyPacket.setLength(PacketFooter.SIZE);
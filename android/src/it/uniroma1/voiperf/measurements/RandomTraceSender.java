@@ -3,16 +3,15 @@ package it.uniroma1.voiperf.measurements;
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
 import it.uniroma1.voiperf.traces.PacketFooter;
+import it.uniroma1.voiperf.traces.StreamedTrace;
 import it.uniroma1.voiperf.traces.Trace;
-import it.uniroma1.voiperf.util.Utils;
+import it.uniroma1.voiperf.traces.TraceCache;
+import it.uniroma1.voiperf.traces.TraceCursor;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.DatagramPacket;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class RandomTraceSender extends TraceSender {
@@ -21,131 +20,181 @@ public class RandomTraceSender extends TraceSender {
     
     private static final String sTag = RandomTraceSender.class.getName();
 
-    private PacketFooter[] mReplies;
-    private long[] mRepliesTimestamps;
-    private ByteBuffer mPayload;
-    private int mSeq;
+    private PacketFooter.ReplyTable mReplies;
+    private CallQuality mQuality;
+    private byte[] mPayload;
     
-    @SuppressWarnings({ "unchecked" })
-    public static TraceStatistics sendTrace(DataOutputStream ctrlOut, DataInputStream ctrlIn,
-                                            String traceFilename, String firstHop)
+    public static TraceStatistics sendTrace(ControlChannel ctrl, String traceFilename,
+                                            String firstHop, int engine)
        throws MeasurementException {
         
         try {
             // Load the trace and send its id to the server
-            Trace trace = Trace.loadFromFile(traceFilename);
+            Trace trace = loadTrace(traceFilename);
             
             Logger.i(sTag, "sending trace info");
-            TraceSender.sendTraceInfo(ctrlOut, trace);
+            TraceSender.sendTraceInfo(ctrl, trace);
 
             // Read the address and port we have to connect to
-            String udpAddress = ctrlIn.readLine();
-            int udpPort = Integer.parseInt(ctrlIn.readLine());
+            String udpAddress = ctrl.readLine();
+            int udpPort = Integer.parseInt(ctrl.readLine());
             Logger.i(sTag, "trace will be sent to " + udpAddress + ":" + udpPort);
 
-            // Start a concurrent ping to the first hop
-            Thread pingFirstHopThread = null;
-            Ping pingFirstHop = null;
-            if (firstHop != null) {
-                Logger.i(sTag, "starting first hop ping to " + firstHop);
-                pingFirstHop = new Ping(firstHop);
-                pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
-                pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
-                pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
-                              Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
-                pingFirstHopThread = new Thread(pingFirstHop);
-                pingFirstHopThread.start();
-            }
-
-            // Send the trace packets. This is blocking.
-            RandomTraceSender sender = new RandomTraceSender(trace, udpAddress, udpPort);
-            sender.run();
-
-            // Trace sent, wait for the ping command to finish
-            if (pingFirstHopThread != null) {
-                pingFirstHopThread.join();
-            }
-            
-            // Send client info about the measurement
-            JSONObject measurementInfo = new JSONObject();
-            JSONObject localAddress = TraceSender.getLocalAddress(sender.getLocalAddressUsed(),
-                                                                  sender.getLocalPortUsed());
-            measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
-            JSONArray traceRTTs = Utils.toJSONArray(sender.getRTTs());
-            measurementInfo.put(Measurements.TRACE_RTTS_INFO, traceRTTs);
-            if (pingFirstHop != null) {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
-            } else {
-                measurementInfo.put(Measurements.PING_RTTS_INFO, null);
-            }
-            Utils.sendCompressedJSON(ctrlOut, measurementInfo);
+            CallQuality quality = runTrace(ctrl, trace, udpAddress, udpPort, firstHop, engine);
             
             // Receive some statistics about the trace we just sent (e.g., packet loss, rate etc)
-            return TraceSender.receiveTraceStatistics(ctrlIn);
+            TraceStatistics statistics = TraceSender.receiveTraceStatistics(ctrl);
+            statistics.setCallQuality(quality);
+            return statistics;
         } catch (Exception e) {
             Logger.e(sTag, "Measurement failed: " + e.getMessage(), e);
             throw new MeasurementException("RTPTrace measurement failed");
         }
     }
 
+    /**
+     * Loads the trace from the trace cache, unless it is long enough to be streamed
+     * from its file instead (see Config.TRACE_STREAM_MIN_BYTES).
+     */
+    public static Trace loadTrace(String traceFilename) throws IOException {
+        if (new File(traceFilename).length() >= Config.TRACE_STREAM_MIN_BYTES &&
+            StreamedTrace.isStreamable(traceFilename)) {
+            return StreamedTrace.open(traceFilename);
+        }
+        return TraceCache.getInstance().get(traceFilename);
+    }
+    
+    /**
+     * Runs the trace against the given UDP endpoint and sends the client side
+     * measurement info to the server. Trace statistics are not read here: in
+     * session mode they are pushed asynchronously by the server. Returns the call
+     * quality estimated while the trace was running.
+     */
+    @SuppressWarnings({ "unchecked" })
+    public static CallQuality runTrace(ControlChannel ctrl, Trace trace,
+                                String udpAddress, int udpPort, String firstHop, int engine)
+        throws IOException, InterruptedException, MeasurementException {
+        
+        // Start a concurrent ping to the first hop
+        Thread pingFirstHopThread = null;
+        Ping pingFirstHop = null;
+        if (firstHop != null) {
+            Logger.i(sTag, "starting first hop ping to " + firstHop);
+            pingFirstHop = new Ping(firstHop);
+            pingFirstHop.setInterval(1.0/ Config.FIRST_HOP_PING_PER_SECOND);
+            pingFirstHop.setPacketSize(Config.FIRST_HOP_PING_PACKET_SIZE);
+            pingFirstHop.setDeadline((int) (trace.durationMillis() / 1000) +
+                          Config.FIRST_HOPE_PING_MIN_DURATION_SECONDS);
+            pingFirstHopThread = new Thread(pingFirstHop);
+            pingFirstHopThread.start();
+        }
+
+        // Send the trace packets. This is blocking.
+        TimestampSource clock = new TimestampSource(ctrl.hasMicroTimestamps());
+        ClockSync sync = ctrl.hasClockSync() ? new ClockSync(clock) : null;
+        RandomTraceSender sender = new RandomTraceSender(trace, udpAddress, udpPort);
+        sender.setEngine(engine);
+        sender.setTimestampSource(clock);
+        sender.setClockSync(sync);
+        sender.run();
+
+        // Trace sent, wait for the ping command to finish
+        if (pingFirstHopThread != null) {
+            pingFirstHopThread.join();
+        }
+        
+        // Send client info about the measurement
+        JSONObject measurementInfo = new JSONObject();
+        JSONObject localAddress = TraceSender.getLocalAddress(sender.getLocalAddressUsed(),
+                                                              sender.getLocalPortUsed());
+        measurementInfo.put(Measurements.LOCAL_ADDRESS_INFO, localAddress);
+        measurementInfo.put(Measurements.DRAIN_MILLIS_INFO, sender.getDrainMillis());
+        measurementInfo.put(Measurements.CLOCK_INFO, clock.toJSON());
+        if (sync != null) {
+            measurementInfo.put(Measurements.CLOCK_SYNC_INFO, sync.toJSON());
+        }
+        measurementInfo.put(Measurements.TRACE_RTTS_INFO,
+                            ctrl.encodeSeries(sender.getRTTs()));
+        measurementInfo.put(Measurements.DUPLICATE_REPLIES_INFO,
+                            sender.getDuplicateReplies());
+        measurementInfo.put(Measurements.REORDERED_REPLIES_INFO,
+                            sender.getReorderedReplies());
+        measurementInfo.put(Measurements.SEND_SCHEDULE_INFO,
+                            sender.getSendSchedule().toJSON());
+        if (pingFirstHop != null) {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, pingFirstHop.getResult());
+        } else {
+            measurementInfo.put(Measurements.PING_RTTS_INFO, null);
+        }
+        CallQuality quality = sender.getCallQuality();
+        measurementInfo.put(Measurements.CALL_QUALITY_INFO, quality.toJSON());
+        measurementInfo.put(Measurements.DELAY_SKETCH_INFO, quality.delaySketch().toJSON());
+        ctrl.writeCompressedJSON(measurementInfo);
+        return quality;
+    }
+    
     public RandomTraceSender(Trace trace, String address, int port) {
         super(trace, address, port);
     }
     
     public long[] getRTTs() {
-        long[] RTTs = new long[mReplies.length];
-        for (int seq = 0; seq < mReplies.length; ++seq) {
-            if (mReplies[seq] != null) {
-                RTTs[seq] = mRepliesTimestamps[seq] - mReplies[seq].timestamp();
-            } else {
-                RTTs[seq] = -1;
-            }
-        }
-        return RTTs;
+        return mReplies.getRTTs();
+    }
+    
+    public CallQuality getCallQuality() {
+        return mQuality;
+    }
+    
+    public int getDuplicateReplies() {
+        return mReplies.duplicates();
+    }
+    
+    public int getReorderedReplies() {
+        return mReplies.reordered();
     }
     
     @Override
     protected void receiveRepliesInit() {
-        mReplies = new PacketFooter[super.getTrace().size()];
-        mRepliesTimestamps = new long[super.getTrace().size()];
+        mReplies = new PacketFooter.ReplyTable(super.getTrace().size());
+        mQuality = new CallQuality(super.getTrace().size(), true);
     }
     
     @Override
-    protected void replyReceived(DatagramPacket packet, long now) {
-        PacketFooter footer = PacketFooter.load(packet.getData(), packet.getLength());
-        if (footer == null) {
-            Logger.w(sTag, "BUG: received packet with no footer?");
-            return;
-        } else if (footer.seq() >= mReplies.length) {
-            Logger.w(sTag,
-                     "BUG: received packet with invalid sequence number (got" +
-                     footer.seq() + ")");
-            return;
+    protected long replyReceived(DatagramPacket packet, long now) {
+        int seq = mReplies.record(packet.getData(), packet.getLength(), now);
+        if (seq == PacketFooter.ReplyTable.DUPLICATE) {
+            // only the first reply counts towards the call quality
+            return NOT_A_REPLY;
+        }
+        if (seq < 0) {
+            Logger.w(sTag, "BUG: received packet with no footer or invalid sequence number");
+            return NOT_A_REPLY;
         }
-        if (mReplies[footer.seq()] == null) {
-            mReplies[footer.seq()] = footer;
-            mRepliesTimestamps[footer.seq()] = now;
+        long rtt = mReplies.rtt(seq);
+        if (rtt < 0) {
+            return RTT_UNKNOWN;
         }
+        double rttMillis = getTimestampSource().toMillis(rtt);
+        mQuality.add(seq, rttMillis);
+        return Math.round(rttMillis);
     }
     
     @Override
     protected void sendPacketsInit() {
-        int maxSize = Config.MAX_TRACE_PACKET_SIZE;
-        mPayload = ByteBuffer.wrap(new byte[maxSize]).order(ByteOrder.BIG_ENDIAN);
-        mSeq = -1;
+        mPayload = new byte[Config.MAX_TRACE_PACKET_SIZE];
     }
     
     @Override
-    protected boolean preparePacket(DatagramPacket rawPacket, Trace.Packet tracePacket) {
-        mSeq += 1;
-        
-        mPayload.rewind();
-        if (mPayload.remaining() < tracePacket.size()) {
-            Logger.w(sTag, "BUG: packet " + mSeq + " of trace is too big for our buffer");
+    protected boolean preparePacket(DatagramPacket rawPacket, TraceCursor cursor) {
+        int index = cursor.index();
+        int size = cursor.packetSize();
+        if (mPayload.length < size) {
+            Logger.w(sTag, "BUG: packet " + index + " of trace is too big for our buffer");
             return false;
         }
-        PacketFooter.append(tracePacket.payload(), mSeq, System.currentTimeMillis(), mPayload);
-        rawPacket.setData(mPayload.array(), 0, tracePacket.size());
+        cursor.copyPayload(mPayload, 0);
+        PacketFooter.write(mPayload, size, index, getTimestampSource().now());
+        rawPacket.setData(mPayload, 0, size);
         return true;
     }
 }
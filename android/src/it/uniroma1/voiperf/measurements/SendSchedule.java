@@ -0,0 +1,109 @@
+package it.uniroma1.voiperf.measurements;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Departure log of a trace. For each packet it stores the offset (from the start
+ * of the trace) the packet was meant to leave at, and the offset it actually left
+ * at. Both offsets are in nanoseconds. Packets leaving more than a given threshold
+ * after their deadline are flagged as late.
+ */
+public class SendSchedule {
+
+    public static final String INTENDED_OFFSETS = "intended_offsets_us";
+    public static final String ACTUAL_OFFSETS = "actual_offsets_us";
+    public static final String LATE_PACKETS = "late_packets";
+    public static final String LATE_INDEXES = "late_indexes";
+    public static final String LATE_THRESHOLD = "late_threshold_us";
+    public static final String PACER_MODE = "pacer_mode";
+
+    private final long[] mIntendedOffsets;
+    private final long[] mActualOffsets;
+    private final long mLateThresholdNanos;
+    private final int mPacerMode;
+    private int mSize = 0;
+    private int mLatePackets = 0;
+
+    public SendSchedule(int capacity, long lateThresholdNanos, int pacerMode) {
+        mIntendedOffsets = new long[capacity];
+        mActualOffsets = new long[capacity];
+        mLateThresholdNanos = lateThresholdNanos;
+        mPacerMode = pacerMode;
+    }
+
+    /**
+     * Records the departure of the next packet. A negative actualOffset means the
+     * packet has not been sent. Returns true if the packet has been flagged as late.
+     */
+    public boolean record(long intendedOffset, long actualOffset) {
+        if (mSize >= mIntendedOffsets.length) {
+            return false;
+        }
+        mIntendedOffsets[mSize] = intendedOffset;
+        mActualOffsets[mSize] = actualOffset;
+        mSize += 1;
+        if (actualOffset >= 0 && actualOffset - intendedOffset > mLateThresholdNanos) {
+            mLatePackets += 1;
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int latePackets() {
+        return mLatePackets;
+    }
+
+    public long intendedOffset(int index) {
+        return mIntendedOffsets[index];
+    }
+
+    public long actualOffset(int index) {
+        return mActualOffsets[index];
+    }
+
+    public boolean isLate(int index) {
+        return mActualOffsets[index] >= 0 &&
+               mActualOffsets[index] - mIntendedOffsets[index] > mLateThresholdNanos;
+    }
+
+    /**
+     * Returns how late (in nanoseconds) each packet has been sent. Packets that
+     * have not been sent have no error.
+     */
+    public long[] getErrors() {
+        long[] errors = new long[mSize];
+        for (int i = 0; i < mSize; ++i) {
+            if (mActualOffsets[i] >= 0) {
+                errors[i] = mActualOffsets[i] - mIntendedOffsets[i];
+            }
+        }
+        return errors;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONArray intended = new JSONArray();
+        JSONArray actual = new JSONArray();
+        JSONArray late = new JSONArray();
+        for (int i = 0; i < mSize; ++i) {
+            intended.add(mIntendedOffsets[i] / 1000);
+            actual.add(mActualOffsets[i] < 0 ? -1 : mActualOffsets[i] / 1000);
+            if (isLate(i)) {
+                late.add(i);
+            }
+        }
+        JSONObject o = new JSONObject();
+        o.put(INTENDED_OFFSETS, intended);
+        o.put(ACTUAL_OFFSETS, actual);
+        o.put(LATE_PACKETS, mLatePackets);
+        o.put(LATE_INDEXES, late);
+        o.put(LATE_THRESHOLD, mLateThresholdNanos / 1000);
+        o.put(PACER_MODE, mPacerMode);
+        return o;
+    }
+}
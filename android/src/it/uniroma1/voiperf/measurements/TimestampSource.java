@@ -0,0 +1,88 @@
+package it.uniroma1.voiperf.measurements;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Clock of the send, reply and arrival timestamps of a trace.
+ *
+ * Timestamps are taken from System.nanoTime(), which is monotonic, and anchored to
+ * the wall clock once, when the source is created: they still read as wall clock
+ * times, but do not step if the wall clock is adjusted in the middle of a trace.
+ *
+ * With servers announcing FEATURE timestamps are in microseconds, otherwise they
+ * are in milliseconds as the wall clock ones they replace. The unit and the anchor
+ * are sent in the measurement info (see toJSON()).
+ */
+public class TimestampSource {
+
+    public static final String FEATURE = "micro_timestamps";
+
+    public static final String UNIT_KEY = "unit";
+    public static final String ANCHOR_KEY = "anchor_millis";
+    public static final String UNIT_MILLIS = "ms";
+    public static final String UNIT_MICROS = "us";
+
+    private final boolean mMicros;
+    private final long mAnchorMillis;
+    private final long mAnchorNanos;
+
+    /**
+     * @param micros whether timestamps are in microseconds instead of milliseconds
+     */
+    public TimestampSource(boolean micros) {
+        mMicros = micros;
+        mAnchorMillis = System.currentTimeMillis();
+        mAnchorNanos = System.nanoTime();
+    }
+
+    public boolean isMicros() {
+        return mMicros;
+    }
+
+    /**
+     * Returns the current time.
+     */
+    public long now() {
+        long elapsed = System.nanoTime() - mAnchorNanos;
+        if (mMicros) {
+            return mAnchorMillis * 1000 + elapsed / 1000;
+        }
+        return mAnchorMillis + elapsed / 1000000;
+    }
+
+    /**
+     * Converts a wall clock time (or a duration) in milliseconds to our unit.
+     */
+    public long fromMillis(long millis) {
+        return mMicros ? millis * 1000 : millis;
+    }
+
+    /**
+     * Converts a duration in seconds to our unit.
+     */
+    public long fromSeconds(double seconds) {
+        return Math.round(seconds * (mMicros ? 1000000 : 1000));
+    }
+
+    /**
+     * Converts a timestamp (or a duration) in our unit to microseconds.
+     */
+    public long toMicros(long timestamp) {
+        return mMicros ? timestamp : timestamp * 1000;
+    }
+
+    /**
+     * Converts a difference of timestamps to milliseconds.
+     */
+    public double toMillis(long delta) {
+        return mMicros ? delta / 1000.0 : delta;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put(UNIT_KEY, mMicros ? UNIT_MICROS : UNIT_MILLIS);
+        o.put(ANCHOR_KEY, mAnchorMillis);
+        return o;
+    }
+}
@@ -5,8 +5,6 @@ import it.uniroma1.voiperf.logging.Logger;
 import it.uniroma1.voiperf.traces.Trace;
 import it.uniroma1.voiperf.util.Utils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -15,9 +13,12 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 
 public abstract class TraceReceiver {
@@ -30,6 +31,10 @@ public abstract class TraceReceiver {
     private DatagramSocket mSocket;
     private String mLocalAddress;
     private int mLocalPort;
+    private int mEngine = Config.TRACE_ENGINE_DEFAULT;
+    private TimestampSource mClock = new TimestampSource(false);
+    private ClockSync mClockSync = null;
+    private DrainEstimator mDrain;
     
     private class ReceiverThread extends Thread {
         
@@ -45,6 +50,7 @@ public abstract class TraceReceiver {
         
         @Override
         public void run() {
+            MeasurementExecutor.setThreadPriority(Config.TRACE_THREAD_PRIORITY);
             try {
                 receiveTracePackets();
             } catch (MeasurementException e) {
@@ -54,11 +60,11 @@ public abstract class TraceReceiver {
         }
     }
     
-    protected static void sendTraceInfo(DataOutputStream dos,
+    protected static void sendTraceInfo(ControlChannel ctrl,
                                       String filename,
                                       Trace trace) throws IOException {
-        dos.writeBytes(new File(filename).getName() + "\n");
-        dos.writeBytes(trace.id() + "\n");
+        ctrl.writeLine(new File(filename).getName());
+        ctrl.writeLine(String.valueOf(trace.id()));
     }
     
     @SuppressWarnings("unchecked")
@@ -69,20 +75,10 @@ public abstract class TraceReceiver {
         return o;
     }
     
-    protected static TraceStatistics receiveTraceStatistics(DataInputStream dis)
+    protected static TraceStatistics receiveTraceStatistics(ControlChannel ctrl)
         throws IOException {
-        byte[] data;
         try {
-            int length = Integer.parseInt(dis.readLine());
-            data = new byte[length];
-            dis.readFully(data);
-        } catch (NumberFormatException e) {
-            Logger.e(sTag, "failed to read trace statistics: invalid length");
-            throw new IOException("Failed to read trace statistics: invalid length");
-        }
-        
-        try {
-            return new TraceStatistics((JSONObject) JSONValue.parseWithException(new String(data)));
+            return new TraceStatistics((JSONObject) ctrl.readJSON());
         } catch (ParseException e) {
             Logger.e(sTag, "failed to parse trace statistic's json: " + e.getMessage());
             throw new IOException("Failed to parse trace statistic's json: " + e.getMessage());
@@ -95,9 +91,70 @@ public abstract class TraceReceiver {
     public TraceReceiver(Trace trace, String address, int port) {
         mTrace = trace;
         mDest = new InetSocketAddress(address, port);
+        initDrain();
+    }
+    
+    /**
+     * The end of the trace is detected from the inter-arrival gaps of the packets
+     * received so far. Silences in the trace itself must not be taken for its end,
+     * so the drain is never shorter than the largest gap between two packets of
+     * the trace.
+     */
+    private void initDrain() {
+        long maxGapMillis = 0;
+        for (int i = 1; i < mTrace.size(); ++i) {
+            long gap = (long) Math.ceil((mTrace.ts(i) - mTrace.ts(i - 1)) * 1000);
+            maxGapMillis = Math.max(maxGapMillis, gap);
+        }
+        long floor = maxGapMillis + Config.TRACE_DRAIN_MIN_MILLIS;
+        mDrain = new DrainEstimator(Config.TRACE_DRAIN_RTT_FACTOR, floor,
+                                    Math.max(floor, Config.TRACE_SOCKET_READ_TIMEOUT_MILLIS));
+    }
+    
+    /**
+     * Returns how long (in ms) we were waiting for more packets when the trace
+     * ended, as estimated from the inter-arrival gaps of the packets.
+     */
+    public long getDrainMillis() {
+        return mDrain.drainMillis();
+    }
+    
+    /**
+     * Selects the engine used to receive the trace (either Measurements.ENGINE_SOCKET
+     * or Measurements.ENGINE_CHANNEL).
+     */
+    public void setEngine(int engine) {
+        mEngine = engine;
+    }
+    
+    /**
+     * Sets the clock of the arrival timestamps (milliseconds by default).
+     */
+    public void setTimestampSource(TimestampSource clock) {
+        mClock = clock;
+    }
+    
+    public TimestampSource getTimestampSource() {
+        return mClock;
+    }
+    
+    /**
+     * Exchanges clock sync probes with the server before and after the trace
+     * (none by default).
+     */
+    public void setClockSync(ClockSync sync) {
+        mClockSync = sync;
+    }
+    
+    public ClockSync getClockSync() {
+        return mClockSync;
     }
     
     public void run() throws MeasurementException {
+        if (mEngine == Measurements.ENGINE_CHANNEL) {
+            runOnChannel();
+            return;
+        }
         try {
             int senderThreadWaitMillis = Config.SENDER_THREAD_WAIT_MILLIS;
             
@@ -106,12 +163,19 @@ public abstract class TraceReceiver {
             mSocket.connect(mDest);
             mLocalAddress = mSocket.getLocalAddress().toString();
             mLocalPort = mSocket.getLocalPort();
+            // The server answers the probes while waiting for the hole punching
+            if (mClockSync != null) {
+                mClockSync.exchange(mSocket, ClockSync.BEFORE_TRACE);
+            }
 
             ReceiverThread receiver = new ReceiverThread();
             receiver.start();
             
             // give (more than) enough time for the thread to receive all the data
             receiver.join(mTrace.durationMillis() + senderThreadWaitMillis);
+            if (mClockSync != null && receiver.isAlive() == false) {
+                mClockSync.exchange(mSocket, ClockSync.AFTER_TRACE);
+            }
             if (receiver.hasError()) {
                 throw new MeasurementException("Trace measurement failed", receiver.getError());
             }
@@ -128,6 +192,41 @@ public abstract class TraceReceiver {
         }
     }
     
+    /**
+     * Receives the trace on the calling thread, through a non-blocking channel
+     * and a selector, instead of a blocking socket read by a dedicated thread.
+     */
+    private void runOnChannel() throws MeasurementException {
+        DatagramChannel channel = null;
+        Selector selector = null;
+        int priority = MeasurementExecutor.raiseTracePriority();
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.connect(mDest);
+            mLocalAddress = channel.socket().getLocalAddress().toString();
+            mLocalPort = channel.socket().getLocalPort();
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            if (mClockSync != null) {
+                mClockSync.exchange(channel, selector, ClockSync.BEFORE_TRACE);
+            }
+            
+            receiveTracePacketsOnChannel(channel, selector);
+            if (mClockSync != null) {
+                mClockSync.exchange(channel, selector, ClockSync.AFTER_TRACE);
+            }
+        } catch (IOException e) {
+            Logger.e(sTag, "failed to receive trace: " + e.getMessage());
+            throw new MeasurementException("failed to receive trace");
+        } finally {
+            MeasurementExecutor.setThreadPriority(priority);
+            try { if (selector != null) selector.close(); } catch (Exception e) { }
+            try { if (channel != null) channel.close(); } catch (Exception e) { }
+        }
+    }
+    
     public String getLocalAddressUsed() {
         return mLocalAddress;
     }
@@ -142,6 +241,10 @@ public abstract class TraceReceiver {
     
     protected void sendRepliesInit() { }
     
+    /**
+     * Handles a trace packet received at time now (see getTimestampSource()).
+     * Returns whether replyPacket has been filled with a reply to send back.
+     */
     protected abstract boolean packetReceived(DatagramPacket receivedPacket,
                                               long now,
                                               DatagramPacket replyPacket);
@@ -165,7 +268,8 @@ public abstract class TraceReceiver {
         }
         
         int socketWaitTimeout = Config.TRACE_SOCKET_WAIT_TIMEOUT_MILLIS;
-        int socketReadTimeout = Config.TRACE_SOCKET_READ_TIMEOUT_MILLIS;
+        int socketReadTimeout = (int) mDrain.drainMillis();
+        long lastArrival = 0;
         byte[] endMsg = Config.TRACE_END_MESSAGE.getBytes();
 
         boolean firstPacket = true;
@@ -176,8 +280,10 @@ public abstract class TraceReceiver {
             
             /* This timeout is needed to stop this thread at the end of the
              * measurement. Since we are using UDP, we cannot be sure all the packets
-             * will be received, so the timeout must be big enough (e.g., 3 seconds)
-             * to let any incoming packet to be received. Note that calling interrupt()
+             * will be received (not even the end message), so the timeout must be big
+             * enough to let any incoming packet to be received: once the trace has
+             * started, it is adapted to the inter-arrival gaps observed so far
+             * (see DrainEstimator). Note that calling interrupt()
              * on a thread waiting on a socket IO may not wake it, so the timeout is
              * NECESSARY */
             mSocket.setSoTimeout(socketWaitTimeout);
@@ -203,6 +309,7 @@ public abstract class TraceReceiver {
 
                 // Receive the next packet
                 mSocket.receive(receivedPacket);
+                long now = mClock.now();
                 if (firstPacket) {
                     Logger.d(sTag, "first packet received");
                     // the first packet has been received.
@@ -211,8 +318,14 @@ public abstract class TraceReceiver {
                     mSocket.setSoTimeout(socketReadTimeout);
                     Logger.d(sTag, "trace connection receive timeout set to "
                              + socketReadTimeout + "ms");
+                } else {
+                    mDrain.add(Math.round(mClock.toMillis(now - lastArrival)));
+                    if (mDrain.drainMillis() != socketReadTimeout) {
+                        socketReadTimeout = (int) mDrain.drainMillis();
+                        mSocket.setSoTimeout(socketReadTimeout);
+                    }
                 }
-                long now = System.currentTimeMillis();
+                lastArrival = now;
                 if (isEndMsg(receivedPacket.getData(), receivedPacket.getLength(), endMsg)) {
                     // The trace has finished
                     Logger.i(sTag, "end trace received");
@@ -224,13 +337,98 @@ public abstract class TraceReceiver {
                 }
             }
         } catch (SocketTimeoutException e) {
-            Logger.d(sTag, "socket timeout, assuming trace has finished");
+            Logger.d(sTag, "socket timeout (" + socketReadTimeout +
+                     "ms), assuming trace has finished");
         } catch (IOException e) {
             Logger.e(sTag, "error while reading trace replies: " + e);
             throw new MeasurementException(e.getMessage(), e);
         }
     }
     
+    private void receiveTracePacketsOnChannel(DatagramChannel channel, Selector selector)
+        throws IOException, MeasurementException {
+        
+        DatagramSocket socket = channel.socket();
+        try {
+            socket.setSendBufferSize(Config.TRACE_SOCKET_SEND_BUFFER_SIZE);
+            socket.setReceiveBufferSize(Config.TRACE_SOCKET_RECV_BUFFER_SIZE);
+            Logger.d(sTag, "trace connection buffer sizes set to " +
+                     socket.getSendBufferSize() + "/" + socket.getReceiveBufferSize() + "bytes");
+        } catch (SocketException e) {
+            Logger.w(sTag, "failed to set trace connection buffer size: " + e.getMessage());
+        }
+        
+        long timeout = Config.TRACE_SOCKET_WAIT_TIMEOUT_MILLIS;
+        byte[] endMsg = Config.TRACE_END_MESSAGE.getBytes();
+        int packetSize = Config.MAX_TRACE_PACKET_SIZE;
+        DatagramPacket receivedPacket = new DatagramPacket(new byte[packetSize], packetSize);
+        DatagramPacket replyPacket = new DatagramPacket(new byte[packetSize], packetSize);
+        ByteBuffer receivedBuffer = ByteBuffer.wrap(receivedPacket.getData());
+        ByteBuffer replyBuffer = null;
+        
+        // Start by sending a NAT hole punching packet,
+        // so the server can send us back the trace packets
+        ByteBuffer punchMsg = ByteBuffer.wrap(Config.HOLE_PUNCHING_MESSAGE.getBytes());
+        for (int i = 0; i < Config.HOLE_PUNCHING_RETRIES; ++i) {
+            punchMsg.rewind();
+            channel.write(punchMsg);
+            try {
+                Utils.sleepMillis(Config.HOLE_PUNCHING_WAIT_TIME_MILLIS);
+            } catch (InterruptedException e) {
+                throw new MeasurementException("Interrupted", e);
+            }
+        }
+        Logger.d(sTag, "hole punching packets sent");
+        
+        sendRepliesInit();
+        
+        // The socket engine gives up on the receiver thread after this time
+        long giveUpTime = Utils.monotonicMillis() + timeout +
+                          mTrace.durationMillis() + Config.SENDER_THREAD_WAIT_MILLIS;
+        boolean firstPacket = true;
+        long lastArrival = 0;
+        while (true) {
+            if (Thread.interrupted()) {
+                Logger.w(sTag, "interruped while receiving trace");
+                throw new MeasurementException("Interrupted");
+            }
+            long wait = Math.min(timeout, giveUpTime - Utils.monotonicMillis());
+            if (wait <= 0 || selector.select(wait) == 0) {
+                Logger.d(sTag, "receive timeout (" + timeout +
+                         "ms), assuming trace has finished");
+                return;
+            }
+            selector.selectedKeys().clear();
+            
+            // Read all the packets queued so far
+            while (true) {
+                receivedBuffer.clear();
+                int length = channel.read(receivedBuffer);
+                if (length <= 0) {
+                    break;
+                }
+                long now = mClock.now();
+                receivedPacket.setLength(length);
+                if (firstPacket) {
+                    Logger.d(sTag, "first packet received");
+                    firstPacket = false;
+                } else {
+                    mDrain.add(Math.round(mClock.toMillis(now - lastArrival)));
+                }
+                lastArrival = now;
+                timeout = mDrain.drainMillis();
+                if (isEndMsg(receivedPacket.getData(), length, endMsg)) {
+                    Logger.i(sTag, "end trace received");
+                    return;
+                }
+                if (packetReceived(receivedPacket, now, replyPacket)) {
+                    replyBuffer = Utils.wrapPacket(replyBuffer, replyPacket);
+                    channel.write(replyBuffer);
+                }
+            }
+        }
+    }
+    
     private void holePunching(byte[] punchMsg, int nPackets, long waitTime) throws IOException {
         DatagramPacket dp = new DatagramPacket(punchMsg, punchMsg.length);
         for (int i = 0; i < nPackets; ++i) {
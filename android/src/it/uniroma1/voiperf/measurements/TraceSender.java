@@ -2,25 +2,32 @@ package it.uniroma1.voiperf.measurements;
 
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.traces.ReadAheadCursor;
 import it.uniroma1.voiperf.traces.Trace;
+import it.uniroma1.voiperf.traces.TraceCursor;
 import it.uniroma1.voiperf.util.Utils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 
 public abstract class TraceSender {
     
     private static final String sTag = TraceSender.class.getName();
+    
+    /* Values returned by replyReceived() instead of an RTT */
+    protected static final long RTT_UNKNOWN = -1;
+    protected static final long NOT_A_REPLY = -2;
 
     private final Trace mTrace;
     private final SocketAddress mDest;
@@ -29,6 +36,17 @@ public abstract class TraceSender {
     private String mLocalAddress;
     private int mLocalPort;
     
+    private PacketPacer mPacer;
+    private SendSchedule mSchedule;
+    private int mEngine = Config.TRACE_ENGINE_DEFAULT;
+    
+    private TimestampSource mClock = new TimestampSource(false);
+    private ClockSync mClockSync = null;
+    private DrainEstimator mDrain;
+    private volatile boolean mSendFinished;
+    private volatile long mSendEndMillis;
+    private volatile int mSentPackets;
+    
     private class SenderThread extends Thread {
         
         private MeasurementException mError = null;
@@ -43,6 +61,7 @@ public abstract class TraceSender {
         
         @Override
         public void run() {
+            MeasurementExecutor.setThreadPriority(Config.TRACE_THREAD_PRIORITY);
             try {
                 sendTracePackets();
             } catch (MeasurementException e) {
@@ -66,6 +85,7 @@ public abstract class TraceSender {
         
         @Override
         public void run() {
+            MeasurementExecutor.setThreadPriority(Config.TRACE_THREAD_PRIORITY);
             try {
                 receiveReplies();
             } catch (MeasurementException e) {
@@ -75,9 +95,9 @@ public abstract class TraceSender {
         }
     }
     
-    protected static void sendTraceInfo(DataOutputStream dos, Trace trace) throws IOException {
-        dos.writeBytes(trace.id() + "\n");
-        dos.writeBytes(trace.size() + "\n");
+    protected static void sendTraceInfo(ControlChannel ctrl, Trace trace) throws IOException {
+        ctrl.writeLine(String.valueOf(trace.id()));
+        ctrl.writeLine(String.valueOf(trace.size()));
     }
     
     @SuppressWarnings("unchecked")
@@ -88,20 +108,10 @@ public abstract class TraceSender {
         return o;
     }
     
-    protected static TraceStatistics receiveTraceStatistics(DataInputStream dis)
+    protected static TraceStatistics receiveTraceStatistics(ControlChannel ctrl)
         throws IOException {
-        byte[] data;
-        try {
-            int length = Integer.parseInt(dis.readLine());
-            data = new byte[length];
-            dis.readFully(data);
-        } catch (NumberFormatException e) {
-            Logger.e(sTag, "failed to read trace statistics: invalid length");
-            throw new IOException("Failed to read trace statistics: invalid length");
-        }
-        
         try {
-            return new TraceStatistics((JSONObject) JSONValue.parseWithException(new String(data)));
+            return new TraceStatistics((JSONObject) ctrl.readJSON());
         } catch (ParseException e) {
             Logger.e(sTag, "failed to parse trace statistic's json: " + e.getMessage());
             throw new IOException("Failed to parse trace statistic's json: " + e.getMessage());
@@ -114,35 +124,90 @@ public abstract class TraceSender {
     public TraceSender(Trace trace, String address, int port) {
         mTrace = trace;
         mDest = new InetSocketAddress(address, port);
+        mPacer = PacketPacer.create(Config.PACKET_PACER_MODE,
+                                    Config.PACKET_PACER_SPIN_THRESHOLD_NANOS);
+        // Empty until the trace is sent, replaced by the one of the actual pacer then
+        mSchedule = new SendSchedule(0, Config.LATE_PACKET_THRESHOLD_NANOS, mPacer.mode());
+    }
+    
+    public void setPacketPacer(PacketPacer pacer) {
+        mPacer = pacer;
+    }
+    
+    /**
+     * Sets the clock of the send and reply timestamps (milliseconds by default).
+     */
+    public void setTimestampSource(TimestampSource clock) {
+        mClock = clock;
+    }
+    
+    public TimestampSource getTimestampSource() {
+        return mClock;
+    }
+    
+    /**
+     * Exchanges clock sync probes with the server before and after the trace
+     * (none by default).
+     */
+    public void setClockSync(ClockSync sync) {
+        mClockSync = sync;
+    }
+    
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+    
+    /**
+     * Selects the engine used to send the trace (either Measurements.ENGINE_SOCKET
+     * or Measurements.ENGINE_CHANNEL).
+     */
+    public void setEngine(int engine) {
+        mEngine = engine;
     }
     
     public void run() throws MeasurementException {
+        if (mEngine == Measurements.ENGINE_CHANNEL) {
+            runOnChannel();
+            return;
+        }
         try {
-            int socketReadTimeout = Config.TRACE_SOCKET_READ_TIMEOUT_MILLIS;
+            int socketPollTimeout = Config.TRACE_DRAIN_POLL_MILLIS;
             int senderThreadWaitMillis = Config.SENDER_THREAD_WAIT_MILLIS;
             
             mSocket = new DatagramSocket();
             /* This timeout is needed to stop the receiver thread at the end of the
-             * measurement. Since we are using UDP, we cannot be sure all the packets
-             * will be received, so the timeout must be big enough (e.g., 3 seconds)
-             * to let any incoming packet to be received. Note that calling interrupt()
-             * on a thread waiting on a socket IO may not wake it, so the timeout is
-             * NECESSARY */
-            mSocket.setSoTimeout(socketReadTimeout);
-            Logger.d(sTag, "socket read timeout set to " + socketReadTimeout + "ms");
+             * measurement. Note that calling interrupt() on a thread waiting on a
+             * socket IO may not wake it, so the timeout is NECESSARY. The timeout
+             * is short: it only lets the receiver thread check, every now and then,
+             * whether the trace is over and how long it still has to wait for the
+             * last replies (see receiveReplies()) */
+            mSocket.setSoTimeout(socketPollTimeout);
+            Logger.d(sTag, "socket read timeout set to " + socketPollTimeout + "ms");
             mSocket.setReuseAddress(true);
             mSocket.connect(mDest);
             mLocalAddress = mSocket.getLocalAddress().toString();
             mLocalPort = mSocket.getLocalPort();
+            if (mClockSync != null) {
+                mClockSync.exchange(mSocket, ClockSync.BEFORE_TRACE);
+            }
 
+            initDrain();
             SenderThread sender = new SenderThread();
             ReceiverThread receiver = new ReceiverThread();
             sender.start();
             receiver.start();
             // give (more than) enough time for the thread to send all the data
             sender.join(mTrace.durationMillis() + senderThreadWaitMillis);
-            // the receiver thread should have a timeout set, so just wait for it
+            // the receiver thread stops on its own once the replies have been drained
+            if (mSendFinished == false) {
+                Logger.w(sTag, "sender thread is taking too long, stop waiting for replies");
+                mSendEndMillis = Utils.monotonicMillis();
+                mSendFinished = true;
+            }
             receiver.join();
+            if (mClockSync != null) {
+                mClockSync.exchange(mSocket, ClockSync.AFTER_TRACE);
+            }
             if (sender.hasError()) {
                 throw new MeasurementException("Trace measurement failed", sender.getError());
             } else if (receiver.hasError()) {
@@ -160,6 +225,58 @@ public abstract class TraceSender {
         }
     }
     
+    /**
+     * Sends the trace and receives the replies on a single thread: a non-blocking
+     * channel is multiplexed with the packet deadlines through a selector. As soon
+     * as all the replies have been received the measurement ends, without waiting
+     * for any socket timeout.
+     */
+    private void runOnChannel() throws MeasurementException {
+        DatagramChannel channel = null;
+        Selector selector = null;
+        TraceCursor cursor = null;
+        int priority = MeasurementExecutor.raiseTracePriority();
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.connect(mDest);
+            mLocalAddress = channel.socket().getLocalAddress().toString();
+            mLocalPort = channel.socket().getLocalPort();
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            if (mClockSync != null) {
+                mClockSync.exchange(channel, selector, ClockSync.BEFORE_TRACE);
+            }
+            
+            initDrain();
+            cursor = openCursor();
+            multiplexTracePackets(channel, selector, cursor);
+            if (mClockSync != null) {
+                mClockSync.exchange(channel, selector, ClockSync.AFTER_TRACE);
+            }
+        } catch (IOException e) {
+            Logger.e(sTag, "failed to send trace: " + e.getMessage());
+            throw new MeasurementException("failed to send trace");
+        } finally {
+            MeasurementExecutor.setThreadPriority(priority);
+            if (cursor != null) {
+                cursor.close();
+            }
+            try { if (selector != null) selector.close(); } catch (Exception e) { }
+            try { if (channel != null) channel.close(); } catch (Exception e) { }
+        }
+    }
+    
+    private void initDrain() {
+        mDrain = new DrainEstimator(Config.TRACE_DRAIN_RTT_FACTOR,
+                                    Config.TRACE_DRAIN_MIN_MILLIS,
+                                    Config.TRACE_SOCKET_READ_TIMEOUT_MILLIS);
+        mSendFinished = false;
+        mSendEndMillis = 0;
+        mSentPackets = 0;
+    }
+    
     public Trace getTrace() {
         return mTrace;
     }
@@ -172,9 +289,41 @@ public abstract class TraceSender {
         return mLocalPort;
     }
     
+    /**
+     * Returns, for each trace packet, how late (in nanoseconds) it has been sent with
+     * respect to its deadline. Negative values mean the packet was sent early. Empty
+     * if the trace has not been sent yet.
+     */
+    public long[] getSendTimeErrors() {
+        return mSchedule.getErrors();
+    }
+    
+    /**
+     * Returns the intended and actual departure offsets of the trace packets (none
+     * if the trace has not been sent yet).
+     */
+    public SendSchedule getSendSchedule() {
+        return mSchedule;
+    }
+    
+    /**
+     * Returns how long (in ms) we waited for the last replies after the end of
+     * the trace, as estimated from the RTTs of the replies.
+     */
+    public long getDrainMillis() {
+        return mDrain.drainMillis();
+    }
+    
     protected void receiveRepliesInit() { }
     
-    protected abstract void replyReceived(DatagramPacket packet, long now);
+    /**
+     * Handles a reply received at time now (see getTimestampSource()). Returns the
+     * RTT (in ms) of the packet the reply refers to, RTT_UNKNOWN if it is not known,
+     * or NOT_A_REPLY if the packet is not the first reply to a packet of the trace
+     * (a duplicate, or a packet that cannot be decoded), in which case it is not
+     * counted as a reply.
+     */
+    protected abstract long replyReceived(DatagramPacket packet, long now);
     
     private void receiveReplies() throws MeasurementException {
         
@@ -184,6 +333,8 @@ public abstract class TraceSender {
             // packet size instead of using a predefined packet size
             int bsize = Config.MAX_TRACE_PACKET_SIZE;
             DatagramPacket packet = new DatagramPacket(new byte[bsize], bsize);
+            int replies = 0;
+            long lastReply = 0;
             while (true) {
                 // this check is probably not necessary, but I want to
                 // avoid getting stuck during a measurement (which would
@@ -192,11 +343,34 @@ public abstract class TraceSender {
                     Logger.w(sTag, "interruped while sending trace");
                     throw new MeasurementException("Interrupted");
                 }
-                mSocket.receive(packet);
-                replyReceived(packet, System.currentTimeMillis());
+                try {
+                    mSocket.receive(packet);
+                    long rtt = replyReceived(packet, mClock.now());
+                    if (rtt != NOT_A_REPLY) {
+                        lastReply = Utils.monotonicMillis();
+                        mDrain.add(rtt);
+                        replies += 1;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // just check whether we are done
+                }
+                
+                // Once the trace has been sent, stop as soon as all the replies
+                // have been received, or when no reply has been received for a
+                // while (as estimated from the RTTs seen so far)
+                if (mSendFinished) {
+                    if (replies >= mSentPackets) {
+                        Logger.d(sTag, "all the replies have been received");
+                        break;
+                    }
+                    long idle = Utils.monotonicMillis() - Math.max(mSendEndMillis, lastReply);
+                    if (idle >= mDrain.drainMillis()) {
+                        Logger.d(sTag, "no replies for " + idle +
+                                       "ms, assuming trace has finished");
+                        break;
+                    }
+                }
             }
-        } catch (SocketTimeoutException e) {
-            Logger.d(sTag, "socket timeout, assuming trace has finished");
         } catch (IOException e) {
             Logger.e(sTag, "error while reading trace replies: " + e);
             throw new MeasurementException(e.getMessage(), e);
@@ -205,44 +379,222 @@ public abstract class TraceSender {
     
     protected void sendPacketsInit() { }
     
-    protected abstract boolean preparePacket(DatagramPacket rawPacket, Trace.Packet tracePacket);
+    /**
+     * Prepares the packet the cursor is on. Returns false if it must not be sent.
+     */
+    protected abstract boolean preparePacket(DatagramPacket rawPacket, TraceCursor cursor);
+    
+    /**
+     * Returns a cursor over the trace packets. Streamed traces are read ahead, so
+     * that reading or generating the packets does not delay their deadlines.
+     */
+    private TraceCursor openCursor() throws IOException {
+        TraceCursor cursor = mTrace.cursor();
+        if (mTrace.isStreamed() && Config.TRACE_READ_AHEAD_PACKETS > 0) {
+            cursor = new ReadAheadCursor(cursor, Config.TRACE_READ_AHEAD_PACKETS,
+                                         Config.MAX_TRACE_PACKET_SIZE);
+        }
+        return cursor;
+    }
     
     private void sendTracePackets() throws MeasurementException {
         sendPacketsInit();
+        TraceCursor cursor = null;
         try {
             // TODO: we may very well ask the trace what is the maximum
             // packet size instead of using a predefined packet size
             String endMessage = Config.TRACE_END_MESSAGE;
             
             DatagramPacket rawPacket = new DatagramPacket(new byte[0], 0);
-            long prevPacketTime = -1;
-            for (Object p: mTrace.packets()) {
+            mSchedule = new SendSchedule(mTrace.size(), Config.LATE_PACKET_THRESHOLD_NANOS,
+                                         mPacer.mode());
+            mPacer.reset();
+            cursor = openCursor();
+            while (cursor.next()) {
                 
-                Trace.Packet tracePacket = (Trace.Packet) p;
+                double ts = cursor.ts();
                 
-                // Compute the time that should pass between this and the previous packet
-                long packetDelta = tracePacket.ts_millis() - prevPacketTime;
-                if (prevPacketTime < 0) {
-                    packetDelta = 0;
-                }
-                prevPacketTime = tracePacket.ts_millis();
-                
-                // Sleep
-                if (packetDelta > 0) {
-                    Utils.sleepMillisBusyWait(packetDelta);
-                }
+                // Wait for the packet deadline. Deadlines are computed from the
+                // trace timestamps relative to the start of the trace, so sleeping
+                // errors do not pile up: a late packet is sent right away and the
+                // following ones catch up with the schedule
+                mPacer.awaitPacket(ts);
+                long intendedOffset = mPacer.deadlineNanos(ts) - mPacer.originNanos();
                 
                 // Prepare the packet and send it
-                if (preparePacket(rawPacket, tracePacket)) {
+                if (preparePacket(rawPacket, cursor)) {
+                    long actualOffset = System.nanoTime() - mPacer.originNanos();
                     mSocket.send(rawPacket);
+                    mSchedule.record(intendedOffset, actualOffset);
+                    mSentPackets += 1;
+                } else {
+                    mSchedule.record(intendedOffset, -1);
                 }
             }
 
             rawPacket.setData(endMessage.getBytes());
             mSocket.send(rawPacket);
             
+            logSendTimeErrors();
+        } catch (InterruptedException e) {
+            Logger.w(sTag, "interrupted while sending trace");
+            throw new MeasurementException("Interrupted", e);
         } catch (IOException e) {
             throw new MeasurementException(e.getMessage(), e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            mSendEndMillis = Utils.monotonicMillis();
+            mSendFinished = true;
+        }
+    }
+    
+    /**
+     * Tells the server that the whole trace has been sent.
+     */
+    private void endTrace(DatagramChannel channel) throws IOException {
+        channel.write(ByteBuffer.wrap(Config.TRACE_END_MESSAGE.getBytes()));
+        logSendTimeErrors();
+    }
+    
+    private void multiplexTracePackets(DatagramChannel channel, Selector selector,
+                                       TraceCursor cursor)
+        throws IOException, MeasurementException {
+        
+        sendPacketsInit();
+        receiveRepliesInit();
+        
+        // Datagrams are written from and read into heap buffers wrapping the
+        // packets' arrays, so no payload is copied on our side
+        int bsize = Config.MAX_TRACE_PACKET_SIZE;
+        DatagramPacket replyPacket = new DatagramPacket(new byte[bsize], bsize);
+        ByteBuffer replyBuffer = ByteBuffer.wrap(replyPacket.getData());
+        DatagramPacket rawPacket = new DatagramPacket(new byte[0], 0);
+        ByteBuffer sendBuffer = null;
+        long spinNanos = Config.PACKET_PACER_SPIN_THRESHOLD_NANOS;
+        if (mPacer.mode() == PacketPacer.MODE_BUSY) {
+            spinNanos = Long.MAX_VALUE;
+        } else if (mPacer.mode() == PacketPacer.MODE_PARK) {
+            spinNanos = 0;
+        }
+        
+        mSchedule = new SendSchedule(mTrace.size(), Config.LATE_PACKET_THRESHOLD_NANOS,
+                                     mPacer.mode());
+        mPacer.reset();
+        boolean sending = cursor.next();
+        int replies = 0;
+        long lastActivity = 0;
+        if (sending == false) {
+            // Empty trace: the server still waits for the end of it
+            endTrace(channel);
+            lastActivity = System.nanoTime();
+        }
+        while (true) {
+            if (Thread.interrupted()) {
+                Logger.w(sTag, "interrupted while sending trace");
+                throw new MeasurementException("Interrupted");
+            }
+            
+            // Next timer: either the deadline of the next packet, or the end of
+            // the wait for the last replies once the whole trace has been sent
+            long now = System.nanoTime();
+            long timeLeft;
+            if (sending) {
+                double ts = cursor.ts();
+                if (mPacer.isStarted() == false) {
+                    mPacer.start(ts);
+                }
+                long deadline = mPacer.deadlineNanos(ts);
+                timeLeft = deadline - now;
+                if (timeLeft <= 0) {
+                    long intendedOffset = deadline - mPacer.originNanos();
+                    if (preparePacket(rawPacket, cursor)) {
+                        sendBuffer = Utils.wrapPacket(sendBuffer, rawPacket);
+                        long actualOffset = System.nanoTime() - mPacer.originNanos();
+                        channel.write(sendBuffer);
+                        mSchedule.record(intendedOffset, actualOffset);
+                        mSentPackets += 1;
+                    } else {
+                        mSchedule.record(intendedOffset, -1);
+                    }
+                    sending = cursor.next();
+                    if (sending == false) {
+                        endTrace(channel);
+                        lastActivity = System.nanoTime();
+                    }
+                    continue;
+                }
+            } else {
+                if (replies >= mSentPackets) {
+                    Logger.d(sTag, "all the replies have been received");
+                    break;
+                }
+                timeLeft = lastActivity + mDrain.drainMillis() * 1000000L - now;
+                if (timeLeft <= 0) {
+                    Logger.d(sTag, "no more replies, assuming trace has finished");
+                    break;
+                }
+            }
+            
+            // Wait for the timer or for some replies, whichever comes first. Close
+            // to the timer (or with a busy pacer) we only poll the channel
+            int ready;
+            long waitMillis = (timeLeft - Math.min(spinNanos, timeLeft)) / 1000000;
+            if (waitMillis > 0) {
+                ready = selector.select(waitMillis);
+            } else {
+                ready = selector.selectNow();
+            }
+            if (ready > 0) {
+                selector.selectedKeys().clear();
+                int n = readReplies(channel, replyPacket, replyBuffer);
+                replies += n;
+                if (n > 0 && sending == false) {
+                    lastActivity = System.nanoTime();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads the datagrams pending on the channel. Returns how many of them were
+     * replies (see replyReceived()).
+     */
+    private int readReplies(DatagramChannel channel, DatagramPacket packet, ByteBuffer buffer)
+        throws IOException {
+        int n = 0;
+        while (true) {
+            buffer.clear();
+            int length = channel.read(buffer);
+            if (length <= 0) {
+                return n;
+            }
+            packet.setLength(length);
+            long rtt = replyReceived(packet, mClock.now());
+            if (rtt != NOT_A_REPLY) {
+                mDrain.add(rtt);
+                n += 1;
+            }
+        }
+    }
+    
+    private void logSendTimeErrors() {
+        long[] errors = mSchedule.getErrors();
+        if (errors.length == 0) {
+            return;
+        }
+        long max = 0;
+        double sum = 0.0;
+        for (long error: errors) {
+            sum += Math.abs(error);
+            max = Math.max(max, Math.abs(error));
+        }
+        Logger.d(sTag, "send time error (pacer mode " + mPacer.mode() + "): average " +
+                 (sum / errors.length / 1000.0) + "us, max " + (max / 1000.0) + "us");
+        if (mSchedule.latePackets() > 0) {
+            Logger.w(sTag, mSchedule.latePackets() + " packets out of " + errors.length +
+                     " have been sent late");
         }
     }
 }
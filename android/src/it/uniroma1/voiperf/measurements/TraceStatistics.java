@@ -11,6 +11,7 @@ public class TraceStatistics {
     private double mRate = 0.0;
     private double mMOS = 0.0;
     private double mAverageJitter = 0.0;
+    private LatencySketch mDelaySketch = null;
     
     public TraceStatistics(JSONObject o) throws NullPointerException {
         mPacketLoss = (Double) o.get(PACKET_LOSS);       
@@ -25,13 +26,32 @@ public class TraceStatistics {
         return (long) mRate;
     }
     
+    /**
+     * Sets jitter and MOS from the estimate computed on the device while the
+     * trace was running.
+     */
+    public void setCallQuality(CallQuality quality) {
+        if (quality == null) {
+            return;
+        }
+        mAverageJitter = quality.jitterMillis();
+        mMOS = quality.mos();
+        mDelaySketch = quality.delaySketch();
+    }
+    
     public double getAverageJitter() {
-        // TODO(claudiu) Include average jitter.
         return mAverageJitter;
     }
     
     public double getMOS() {
-        // TODO(claudiu) Include MOS.
         return mMOS;
     }
+    
+    /**
+     * Distribution of the round trip times (sent traces) or of the one way delays
+     * relative to the first packet (received traces), or null if unknown.
+     */
+    public LatencySketch getDelaySketch() {
+        return mDelaySketch;
+    }
 }
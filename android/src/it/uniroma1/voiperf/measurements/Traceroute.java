@@ -3,10 +3,9 @@ package it.uniroma1.voiperf.measurements;
 import it.uniroma1.voiperf.Config;
 import it.uniroma1.voiperf.Session;
 import it.uniroma1.voiperf.logging.Logger;
+import it.uniroma1.voiperf.util.ProcessRunner;
 import it.uniroma1.voiperf.util.Utils;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,6 +40,8 @@ public class Traceroute implements Runnable {
     
     private JSONObject mResult;
     private MeasurementException mError;
+    private volatile ProcessRunner mRunner = null;
+    private volatile boolean mCancelled = false;
     
     private String generateCommandLine(String destination) {
         
@@ -75,6 +76,18 @@ public class Traceroute implements Runnable {
         return mError;
     }
     
+    /**
+     * Kills the traceroute command, if running, or keeps it from starting. run()
+     * then fails.
+     */
+    public void cancel() {
+        mCancelled = true;
+        ProcessRunner runner = mRunner;
+        if (runner != null) {
+            runner.cancel();
+        }
+    }
+    
     public void run() {
         
         mError = null;
@@ -82,37 +95,31 @@ public class Traceroute implements Runnable {
         try {
             Logger.i(sTag, "Running traceroute command: " + command);
             
-            long startTime = System.currentTimeMillis();
-            Process p = Runtime.getRuntime().exec(command);
-            
-            // TODO: warning, this way of reading output from a process may deadlock
-            // implement a Popen.communicate()-like method in Utils and use that one instead
-            BufferedReader obr = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            StringBuffer osb = new StringBuffer();
-            String line;
-            while ((line = obr.readLine()) != null) {
-                osb.append(line).append("\n");
+            ProcessRunner runner = new ProcessRunner(command);
+            runner.setTimeout(Config.TRACEROUTE_TIMEOUT_MILLIS);
+            runner.setMaxLines(Config.COMMAND_MAX_OUTPUT_LINES);
+            mRunner = runner;
+            // cancel() may have been called before mRunner was set
+            if (mCancelled) {
+                runner.cancel();
             }
-            String output = osb.toString();
             
-            BufferedReader ebr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-            StringBuffer esb = new StringBuffer();
-            while((line = ebr.readLine()) != null) {
-                esb.append(line).append("\n");
+            long startTime = System.currentTimeMillis();
+            ProcessRunner.Result result = runner.run();
+            long endTime = System.currentTimeMillis();
+            if (result.killed) {
+                throw new MeasurementException("traceroute killed");
             }
-            String error = esb.toString();
-            
-            ebr.close();
-            obr.close();
-            
-            int retVal = p.waitFor();
-            long endTime = System.currentTimeMillis();        
             Logger.i(sTag, "Traceroute finished");
             
-            mResult = convertToJSON(output, error, retVal, mDestination, startTime, endTime);
+            String lines[] = result.output.toArray(new String[result.output.size()]);
+            mResult = convertToJSON(lines, result.errorText(), result.exitValue, mDestination,
+                                    startTime, endTime);
         } catch (Exception e) {
             Logger.e(sTag, "Traceroute command error: " + e.getMessage());
             mError = new MeasurementException("Failed to run traceroute command: " + command, e);
+        } finally {
+            mRunner = null;
         }
     }
     
@@ -124,10 +131,14 @@ public class Traceroute implements Runnable {
         }
         for (Object hop: (JSONArray) mResult.get(Traceroute.HOPS)) {
             String host = (String) ((JSONObject) hop).get(Traceroute.HOST);
+            if (host == null) {
+                // silent hop ("*")
+                continue;
+            }
             Ping ping = new Ping(host);
             ping.setCount(Config.DISCOVERY_PING_COUNT);
             ping.run();
-            if (isReachable(ping.getResult())) {
+            if (ping.isReachable()) {
                 mResult.put(Traceroute.FIRST_HOP, host);
                 return host;
             }
@@ -135,26 +146,13 @@ public class Traceroute implements Runnable {
         return null;
     }
     
-    private boolean isReachable(JSONObject pingResult) {
-        try {
-            String received = (String) ((JSONObject) pingResult
-                                            .get(Ping.PACKETS_STATS)).get(Ping.PACKETS_RECEIVED);
-            return Integer.parseInt(received) > 0;
-        } catch (NullPointerException e) {
-            return false;
-        } catch (NumberFormatException e) {
-            return false;
-        }
-    }
-    
     @SuppressWarnings("unchecked")
-    private JSONObject convertToJSON(String output, String error, int retVal,
+    private JSONObject convertToJSON(String lines[], String error, int retVal,
                                      String destination, long startTime, long endTime) {
         
         Logger.d(sTag, "convertToJSON");
         
         JSONObject traceroute = new JSONObject();
-        String lines[] = output.split("\\n");
         
         JSONObject info = new JSONObject();
         info.put(LINE, null);
@@ -5,6 +5,10 @@ import it.uniroma1.voiperf.Session;
 import it.uniroma1.voiperf.logging.Logger;
 import it.uniroma1.voiperf.results.Result;
 import it.uniroma1.voiperf.schedulers.Scheduler;
+import it.uniroma1.voiperf.traces.SyntheticTrace;
+import it.uniroma1.voiperf.traces.TraceCache;
+import it.uniroma1.voiperf.util.DeltaCodec;
+import it.uniroma1.voiperf.util.NetworkStatus;
 import it.uniroma1.voiperf.util.NetworkStatusRecorder;
 import it.uniroma1.voiperf.util.Utils;
 
@@ -12,26 +16,66 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
-public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
+/**
+ * A measurement run on the MeasurementExecutor: connection to the server,
+ * traceroute, traces and upload of the results, each phase with its own timeout.
+ */
+public class VoIPerfMeasurement implements Callable<Void> {
 
     private static final String sTag = VoIPerfMeasurement.class.getName();
     
     private ArrayList<Result> mResults = new ArrayList<Result>();
     
     public static class Measurement {
+        public static final int NO_GROUP = -1;
+        
         public final String measurementType;
         public final String traceFilename;
+        public final int engine;
+        // Consecutive tasks with the same group run concurrently (see MeasurementSession)
+        public final int group;
+        // Random traces only: with servers supporting synthetic traces, a trace with
+        // this profile is generated instead of loading the trace file
+        public final SyntheticTrace.Profile profile;
         
         public Measurement(String measurementType, String traceFilename) {
+            this(measurementType, traceFilename, Config.TRACE_ENGINE_DEFAULT);
+        }
+        
+        public Measurement(String measurementType, String traceFilename, int engine) {
+            this(measurementType, traceFilename, engine, NO_GROUP);
+        }
+        
+        public Measurement(String measurementType, String traceFilename, int engine,
+                           int group) {
+            this(measurementType, traceFilename, null, engine, group);
+        }
+        
+        public Measurement(String measurementType, String traceFilename,
+                           SyntheticTrace.Profile profile) {
+            this(measurementType, traceFilename, profile, Config.TRACE_ENGINE_DEFAULT, NO_GROUP);
+        }
+        
+        public Measurement(String measurementType, String traceFilename,
+                           SyntheticTrace.Profile profile, int engine, int group) {
             this.measurementType = measurementType;
             this.traceFilename = traceFilename;
+            this.profile = profile;
+            this.engine = engine;
+            this.group = group;
         }
     }
     
@@ -62,27 +106,56 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
     private static Measurement[] sUploadMeasurements10Kbps = {
         new Measurement(RandomTraceSender.TYPENAME, "warm_up.trace"),
         new Measurement(RTPTraceSender.TYPENAME, "rtp_30s_10Kbps_20ms.trace"),
-        new Measurement(RandomTraceSender.TYPENAME, "random_30s_10Kbps_20ms.trace")
+        new Measurement(RandomTraceSender.TYPENAME, "random_30s_10Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_10KBPS_20MS)
     };
     
     private static Measurement[] sUploadMeasurements20Kbps = {
         new Measurement(RandomTraceSender.TYPENAME, "warm_up.trace"),
         new Measurement(RTPTraceSender.TYPENAME, "rtp_30s_20Kbps_20ms.trace"),
-        new Measurement(RandomTraceSender.TYPENAME, "random_30s_20Kbps_20ms.trace")
+        new Measurement(RandomTraceSender.TYPENAME, "random_30s_20Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_20KBPS_20MS)
     };
     
     private static Measurement[] sDownloadMeasurements10Kbps = {
         new Measurement(RandomTraceReceiver.TYPENAME, "warm_up.trace"),
         new Measurement(RTPTraceReceiver.TYPENAME, "rtp_30s_10Kbps_20ms.trace"),
-        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_10Kbps_20ms.trace")
+        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_10Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_10KBPS_20MS)
     };
     
     private static Measurement[] sDownloadMeasurements20Kbps = {
         new Measurement(RandomTraceReceiver.TYPENAME, "warm_up.trace"),
         new Measurement(RTPTraceReceiver.TYPENAME, "rtp_30s_20Kbps_20ms.trace"),
-        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_20Kbps_20ms.trace")
+        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_20Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_20KBPS_20MS)
+    };
+    
+    
+    // Full-duplex call emulation: each upload trace runs with the matching download one
+    private static Measurement[] sDuplexMeasurements10Kbps = {
+        new Measurement(RandomTraceSender.TYPENAME, "warm_up.trace"),
+        new Measurement(RTPTraceSender.TYPENAME, "rtp_30s_10Kbps_20ms.trace",
+                        Config.TRACE_ENGINE_DEFAULT, 1),
+        new Measurement(RTPTraceReceiver.TYPENAME, "rtp_30s_10Kbps_20ms.trace",
+                        Config.TRACE_ENGINE_DEFAULT, 1),
+        new Measurement(RandomTraceSender.TYPENAME, "random_30s_10Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_10KBPS_20MS, Config.TRACE_ENGINE_DEFAULT, 2),
+        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_10Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_10KBPS_20MS, Config.TRACE_ENGINE_DEFAULT, 2)
     };
     
+    private static Measurement[] sDuplexMeasurements20Kbps = {
+        new Measurement(RandomTraceSender.TYPENAME, "warm_up.trace"),
+        new Measurement(RTPTraceSender.TYPENAME, "rtp_30s_20Kbps_20ms.trace",
+                        Config.TRACE_ENGINE_DEFAULT, 1),
+        new Measurement(RTPTraceReceiver.TYPENAME, "rtp_30s_20Kbps_20ms.trace",
+                        Config.TRACE_ENGINE_DEFAULT, 1),
+        new Measurement(RandomTraceSender.TYPENAME, "random_30s_20Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_20KBPS_20MS, Config.TRACE_ENGINE_DEFAULT, 2),
+        new Measurement(RandomTraceReceiver.TYPENAME, "random_30s_20Kbps_20ms.trace",
+                        SyntheticTrace.VOICE_20KBPS_20MS, Config.TRACE_ENGINE_DEFAULT, 2)
+    };
     
     private static Measurement[][] sTasks = {
             sUploadMeasurements10Kbps, 
@@ -91,17 +164,60 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
             sDownloadMeasurements20Kbps
     };
     
+    private static Measurement[][] sDuplexTasks = {
+            sDuplexMeasurements10Kbps,
+            sDuplexMeasurements20Kbps
+    };
+    
     private final Scheduler mScheduler;
     private final NetworkStatusRecorder mNetworkStatusRecorder;
     private final ArrayList<Measurement> mTasks;
     
-    public static void runTaskNumber(Scheduler scheduler, int i) {
+    // Set while running, so that abort() can wake up the measurement thread
+    private volatile Thread mThread = null;
+    private volatile Socket mServer = null;
+    private volatile Traceroute mTraceroute = null;
+    private volatile String mAbortReason = null;
+    // Set by call(), or by cancelledBeforeStart() if call() will never run
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    
+    /**
+     * Starts the i-th tasks set on the measurement executor. The returned Future
+     * can be used to cancel the measurement.
+     */
+    public static Future<Void> runTaskNumber(Scheduler scheduler, int i) {
         VoIPerfMeasurement vm = new VoIPerfMeasurement(scheduler);
-        Logger.i(sTag, "Running tasks set " + i % sTasks.length);
-        for (Measurement task: sTasks[i % sTasks.length]) {
+        Measurement[][] tasks = Config.CONCURRENT_FLOWS_ENABLED ? sDuplexTasks : sTasks;
+        Logger.i(sTag, "Running tasks set " + i % tasks.length);
+        for (Measurement task: tasks[i % tasks.length]) {
             vm.addTask(task);
         }
-        vm.execute(null, null, null);
+        vm.prepare();
+        return MeasurementExecutor.getInstance().submit(vm);
+    }
+    
+    /**
+     * Loads all the traces used by the tasks sets into the trace cache, in a
+     * background thread, so that running a task does not need to parse them.
+     */
+    public static void preloadTraces() {
+        Context context = Session.getGlobalContext();
+        final LinkedHashSet<String> filenames = new LinkedHashSet<String>();
+        Measurement[][] taskSets = Config.CONCURRENT_FLOWS_ENABLED ? sDuplexTasks : sTasks;
+        for (Measurement[] tasks: taskSets) {
+            for (Measurement task: tasks) {
+                filenames.add(context.getFileStreamPath(task.traceFilename).getAbsolutePath());
+            }
+        }
+        Thread preloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Logger.i(sTag, "preloading " + filenames.size() + " traces");
+                TraceCache.getInstance().preload(filenames);
+            }
+        }, "TracePreloader");
+        preloader.setPriority(Thread.MIN_PRIORITY);
+        preloader.start();
     }
     
     public VoIPerfMeasurement(Scheduler scheduler) {
@@ -114,9 +230,12 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
         mTasks.add(task);
     }
     
-    @Override
-    protected void onPreExecute() {
-        Logger.d(sTag, "onPreExecute");
+    /**
+     * Must be called on the thread scheduling the measurement, before submitting
+     * it: the network status recorder listeners are bound to its looper.
+     */
+    public void prepare() {
+        Logger.d(sTag, "prepare");
         
         // Take a chance to rotate log files now
         Logger.d(sTag, "checking whether log files have to be rotated");
@@ -129,21 +248,74 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
         mNetworkStatusRecorder.startRecording();
     }
     
+    /**
+     * Aborts the measurement from another thread: closes the connection to the
+     * server, kills the traceroute and interrupts the measurement thread, so that
+     * whatever it is blocked on fails.
+     */
+    public void abort(String reason) {
+        if (mAbortReason != null) {
+            return;
+        }
+        Logger.w(sTag, "aborting measurement: " + reason);
+        mAbortReason = reason;
+        Traceroute traceroute = mTraceroute;
+        if (traceroute != null) {
+            traceroute.cancel();
+        }
+        Measurements.closeMeasurementServerConnection(mServer);
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+    
+    public boolean isAborted() {
+        return mAbortReason != null;
+    }
+    
+    /**
+     * Undoes prepare() and reports the measurement as failed to the scheduler,
+     * unless call() has already started (it then does it itself).
+     */
+    void cancelledBeforeStart() {
+        if (mStarted.compareAndSet(false, true) == false) {
+            return;
+        }
+        Logger.i(sTag, "measurement cancelled before it started");
+        mNetworkStatusRecorder.stopRecording();
+        mScheduler.measurementFinished(false, false, true);
+    }
+    
+    private MeasurementExecutor.Phase startPhase(String name, long timeoutMillis) {
+        return MeasurementExecutor.getInstance().startPhase(this, name, timeoutMillis);
+    }
+    
     @Override
-    protected Void doInBackground(Void... arg0) {
-        Logger.d(sTag, "doInBackground");
+    public Void call() {
+        Logger.d(sTag, "call");
+        if (mStarted.compareAndSet(false, true) == false) {
+            return null;
+        }
     
+        mThread = Thread.currentThread();
         Utils.acquireWakeLock();
         
         Socket server = null;
         boolean connectionSucceded = false;
         boolean serverIsBusy = false;
         boolean measurementFailed = true;
+        MeasurementExecutor.Phase phase = null;
         try {
             Context context = Session.getGlobalContext();
             
             // Connect to the server
+            phase = startPhase("connect", Config.CONNECT_PHASE_TIMEOUT_MILLIS);
             server = Measurements.connectToMeasurementServer();
+            mServer = server;
+            if (isAborted()) {
+                throw new MeasurementException("Measurement aborted: " + mAbortReason);
+            }
             DataOutputStream dos = new DataOutputStream(server.getOutputStream());
             DataInputStream dis = new DataInputStream(server.getInputStream());
             connectionSucceded = true;
@@ -160,57 +332,110 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
             }
             Logger.i(sTag, "Measurement server available, start measurement");
             
-            // Send our info
+            // Find the first reachable hop in the background, while waiting for the
+            // server features: until then, the traces ping the one found on this
+            // network last time, if any
+            Traceroute traceroute = new Traceroute(server.getInetAddress().getHostAddress());
+            mTraceroute = traceroute;
+            FirstHop firstHop = FirstHop.resolve(traceroute, NetworkStatus.getNetworkIdentity());
+            
+            // Send our info, and see which protocol features the server supports
             sendClientInfo(dos, server);
+            HashSet<String> serverFeatures = readServerFeatures(server, dis);
+            boolean sessionMode = serverFeatures.contains(MeasurementSession.FEATURE);
+            boolean flows = serverFeatures.contains(MeasurementSession.FLOWS_FEATURE);
+            boolean lateTraceroute = serverFeatures.contains(FirstHop.LATE_TRACEROUTE_FEATURE);
             
-            // Perform a traceroute and find the first reachable hop
-            Traceroute traceroute = new Traceroute(server.getInetAddress().getHostAddress());
-            traceroute.run();
-            String firstHop = traceroute.findFirstHop();
-            if (firstHop != null) {
-                Logger.i(sTag, "first hop is " + firstHop);
-            } else {
-                Logger.w(sTag, "failed to find the first hop!");
-            }
+            // From now on, use binary frames if the server supports them
+            ControlChannel ctrl = new ControlChannel(dis, dos);
+            ctrl.setFramed(serverFeatures.contains(ControlChannel.FEATURE));
+            ctrl.setDeltaEncoding(serverFeatures.contains(DeltaCodec.NAME));
+            ctrl.setMicroTimestamps(serverFeatures.contains(TimestampSource.FEATURE));
+            ctrl.setClockSync(serverFeatures.contains(ClockSync.FEATURE));
+            ctrl.setSyntheticTraces(serverFeatures.contains(SyntheticTrace.FEATURE));
+            
+            phase.end();
             
-            // Send traceroute results
-            sendTracerouteResult(dos, traceroute);
+            // Old servers want the traceroute results before the traces
+            if (lateTraceroute == false) {
+                phase = startPhase("traceroute", Config.TRACEROUTE_PHASE_TIMEOUT_MILLIS);
+                firstHop.await();
+                sendTracerouteResult(ctrl, traceroute);
+                phase.end();
+            }
 
-            for (Measurement task: mTasks) {
-                String traceFileName = context.getFileStreamPath(task.traceFilename)
-                                              .getAbsolutePath();
+            // Run the traces, pipelined if the server supports it
+            MeasurementSession session = null;
+            if (sessionMode) {
+                session = new MeasurementSession(ctrl, mTasks, flows);
+                session.start(context);
+                session.runTasks(firstHop, this);
+            } else {
+                for (int i = 0; i < mTasks.size(); ++i) {
+                    Measurement task = mTasks.get(i);
+                    String hop = firstHop.get(i > 0);
+                    phase = startPhase("trace " + task.traceFilename,
+                                       Config.TRACE_PHASE_TIMEOUT_MILLIS);
+                    String traceFileName = context.getFileStreamPath(task.traceFilename)
+                                                  .getAbsolutePath();
                 
-                // Send the measurement type
-                dos.writeBytes(task.measurementType + "\n");
+                    // Send the measurement type
+                    ctrl.writeLine(task.measurementType);
   
-                // Use the sender/receiver specified
-                if (task.measurementType.equals(RTPTraceReceiver.TYPENAME)) {
-                    addResult(fromTraceStatistics(
-                         RTPTraceReceiver.receiveTrace(dos, dis, traceFileName, firstHop), "Down"));
-                } else if (task.measurementType.equals(RandomTraceReceiver.TYPENAME)) {
-                    addResult(fromTraceStatistics(
-                      RandomTraceReceiver.receiveTrace(dos, dis, traceFileName, firstHop), "Down"));
-                } else if (task.measurementType.equals(RTPTraceSender.TYPENAME)) {
-                    addResult(fromTraceStatistics(
-                                RTPTraceSender.sendTrace(dos, dis, traceFileName, firstHop), "Up"));
-                } else if (task.measurementType.equals(RandomTraceSender.TYPENAME)) {
-                    addResult(fromTraceStatistics(
-                            RandomTraceSender.sendTrace(dos, dis, traceFileName, firstHop), "Up"));
+                    // Use the sender/receiver specified
+                    if (task.measurementType.equals(RTPTraceReceiver.TYPENAME)) {
+                        addResult(fromTraceStatistics(RTPTraceReceiver.receiveTrace(
+                                ctrl, traceFileName, hop, task.engine), "Down"));
+                    } else if (task.measurementType.equals(RandomTraceReceiver.TYPENAME)) {
+                        addResult(fromTraceStatistics(RandomTraceReceiver.receiveTrace(
+                                ctrl, traceFileName, hop, task.engine), "Down"));
+                    } else if (task.measurementType.equals(RTPTraceSender.TYPENAME)) {
+                        addResult(fromTraceStatistics(RTPTraceSender.sendTrace(
+                                ctrl, traceFileName, hop, task.engine), "Up"));
+                    } else if (task.measurementType.equals(RandomTraceSender.TYPENAME)) {
+                        addResult(fromTraceStatistics(RandomTraceSender.sendTrace(
+                                ctrl, traceFileName, hop, task.engine), "Up"));
+                    }
+                    phase.end();
                 }
             }
             
             // Tell the server that we finished sending traces
-            dos.writeBytes(Config.MEASUREMENTS_END_MESSAGE + "\n");
+            phase = startPhase("upload", Config.UPLOAD_PHASE_TIMEOUT_MILLIS);
+            ctrl.writeLine(Config.MEASUREMENTS_END_MESSAGE);
+            
+            if (lateTraceroute) {
+                firstHop.await();
+                sendTracerouteResult(ctrl, traceroute);
+            }
             
             // Send the recorded network status to the server
             mNetworkStatusRecorder.stopRecording();
-            sendRecordedNetworkStatuses(dos);
+            sendRecordedNetworkStatuses(ctrl);
             
-            measurementFailed = false;
+            // In session mode the trace statistics are collected in the background
+            if (session != null) {
+                for (int i = 0; i < session.size(); ++i) {
+                    String type = mTasks.get(i).measurementType;
+                    addResult(fromTraceStatistics(
+                        session.awaitStatistics(i, Config.SESSION_STATISTICS_TIMEOUT_MILLIS),
+                        isUpload(type) ? "Up" : "Down"));
+                }
+            }
+            
+            measurementFailed = isAborted();
             
         } catch (Exception e) {
             Logger.e(sTag, "Measurement failed: " + e.getMessage(), e);
         } finally {
+            if (phase != null) {
+                phase.end();
+            }
+            mServer = null;
+            mTraceroute = null;
+            mThread = null;
+            // Do not leave the interrupt of an abort to the next measurement
+            Thread.interrupted();
             Measurements.closeMeasurementServerConnection(server);
             mNetworkStatusRecorder.stopRecording(); // We do it again in case of Exceptions
             mScheduler.measurementFinished(connectionSucceded, serverIsBusy, measurementFailed);
@@ -236,32 +461,92 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
         
         info.put("preferences", Utils.dumpPreferences());
         
+        JSONArray features = getClientFeatures();
+        if (features.isEmpty() == false) {
+            info.put("features", features);
+        }
+        
         String infoString = info.toJSONString();
         dos.writeBytes(infoString.length() + "\n");
         dos.writeBytes(infoString);
         Logger.i(sTag, "client info sent");
     }
     
-    private void sendTracerouteResult(DataOutputStream dos, Traceroute traceroute)
-        throws IOException {
-        if (traceroute == null || traceroute.getResult() == null) {
-            dos.writeBytes("0\n");
-            return;
+    @SuppressWarnings("unchecked")
+    private static JSONArray getClientFeatures() {
+        JSONArray features = new JSONArray();
+        if (Config.MEASUREMENT_SESSION_ENABLED) {
+            features.add(MeasurementSession.FEATURE);
+        }
+        if (Config.CONTROL_FRAMES_ENABLED) {
+            features.add(ControlChannel.FEATURE);
         }
-        byte[] result = Utils.compressString(traceroute.getResult().toJSONString());
-        dos.writeBytes(result.length + "\n");
-        dos.write(result);
+        if (Config.DELTA_ENCODING_ENABLED) {
+            features.add(DeltaCodec.NAME);
+        }
+        if (Config.CONCURRENT_FLOWS_ENABLED) {
+            features.add(MeasurementSession.FLOWS_FEATURE);
+        }
+        if (Config.LATE_TRACEROUTE_ENABLED) {
+            features.add(FirstHop.LATE_TRACEROUTE_FEATURE);
+        }
+        if (Config.MICRO_TIMESTAMPS_ENABLED) {
+            features.add(TimestampSource.FEATURE);
+        }
+        if (Config.CLOCK_SYNC_ENABLED) {
+            features.add(ClockSync.FEATURE);
+        }
+        if (Config.SYNTHETIC_TRACES_ENABLED) {
+            features.add(SyntheticTrace.FEATURE);
+        }
+        return features;
     }
     
-    private void sendRecordedNetworkStatuses(DataOutputStream dos)
+    /**
+     * Reads the features supported by the server. Servers not supporting any
+     * feature do not answer at all, so give up after a short timeout.
+     */
+    private HashSet<String> readServerFeatures(Socket connection, DataInputStream dis)
         throws IOException {
-        if (mNetworkStatusRecorder == null) {
-            dos.writeBytes("0\n");
-            return;
+        HashSet<String> features = new HashSet<String>();
+        if (getClientFeatures().isEmpty()) {
+            return features;
+        }
+        int timeout = connection.getSoTimeout();
+        connection.setSoTimeout(Config.SERVER_FEATURES_TIMEOUT_MILLIS);
+        try {
+            String line = dis.readLine();
+            if (line != null && line.startsWith(Config.SERVER_FEATURES_MESSAGE)) {
+                String[] fields = line.trim().split(" ");
+                for (int i = 1; i < fields.length; ++i) {
+                    features.add(fields[i]);
+                }
+            } else {
+                Logger.w(sTag, "Unknown server features message \"" + line + "\"");
+            }
+        } catch (SocketTimeoutException e) {
+            Logger.i(sTag, "Server did not send its features, using the legacy protocol");
+        } finally {
+            connection.setSoTimeout(timeout);
         }
-        byte[] data = Utils.compressString(mNetworkStatusRecorder.getResult().toJSONString());
-        dos.writeBytes(data.length + "\n");
-        dos.write(data);
+        Logger.i(sTag, "Server features: " + features);
+        return features;
+    }
+    
+    private static boolean isUpload(String measurementType) {
+        return measurementType.equals(RTPTraceSender.TYPENAME) ||
+               measurementType.equals(RandomTraceSender.TYPENAME);
+    }
+    
+    private void sendTracerouteResult(ControlChannel ctrl, Traceroute traceroute)
+        throws IOException {
+        ctrl.writeCompressedJSON(traceroute != null ? traceroute.getResult() : null);
+    }
+    
+    private void sendRecordedNetworkStatuses(ControlChannel ctrl)
+        throws IOException {
+        ctrl.writeCompressedJSON(mNetworkStatusRecorder != null ?
+                                 mNetworkStatusRecorder.getResult() : null);
     }
     
     private void addResult(Result result) {
@@ -283,6 +568,12 @@ public class VoIPerfMeasurement extends AsyncTask<Void, Void, Void> {
         result.setTimestamp(System.currentTimeMillis()/1000);
         result.setMOS(ts.getMOS());
         result.setPacketLoss(ts.getPacketLoss()); 
+        LatencySketch delays = ts.getDelaySketch();
+        if (delays != null) {
+            result.setDelayPercentiles(delays.quantile(0.5), delays.quantile(0.95),
+                                       delays.quantile(0.99));
+            result.setDelaySketch(delays.toJSON().toJSONString());
+        }
         return result;
     }
     
@@ -7,6 +7,10 @@ public class Result {
     private double mPacketLoss = 1.2;
     private double mAverageJitter = 0.0;
     private double mMOS = 0.0;
+    private long mDelayP50 = 0;
+    private long mDelayP95 = 0;
+    private long mDelayP99 = 0;
+    private String mDelaySketch = null;
     
     public void setTimestamp(long timestamp) {
         mTimestamp = timestamp;
@@ -56,4 +60,33 @@ public class Result {
         return mMOS;
     }
     
+    public void setDelayPercentiles(long p50, long p95, long p99) {
+        mDelayP50 = p50;
+        mDelayP95 = p95;
+        mDelayP99 = p99;
+    }
+    
+    public long getDelayP50() {
+        return mDelayP50;
+    }
+    
+    public long getDelayP95() {
+        return mDelayP95;
+    }
+    
+    public long getDelayP99() {
+        return mDelayP99;
+    }
+    
+    /**
+     * Serialized LatencySketch of the delays, to merge results of several sessions.
+     */
+    public void setDelaySketch(String delaySketch) {
+        mDelaySketch = delaySketch;
+    }
+    
+    public String getDelaySketch() {
+        return mDelaySketch;
+    }
+    
 }
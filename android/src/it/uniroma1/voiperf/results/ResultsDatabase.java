@@ -20,13 +20,17 @@ public class ResultsDatabase {
     private static final String sTag = ResultsDatabase.class.getName();
     
     private static final String sDatabaseName = "voiperfDB";
-    private static final int sDatabaseVersion = 2;
+    private static final int sDatabaseVersion = 3;
     private static final String sResultTimestamp = "timestamp";
     private static final String sResultType = "type";
     private static final String sResultRate = "rate";
     private static final String sResultPacketLoss = "packet_loss";
     private static final String sResultAverageJitter = "average_jitter";
     private static final String sResultMOS = "MOS";
+    private static final String sResultDelayP50 = "delay_p50";
+    private static final String sResultDelayP95 = "delay_p95";
+    private static final String sResultDelayP99 = "delay_p99";
+    private static final String sResultDelaySketch = "delay_sketch";
     private static final String sVoiperfResultsTable = "results_summary";
    
     private final ResultsDatabaseHelper mDatabaseOpenHelper;
@@ -73,6 +77,10 @@ public class ResultsDatabase {
         result.setPacketLoss(cursor.getDouble(cursor.getColumnIndex(sResultPacketLoss)));
         result.setAverageJitter(cursor.getDouble(cursor.getColumnIndex(sResultAverageJitter)));
         result.setMOS(cursor.getDouble(cursor.getColumnIndex(sResultMOS)));
+        result.setDelayPercentiles(cursor.getLong(cursor.getColumnIndex(sResultDelayP50)),
+                                   cursor.getLong(cursor.getColumnIndex(sResultDelayP95)),
+                                   cursor.getLong(cursor.getColumnIndex(sResultDelayP99)));
+        result.setDelaySketch(cursor.getString(cursor.getColumnIndex(sResultDelaySketch)));
         
         return result;
     }
@@ -90,6 +98,10 @@ public class ResultsDatabase {
         initialValues.put(sResultPacketLoss, result.getPacketLoss() );
         initialValues.put(sResultAverageJitter, result.getAverageJitter());
         initialValues.put(sResultMOS, result.getMOS());
+        initialValues.put(sResultDelayP50, result.getDelayP50());
+        initialValues.put(sResultDelayP95, result.getDelayP95());
+        initialValues.put(sResultDelayP99, result.getDelayP99());
+        initialValues.put(sResultDelaySketch, result.getDelaySketch());
         
         long position =  db.insert(sVoiperfResultsTable, null, initialValues);
         if (position == -1) {
@@ -114,6 +126,10 @@ public class ResultsDatabase {
         map.put(sResultPacketLoss, sResultPacketLoss);
         map.put(sResultAverageJitter, sResultAverageJitter);
         map.put(sResultMOS, sResultMOS);
+        map.put(sResultDelayP50, sResultDelayP50);
+        map.put(sResultDelayP95, sResultDelayP95);
+        map.put(sResultDelayP99, sResultDelayP99);
+        map.put(sResultDelaySketch, sResultDelaySketch);
         map.put(BaseColumns._ID, "rowid AS " +
                 BaseColumns._ID);
         map.put(SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID, "rowid AS " +
@@ -158,7 +174,10 @@ public class ResultsDatabase {
                                       "CREATE TABLE IF NOT EXISTS " + sVoiperfResultsTable + " (" +
                                       sResultTimestamp + " INT(11), " + sResultType + " TEXT, "   +
                                       sResultRate + " DOUBLE, " + sResultPacketLoss + " DOUBLE, " +
-                                      sResultAverageJitter + " DOUBLE, " + sResultMOS + " DOUBLE);";
+                                      sResultAverageJitter + " DOUBLE, " +
+                                      sResultMOS + " DOUBLE, " +
+                                      sResultDelayP50 + " INT, " + sResultDelayP95 + " INT, "     +
+                                      sResultDelayP99 + " INT, " + sResultDelaySketch + " TEXT);";
         
         ResultsDatabaseHelper(Context context) {
             super(context, sDatabaseName, null, sDatabaseVersion);
@@ -171,6 +190,19 @@ public class ResultsDatabase {
         
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 2) {
+                // Version 3 only adds the delay distribution columns
+                Logger.i(sTag, "Upgrading database from version 2 to " + newVersion);
+                db.execSQL("ALTER TABLE " + sVoiperfResultsTable + " ADD COLUMN " +
+                           sResultDelayP50 + " INT DEFAULT 0");
+                db.execSQL("ALTER TABLE " + sVoiperfResultsTable + " ADD COLUMN " +
+                           sResultDelayP95 + " INT DEFAULT 0");
+                db.execSQL("ALTER TABLE " + sVoiperfResultsTable + " ADD COLUMN " +
+                           sResultDelayP99 + " INT DEFAULT 0");
+                db.execSQL("ALTER TABLE " + sVoiperfResultsTable + " ADD COLUMN " +
+                           sResultDelaySketch + " TEXT");
+                return;
+            }
             Logger.w(sTag, "Upgrading database from version " + oldVersion + " to "
                             + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + sVoiperfResultsTable);
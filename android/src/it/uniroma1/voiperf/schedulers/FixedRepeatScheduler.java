@@ -5,6 +5,9 @@ import it.uniroma1.voiperf.Session;
 import it.uniroma1.voiperf.VoIPerfPreferenceActivity;
 import it.uniroma1.voiperf.logging.Logger;
 import it.uniroma1.voiperf.measurements.VoIPerfMeasurement;
+
+import java.util.concurrent.Future;
+
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -23,6 +26,7 @@ public class FixedRepeatScheduler implements Scheduler {
     private boolean mIsRunning = false;       // Tells whether the scheduler is running or not
     private SchedulerProfile mProfile = null; // Used to decide the time of the next measurement
     private int mBatteryMin = -1;             // Minimum battery threshold
+    private Future<Void> mMeasurement = null; // Measurement currently running, if any
     
     private final BroadcastReceiver mAlarmReceiver = new BroadcastReceiver() {
         @Override
@@ -60,7 +64,9 @@ public class FixedRepeatScheduler implements Scheduler {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             int index = prefs.getInt(Config.TASKS_LIST_INDEX_PREF_KEY, 0);
             Logger.d(sTag, "task index loded is " + index);
-            VoIPerfMeasurement.runTaskNumber(this, index);
+            synchronized (this) {
+                mMeasurement = VoIPerfMeasurement.runTaskNumber(this, index);
+            }
         }
     }
     
@@ -70,6 +76,7 @@ public class FixedRepeatScheduler implements Scheduler {
         
         Logger.d(sTag, "measurementFinished");
         
+        mMeasurement = null;
         if (mIsRunning) {
             Context context = Session.getGlobalContext();
             
@@ -203,7 +210,17 @@ public class FixedRepeatScheduler implements Scheduler {
         // so when start() is called we can count the time elapsed while we were stopped
         cancelAlarm(context, false);
         
+        // Stopped before cancelling, so that the measurement being cancelled does
+        // not schedule the next one when it reports back to measurementFinished()
         mIsRunning = false;
+        
+        // A measurement started before the connection was lost would fail anyway
+        Future<Void> measurement = mMeasurement;
+        mMeasurement = null;
+        if (measurement != null) {
+            Logger.i(sTag, "Cancelling the running measurement");
+            measurement.cancel(true);
+        }
     }
     
     public synchronized boolean isRunning() {
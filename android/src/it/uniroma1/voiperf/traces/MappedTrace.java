@@ -0,0 +1,295 @@
+package it.uniroma1.voiperf.traces;
+
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A trace backed by a memory-mapped trace file (either version 1 or RTP traces).
+ * Version 4 traces are decoded by TraceV4 into a heap buffer instead.
+ *
+ * The file is mapped once and scanned once: timestamps, lengths and payload offsets
+ * of the packets are stored in flat arrays, while payloads are never copied out of
+ * the mapping unless asked to. No per-packet object is allocated while loading.
+ * All the accessors use absolute reads, so a MappedTrace can be shared among threads.
+ */
+public class MappedTrace extends Trace {
+
+    private static final String sTag = MappedTrace.class.getName();
+
+    private static final int PREAMBLE_SIZE = 4 + 4 + 2;
+    private static final int PACKET_HEADER_SIZE = 8 + 2;
+
+    private final int mVersion;
+    private final ByteBuffer mBuffer;
+    private final int mSize;
+    private final double[] mTimestamps;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final int[] mSequenceNumbers;
+    private int mMinSequenceNumber = 0;
+    private int mMaxSequenceNumber = -1;
+
+    MappedTrace(int id, short dport, int version, ByteBuffer buffer, int size,
+                double[] timestamps, int[] offsets, int[] lengths,
+                int[] sequenceNumbers) {
+        super(id, dport);
+        mVersion = version;
+        mBuffer = buffer;
+        mSize = size;
+        mTimestamps = timestamps;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mSequenceNumbers = sequenceNumbers;
+        if (sequenceNumbers != null && size > 0) {
+            mMinSequenceNumber = sequenceNumbers[0];
+            mMaxSequenceNumber = sequenceNumbers[0];
+            for (int i = 1; i < size; ++i) {
+                mMinSequenceNumber = Math.min(mMinSequenceNumber, sequenceNumbers[i]);
+                mMaxSequenceNumber = Math.max(mMaxSequenceNumber, sequenceNumbers[i]);
+            }
+        }
+    }
+
+    public static MappedTrace loadFromFile(String filename) throws IOException {
+
+        Logger.i(sTag, "Mapping trace file " + filename);
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "r");
+            FileChannel channel = file.getChannel();
+            // The mapping stays valid after the channel has been closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return MappedTrace.load(buffer);
+        } catch (IOException e) {
+            Logger.e(sTag, "Failed to map trace from file " + filename + ": " + e.getMessage());
+            throw e;
+        } finally {
+            try { file.close(); } catch (Exception e) { }
+        }
+    }
+
+    /**
+     * Indexes the packets of a version 1 or RTP trace stored in the given buffer,
+     * or decodes a version 4 one.
+     */
+    public static MappedTrace load(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int end = buffer.limit();
+        if (end < PREAMBLE_SIZE) {
+            throw new IOException("Unexpected end of file");
+        }
+
+        /* read the preamble */
+        int version = buffer.getInt(0);
+        if (version == TraceV4.VERSION) {
+            return TraceV4.load(buffer);
+        }
+        if (version != TraceV1.VERSION && version != RTPTrace.VERSION) {
+            throw new IOException("Invalid trace version (got " + version + ")");
+        }
+        int id = buffer.getInt(4);
+        short dport = buffer.getShort(8);
+        boolean isRTP = version == RTPTrace.VERSION;
+
+        /* count the packets first, so the index arrays can be allocated just once */
+        int count = 0;
+        int position = PREAMBLE_SIZE;
+        while (position + PACKET_HEADER_SIZE <= end) {
+            position += PACKET_HEADER_SIZE + (buffer.getShort(position + 8) & 0xFFFF);
+            count += 1;
+        }
+
+        double[] timestamps = new double[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        int[] sequenceNumbers = isRTP ? new int[count] : null;
+        RTPHeader.SequenceTracker tracker = isRTP ? new RTPHeader.SequenceTracker() : null;
+
+        /* then index each packet in turn, ensuring the RTP header is there */
+        int size = 0;
+        position = PREAMBLE_SIZE;
+        for (int i = 0; i < count; ++i) {
+            double ts = buffer.getDouble(position);
+            int length = buffer.getShort(position + 8) & 0xFFFF;
+            int offset = position + PACKET_HEADER_SIZE;
+            position = offset + length;
+            if (position > end) {
+                Logger.w(sTag, "truncated packet at the end of the trace! Skipping it");
+                break;
+            }
+            if (isRTP) {
+                if (length < RTPHeader.SIZE) {
+                    throw new IOException("Invalid RTP header");
+                }
+                int seq = (buffer.get(offset + 2) << 8) & 0xFF00 | buffer.get(offset + 3) & 0xFF;
+                sequenceNumbers[size] = tracker.extend(seq);
+            }
+            timestamps[size] = ts;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size += 1;
+        }
+        if (isRTP) {
+            size = removeDuplicates(size, timestamps, offsets, lengths, sequenceNumbers);
+        }
+
+        return new MappedTrace(id, dport, version, buffer, size,
+                               timestamps, offsets, lengths, sequenceNumbers);
+    }
+
+    /**
+     * Drops the packets whose extended sequence number has already been seen, with
+     * a bitmap as large as the range of the sequence numbers. Returns the number of
+     * packets left.
+     */
+    private static int removeDuplicates(int count, double[] timestamps, int[] offsets,
+                                        int[] lengths, int[] sequenceNumbers) {
+        if (count == 0) {
+            return 0;
+        }
+        int min = sequenceNumbers[0];
+        int max = sequenceNumbers[0];
+        for (int i = 1; i < count; ++i) {
+            min = Math.min(min, sequenceNumbers[i]);
+            max = Math.max(max, sequenceNumbers[i]);
+        }
+        long[] seen = new long[(int) (((long) max - min) / Long.SIZE) + 1];
+        int size = 0;
+        for (int i = 0; i < count; ++i) {
+            int bit = sequenceNumbers[i] - min;
+            if ((seen[bit >> 6] & (1L << (bit & 63))) != 0) {
+                Logger.w(sTag, "duplicate RTP sequence number detected! Skipping it");
+                continue;
+            }
+            seen[bit >> 6] |= 1L << (bit & 63);
+            timestamps[size] = timestamps[i];
+            offsets[size] = offsets[i];
+            lengths[size] = lengths[i];
+            sequenceNumbers[size] = sequenceNumbers[i];
+            size += 1;
+        }
+        return size;
+    }
+
+    @Override
+    public int version() {
+        return mVersion;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public long durationMillis() {
+        if (mSize == 0)
+            return 0;
+        return (long) (mTimestamps[mSize - 1] * 1000) - (long) (mTimestamps[0] * 1000);
+    }
+
+    @Override
+    public double ts(int index) {
+        return mTimestamps[index];
+    }
+
+    @Override
+    public int packetSize(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * Copies the payload with a single bulk get, on a duplicate of the buffer so
+     * that the trace can be read by several threads at once. The senders go
+     * through cursor() instead, which duplicates the buffer just once.
+     */
+    @Override
+    public void copyPayload(int index, byte[] dst, int offset) {
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(mOffsets[index]);
+        src.get(dst, offset, mLengths[index]);
+    }
+
+    /**
+     * Returns a cursor with its own duplicate of the buffer, so that payloads are
+     * bulk copied without allocating anything per packet.
+     */
+    @Override
+    public TraceCursor cursor() {
+        return new TraceCursor.IndexCursor(this) {
+            private final ByteBuffer mSource = mBuffer.duplicate();
+
+            @Override
+            public void copyPayload(byte[] dst, int offset) {
+                mSource.position(mOffsets[index()]);
+                mSource.get(dst, offset, mLengths[index()]);
+            }
+        };
+    }
+
+    /**
+     * Returns a read-only view of the payload of the packet at the given index.
+     */
+    public ByteBuffer payload(int index) {
+        ByteBuffer view = mBuffer.asReadOnlyBuffer();
+        view.limit(mOffsets[index] + mLengths[index]);
+        view.position(mOffsets[index]);
+        return view.slice();
+    }
+
+    public boolean hasRTPHeaders() {
+        return mSequenceNumbers != null;
+    }
+
+    /**
+     * Returns the extended RTP sequence number of the packet at the given index
+     * (see RTPHeader.SequenceTracker), counting the wraparounds since the first
+     * packet of the trace. Those of the other accessors are extended as well, so
+     * arrays indexed by sequenceNumber() - minSequenceNumber() take
+     * sequenceNumberRange() entries, about as many as the packets.
+     */
+    public int sequenceNumber(int index) {
+        return mSequenceNumbers[index];
+    }
+
+    public int minSequenceNumber() {
+        return mMinSequenceNumber;
+    }
+
+    public int maxSequenceNumber() {
+        return mMaxSequenceNumber;
+    }
+
+    public int sequenceNumberRange() {
+        return mMaxSequenceNumber - mMinSequenceNumber + 1;
+    }
+
+    /**
+     * Materialises a copy of every packet of the trace. This is only meant for
+     * code still relying on packet objects: the trace engines use the index
+     * based accessors instead.
+     */
+    @Override @SuppressWarnings({ "rawtypes", "unchecked" })
+    public ArrayList packets() {
+        ArrayList packets = new ArrayList(mSize);
+        for (int i = 0; i < mSize; ++i) {
+            byte[] payload = new byte[mLengths[i]];
+            copyPayload(i, payload, 0);
+            if (hasRTPHeaders()) {
+                packets.add(new RTPTrace.Packet(mTimestamps[i],
+                                                RTPHeader.load(payload, payload.length),
+                                                payload));
+            } else {
+                packets.add(new TraceV1.Packet(mTimestamps[i], payload));
+            }
+        }
+        return packets;
+    }
+}
@@ -42,6 +42,18 @@ public class PacketFooter {
         return seq;
     }
     
+    public static long getTimestamp(byte[] payload, int length)
+        throws IllegalArgumentException {
+        if (length < SIZE) {
+            throw new IllegalArgumentException("Packet footer data buffer is too small");
+        }
+        long timestamp = 0;
+        for (int i = length - TIMESTAMP_SIZE; i < length; ++i) {
+            timestamp = (timestamp << 8) | (payload[i] & 0xFF);
+        }
+        return timestamp;
+    }
+    
     public static PacketFooter load(byte[] payload, int length) {
         if (length < SIZE) {
             // not enough bytes for the footer to be in the packet
@@ -54,6 +66,25 @@ public class PacketFooter {
         }
     }
     
+    /**
+     * Writes the footer in place, over the last SIZE bytes of the first length
+     * bytes of data. Returns false if the packet is too small to store a footer.
+     */
+    public static boolean write(byte[] data, int length, int seq, long timestamp) {
+        if (length < SIZE) {
+            return false;
+        }
+        int i = length - SIZE;
+        data[i++] = (byte) (seq >> 24);
+        data[i++] = (byte) (seq >> 16);
+        data[i++] = (byte) (seq >> 8);
+        data[i++] = (byte) seq;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            data[i++] = (byte) (timestamp >> shift);
+        }
+        return true;
+    }
+    
     public static boolean append(byte[] payload, int seq, long timestamp, ByteBuffer output)
         throws BufferOverflowException {
         
@@ -72,4 +103,102 @@ public class PacketFooter {
             return true;
         }
     }
+    
+    /**
+     * Replies to the packets of a trace, indexed by sequence number and stored in
+     * parallel primitive arrays: footers are decoded in place, so recording a reply
+     * does not allocate anything. Replies received more than once are counted as
+     * duplicates, replies received after one with a higher sequence number are
+     * counted as reordered.
+     */
+    public static class ReplyTable {
+        
+        /* Values returned by record() for the replies that are not recorded */
+        public static final int INVALID = -1;
+        public static final int DUPLICATE = -2;
+        
+        private final long[] mSentTimestamps;
+        private final long[] mRecvTimestamps;
+        private final int[] mCounts;
+        private int mHighestSeq = -1;
+        private int mReplies = 0;
+        private int mDuplicates = 0;
+        private int mReordered = 0;
+        
+        public ReplyTable(int size) {
+            mSentTimestamps = new long[size];
+            mRecvTimestamps = new long[size];
+            mCounts = new int[size];
+        }
+        
+        public int size() {
+            return mCounts.length;
+        }
+        
+        /**
+         * Decodes the footer stored in the first length bytes of data, and records
+         * it as received at time now. Returns the sequence number of the reply,
+         * DUPLICATE if a reply with the same sequence number was already recorded,
+         * or INVALID if the packet has no footer or its sequence number is out of
+         * range.
+         */
+        public int record(byte[] data, int length, long now) {
+            if (length < SIZE) {
+                return INVALID;
+            }
+            int seq = getSequenceNumber(data, length);
+            if (seq < 0 || seq >= mCounts.length) {
+                return INVALID;
+            }
+            int count = mCounts[seq]++;
+            if (count > 0) {
+                mDuplicates += 1;
+                return DUPLICATE;
+            }
+            mSentTimestamps[seq] = getTimestamp(data, length);
+            mRecvTimestamps[seq] = now;
+            mReplies += 1;
+            if (seq < mHighestSeq) {
+                mReordered += 1;
+            } else {
+                mHighestSeq = seq;
+            }
+            return seq;
+        }
+        
+        public boolean isReceived(int seq) {
+            return mCounts[seq] > 0;
+        }
+        
+        public int replies() {
+            return mReplies;
+        }
+        
+        public int duplicates() {
+            return mDuplicates;
+        }
+        
+        public int reordered() {
+            return mReordered;
+        }
+        
+        /**
+         * Returns the RTT of the packet with the given sequence number, or -1
+         * if no reply has been received for it.
+         */
+        public long rtt(int seq) {
+            return mCounts[seq] > 0 ? mRecvTimestamps[seq] - mSentTimestamps[seq] : -1;
+        }
+        
+        /**
+         * Returns the RTT of each packet, or -1 for the packets with no reply.
+         */
+        public long[] getRTTs() {
+            long[] RTTs = new long[mCounts.length];
+            for (int seq = 0; seq < RTTs.length; ++seq) {
+                RTTs[seq] = rtt(seq);
+            }
+            return RTTs;
+        }
+    }
 }
@@ -4,6 +4,94 @@ public class RTPHeader {
 
     public static int SIZE = 12;
 
+    /**
+     * Extends 16 bit RTP sequence numbers with the count of their wraparounds
+     * (cycles), as in RFC 3550 (appendix A.1): the extended sequence number of a
+     * packet is cycles * 65536 + its sequence number.
+     *
+     * Sequence numbers up to MAX_DROPOUT ahead of the highest one seen so far move
+     * it forward, counting a cycle when they wrap. Those up to MAX_MISORDER behind
+     * it are late packets, of the current cycle or of the previous one. Anything
+     * else is a jump, only followed once the next packet confirms it. Trackers
+     * starting from the same extended sequence number extend the packets of a trace
+     * the same way unless MAX_DROPOUT packets in a row are lost, so both ends of the
+     * trace agree on them.
+     */
+    public static class SequenceTracker {
+
+        public static final int SEQ_MOD = 1 << 16;
+        public static final int MAX_DROPOUT = 3000;
+        public static final int MAX_MISORDER = 100;
+
+        private boolean mStarted = false;
+        private int mMaxSeq;
+        private int mCycles;
+        private int mBadSeq = -1;
+
+        /**
+         * Tracker taking the first sequence number it sees as the start of cycle 0.
+         */
+        public SequenceTracker() { }
+
+        /**
+         * Tracker starting from the given extended sequence number, as if it had
+         * already seen it.
+         */
+        public SequenceTracker(int extended) {
+            mStarted = true;
+            mMaxSeq = extended & 0xFFFF;
+            mCycles = extended >> 16;
+        }
+
+        /**
+         * Returns the extended sequence number of the given sequence number.
+         */
+        public int extend(int seq) {
+            seq &= 0xFFFF;
+            if (mStarted == false) {
+                mStarted = true;
+                mMaxSeq = seq;
+                return seq;
+            }
+            int udelta = (seq - mMaxSeq) & 0xFFFF;
+            if (udelta < MAX_DROPOUT) {
+                // In order, with a permissible gap
+                mBadSeq = -1;
+                return advance(seq);
+            } else if (udelta <= SEQ_MOD - MAX_MISORDER) {
+                // A big jump: follow it only if the previous packet made the same one
+                if (seq == mBadSeq) {
+                    mBadSeq = -1;
+                    return advance(seq);
+                }
+                mBadSeq = (seq + 1) & 0xFFFF;
+                return (seq < mMaxSeq ? mCycles + 1 : mCycles) * SEQ_MOD + seq;
+            } else {
+                // Duplicate or reordered packet
+                return (seq > mMaxSeq ? mCycles - 1 : mCycles) * SEQ_MOD + seq;
+            }
+        }
+
+        private int advance(int seq) {
+            if (seq < mMaxSeq) {
+                mCycles += 1;
+            }
+            mMaxSeq = seq;
+            return mCycles * SEQ_MOD + seq;
+        }
+
+        public int cycles() {
+            return mCycles;
+        }
+
+        /**
+         * Returns the highest extended sequence number seen so far.
+         */
+        public int maxExtended() {
+            return mCycles * SEQ_MOD + mMaxSeq;
+        }
+    }
+
     private int mVersion;
     private int mPadding;
     private int mExtension;
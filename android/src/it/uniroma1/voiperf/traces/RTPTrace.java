@@ -8,7 +8,7 @@ import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
 
 public class RTPTrace extends Trace {
 
@@ -51,7 +51,12 @@ public class RTPTrace extends Trace {
     };
     
     protected final ArrayList<Packet> mPackets;
-    private int mMinSequenceNumber = -1;
+    private final RTPHeader.SequenceTracker mTracker = new RTPHeader.SequenceTracker();
+    // Extended sequence numbers added so far, offset from the first one: late
+    // packets are at most MAX_MISORDER behind it
+    private final BitSet mSeen = new BitSet();
+    private int mFirstSequenceNumber;
+    private int mMinSequenceNumber = 0;
     private int mMaxSequenceNumber = -1;
     
     public RTPTrace(int id, short dport, ArrayList<Packet> packets) {
@@ -67,15 +72,26 @@ public class RTPTrace extends Trace {
         this(id, dport, null);
     }
     
-    public void addPacket(Packet packet) {
-        int seq = packet.getHeader().sequenceNumber();
-        if (mMinSequenceNumber < 0 || seq < mMinSequenceNumber) {
+    /**
+     * Adds the packet, unless the trace already has one with the same extended
+     * sequence number (see RTPHeader.SequenceTracker). Returns whether it was added.
+     */
+    public boolean addPacket(Packet packet) {
+        int seq = mTracker.extend(packet.getHeader().sequenceNumber());
+        if (mSeen.isEmpty()) {
+            mFirstSequenceNumber = seq;
             mMinSequenceNumber = seq;
-        }
-        if (mMaxSequenceNumber < seq) {
             mMaxSequenceNumber = seq;
         }
+        int bit = seq - mFirstSequenceNumber + RTPHeader.SequenceTracker.MAX_MISORDER;
+        if (bit < 0 || mSeen.get(bit)) {
+            return false;
+        }
+        mSeen.set(bit);
+        mMinSequenceNumber = Math.min(mMinSequenceNumber, seq);
+        mMaxSequenceNumber = Math.max(mMaxSequenceNumber, seq);
         mPackets.add(packet);
+        return true;
     }
     
     public Packet getPacket(int index) {
@@ -109,6 +125,22 @@ public class RTPTrace extends Trace {
         return mMaxSequenceNumber - mMinSequenceNumber + 1;
     }
     
+    @Override
+    public double ts(int index) {
+        return mPackets.get(index).ts();
+    }
+    
+    @Override
+    public int packetSize(int index) {
+        return mPackets.get(index).size();
+    }
+    
+    @Override
+    public void copyPayload(int index, byte[] dst, int offset) {
+        Packet packet = mPackets.get(index);
+        System.arraycopy(packet.payload(), 0, dst, offset, packet.size());
+    }
+    
     @Override
     public long durationMillis() {
         if (mPackets.isEmpty())
@@ -134,7 +166,6 @@ public class RTPTrace extends Trace {
     }
 
     public static RTPTrace loadFromStream(DataInputStream input) throws IOException {
-        HashSet<Integer> sequenceNumbers = new HashSet<Integer>();
         try {
             /* read the preamble */
             int version = input.readInt();
@@ -150,12 +181,9 @@ public class RTPTrace extends Trace {
             while (true) {
                 Packet packet = readPacket(input);
                 if (packet != null) {
-                    Integer seq = Integer.valueOf(packet.getHeader().sequenceNumber());
-                    if (sequenceNumbers.add(seq) == false) {
+                    if (trace.addPacket(packet) == false) {
                         Logger.w(sTag, "duplicate RTP sequence number detected! Skipping it");
-                        continue;
                     }
-                    trace.addPacket(packet);
                 } else {
                     break;
                 }
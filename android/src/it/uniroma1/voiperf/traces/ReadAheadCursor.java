@@ -0,0 +1,170 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.IOException;
+
+/**
+ * Cursor reading the packets of another cursor ahead, on a helper thread, so that
+ * file reads and payload generation do not delay the thread sending the trace.
+ *
+ * Packets are copied into a ring of depth slots allocated once: the helper thread
+ * waits when all of them are full, so at most depth packets are ever read ahead.
+ * The slot of the current packet is only handed back to the helper thread by the
+ * following call to next().
+ */
+public class ReadAheadCursor extends TraceCursor {
+
+    private final TraceCursor mSource;
+    private final int mDepth;
+    private final int[] mIndexes;
+    private final double[] mTimestamps;
+    private final int[] mSizes;
+    private final byte[][] mPayloads;
+    private final Thread mThread;
+
+    // Guarded by this: packets read by the helper thread, and packets consumed
+    private long mRead = 0;
+    private long mConsumed = 0;
+    private boolean mEnded = false;
+    private boolean mClosed = false;
+    private IOException mError = null;
+
+    private int mCurrent = -1;
+
+    /**
+     * Starts reading the given cursor ahead. Packets bigger than maxPacketSize are
+     * reported as an IOException by next().
+     */
+    public ReadAheadCursor(TraceCursor source, int depth, int maxPacketSize) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Invalid read ahead depth " + depth);
+        }
+        mSource = source;
+        mDepth = depth;
+        mIndexes = new int[depth];
+        mTimestamps = new double[depth];
+        mSizes = new int[depth];
+        mPayloads = new byte[depth][maxPacketSize];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "trace read ahead");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                int slot;
+                synchronized (this) {
+                    while (mRead - mConsumed >= mDepth && mClosed == false) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    slot = (int) (mRead % mDepth);
+                }
+                // The slot is ours until it is published below
+                if (mSource.next() == false) {
+                    break;
+                }
+                int size = mSource.packetSize();
+                if (size > mPayloads[slot].length) {
+                    throw new IOException("Packet " + mSource.index() + " of trace is too big (" +
+                                          size + " bytes)");
+                }
+                mIndexes[slot] = mSource.index();
+                mTimestamps[slot] = mSource.ts();
+                mSizes[slot] = size;
+                mSource.copyPayload(mPayloads[slot], 0);
+                synchronized (this) {
+                    mRead += 1;
+                    if (mRead - mConsumed == 1) {
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mError = e;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            synchronized (this) {
+                mEnded = true;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        synchronized (this) {
+            if (mCurrent >= 0) {
+                // Hand the slot of the previous packet back to the helper thread
+                mConsumed += 1;
+                mCurrent = -1;
+                if (mRead - mConsumed == mDepth - 1) {
+                    notifyAll();
+                }
+            }
+            try {
+                while (mRead == mConsumed && mEnded == false) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading the trace ahead");
+            }
+            if (mRead == mConsumed) {
+                if (mError != null) {
+                    throw mError;
+                }
+                return false;
+            }
+            mCurrent = (int) (mConsumed % mDepth);
+            return true;
+        }
+    }
+
+    @Override
+    public int index() {
+        return mIndexes[mCurrent];
+    }
+
+    @Override
+    public double ts() {
+        return mTimestamps[mCurrent];
+    }
+
+    @Override
+    public int packetSize() {
+        return mSizes[mCurrent];
+    }
+
+    @Override
+    public void copyPayload(byte[] dst, int offset) {
+        System.arraycopy(mPayloads[mCurrent], 0, dst, offset, mSizes[mCurrent]);
+    }
+
+    /**
+     * Stops the helper thread and closes the source cursor.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSource.close();
+    }
+}
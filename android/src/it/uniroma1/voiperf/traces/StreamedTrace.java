@@ -0,0 +1,219 @@
+package it.uniroma1.voiperf.traces;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Version 1 trace read from its file as it is sent, rather than mapped and indexed
+ * (see MappedTrace), so that arbitrarily long traces can be sent with a bounded
+ * amount of memory.
+ *
+ * Only the number of packets and the duration of the trace are known up front,
+ * from a first pass over the file: packets can only be read through cursor(), and
+ * the index based accessors throw UnsupportedOperationException.
+ */
+public class StreamedTrace extends Trace {
+
+    private static final String sTag = StreamedTrace.class.getName();
+
+    private static final int PREAMBLE_SIZE = 4 + 4 + 2;
+    private static final int PACKET_HEADER_SIZE = 8 + 2;
+
+    private final String mFilename;
+    private final int mSize;
+    private final long mDurationMillis;
+
+    private StreamedTrace(String filename, int id, short dport, int size, long durationMillis) {
+        super(id, dport);
+        mFilename = filename;
+        mSize = size;
+        mDurationMillis = durationMillis;
+    }
+
+    /**
+     * Whether the given trace file can be streamed.
+     */
+    public static boolean isStreamable(String filename) throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(filename));
+        try {
+            return input.readInt() == TraceV1.VERSION;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            try { input.close(); } catch (Exception e) { }
+        }
+    }
+
+    /**
+     * Counts the packets of the given trace file, without keeping any of them.
+     */
+    public static StreamedTrace open(String filename) throws IOException {
+
+        Logger.i(sTag, "Scanning trace file " + filename);
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(filename)));
+            int version = input.readInt();
+            if (version != TraceV1.VERSION) {
+                throw new IOException("Cannot stream traces of version " + version);
+            }
+            int id = input.readInt();
+            short dport = input.readShort();
+
+            // A truncated packet at the end of the file is left out, as MappedTrace does
+            long end = new File(filename).length();
+            long position = PREAMBLE_SIZE;
+            int size = 0;
+            long first = 0;
+            long last = 0;
+            while (position + PACKET_HEADER_SIZE <= end) {
+                double ts = input.readDouble();
+                int length = input.readUnsignedShort();
+                position += PACKET_HEADER_SIZE + length;
+                if (position > end) {
+                    break;
+                }
+                skipFully(input, length);
+                last = (long) (ts * 1000);
+                if (size == 0) {
+                    first = last;
+                }
+                size += 1;
+            }
+            return new StreamedTrace(filename, id, dport, size, last - first);
+        } catch (IOException e) {
+            Logger.e(sTag, "Failed to scan trace file " + filename + ": " + e.getMessage());
+            throw e;
+        } finally {
+            try { input.close(); } catch (Exception e) { }
+        }
+    }
+
+    private static void skipFully(DataInputStream input, int length) throws IOException {
+        while (length > 0) {
+            int skipped = input.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    @Override
+    public int version() {
+        return TraceV1.VERSION;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public long durationMillis() {
+        return mDurationMillis;
+    }
+
+    @Override
+    public double ts(int index) {
+        throw new UnsupportedOperationException("Streamed traces can only be read in order");
+    }
+
+    @Override
+    public int packetSize(int index) {
+        throw new UnsupportedOperationException("Streamed traces can only be read in order");
+    }
+
+    @Override
+    public void copyPayload(int index, byte[] dst, int offset) {
+        throw new UnsupportedOperationException("Streamed traces can only be read in order");
+    }
+
+    @Override @SuppressWarnings("rawtypes")
+    public ArrayList packets() {
+        throw new UnsupportedOperationException("Streamed traces can only be read in order");
+    }
+
+    /**
+     * Opens the file again and reads its packets one at a time. Fails if the file
+     * turns out to be shorter than it was when the trace was opened.
+     */
+    @Override
+    public TraceCursor cursor() throws IOException {
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFilename)));
+        try {
+            skipFully(input, PREAMBLE_SIZE);
+        } catch (IOException e) {
+            try { input.close(); } catch (Exception ce) { }
+            throw e;
+        }
+        return new TraceCursor() {
+            private int mIndex = -1;
+            private double mTs;
+            private int mPacketSize;
+            private byte[] mPayload = new byte[Config.MAX_TRACE_PACKET_SIZE];
+
+            @Override
+            public boolean next() throws IOException {
+                if (mIndex < mSize) {
+                    mIndex += 1;
+                }
+                if (mIndex == mSize) {
+                    return false;
+                }
+                try {
+                    mTs = input.readDouble();
+                    mPacketSize = input.readUnsignedShort();
+                    if (mPayload.length < mPacketSize) {
+                        mPayload = new byte[mPacketSize];
+                    }
+                    input.readFully(mPayload, 0, mPacketSize);
+                } catch (EOFException e) {
+                    throw new IOException("Trace file " + mFilename + " changed while streaming");
+                }
+                return true;
+            }
+
+            @Override
+            public int index() {
+                return mIndex;
+            }
+
+            @Override
+            public double ts() {
+                return mTs;
+            }
+
+            @Override
+            public int packetSize() {
+                return mPacketSize;
+            }
+
+            @Override
+            public void copyPayload(byte[] dst, int offset) {
+                System.arraycopy(mPayload, 0, dst, offset, mPacketSize);
+            }
+
+            @Override
+            public void close() {
+                try { input.close(); } catch (Exception e) { }
+            }
+        };
+    }
+
+    @Override
+    public boolean isStreamed() {
+        return true;
+    }
+}
@@ -0,0 +1,380 @@
+package it.uniroma1.voiperf.traces;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.util.JavaRandom;
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A random trace generated from a seed and a codec profile, instead of being
+ * loaded from a trace file.
+ *
+ * Packets are sent every ptime during talk spurts and, if the profile has a VAD
+ * model, every sidInterval ptimes (comfort noise) during silences. Talk spurts and
+ * silences follow a two state Markov model: at each ptime the state changes with
+ * probability ptime / mean length of the current state. Only the start of each
+ * talk spurt and silence is stored, so the memory used depends on the number of
+ * spurts rather than on the number of packets.
+ *
+ * The size and payload of each packet are generated on demand by a JavaRandom
+ * seeded from the trace seed and the packet index. Talk packets are
+ * bitrate * ptime bytes, give or take vbr times that; comfort noise packets are
+ * sidSize bytes.
+ *
+ * Everything is drawn from JavaRandom with integer arithmetic only, so that
+ * SyntheticTrace.py (through Javarandom.py) generates exactly the same trace from
+ * the seed and the profile. Only those are sent to the server (see toJSON()),
+ * which regenerates the payloads to check that they were received intact.
+ */
+public class SyntheticTrace extends Trace {
+
+    public static final String FEATURE = "synthetic_traces";
+
+    /* Not a trace file version: synthetic traces are never stored */
+    public static final int VERSION = 0;
+
+    /* Id of every synthetic trace, which trace files never have: synthetic traces
+     * are told apart by their seed (see toJSON()) */
+    public static final int ID = -1;
+
+    public static final String SEED_KEY = "seed";
+    public static final String DURATION_KEY = "duration_millis";
+    public static final String PROFILE_KEY = "profile";
+
+    // Scrambles the packet index into the seed of its generator
+    private static final long PACKET_SEED_STRIDE = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Codec profile of a synthetic trace.
+     */
+    public static class Profile {
+        public final String name;
+        public final int bitrate;
+        public final int ptimeMillis;
+        public final double vbr;
+        public final int talkMillis;
+        public final int silenceMillis;
+        public final int sidInterval;
+        public final int sidSize;
+
+        /**
+         * @param bitrate bitrate during talk spurts, in bits per second
+         * @param ptimeMillis packetization time
+         * @param vbr maximum deviation of the size of talk packets, as a fraction of
+         *            their average size (0 for constant bitrate codecs)
+         * @param talkMillis mean length of talk spurts (0 to talk all the time)
+         * @param silenceMillis mean length of silences
+         * @param sidInterval number of ptimes between comfort noise packets during
+         *                    silences (0 to send nothing)
+         * @param sidSize size of the comfort noise packets
+         */
+        public Profile(String name, int bitrate, int ptimeMillis, double vbr,
+                       int talkMillis, int silenceMillis, int sidInterval, int sidSize) {
+            this.name = name;
+            this.bitrate = bitrate;
+            this.ptimeMillis = ptimeMillis;
+            this.vbr = vbr;
+            this.talkMillis = talkMillis;
+            this.silenceMillis = silenceMillis;
+            this.sidInterval = sidInterval;
+            this.sidSize = sidSize;
+        }
+
+        /**
+         * Constant bitrate profile, with no VAD.
+         */
+        public Profile(String name, int bitrate, int ptimeMillis) {
+            this(name, bitrate, ptimeMillis, 0.0, 0, 0, 0, 0);
+        }
+
+        public boolean hasVAD() {
+            return talkMillis > 0 && silenceMillis > 0;
+        }
+
+        public int talkPacketSize() {
+            return (int) (((long) bitrate * ptimeMillis + 4000) / 8000);
+        }
+
+        public int talkPacketSpread() {
+            return (int) (talkPacketSize() * vbr);
+        }
+
+        @SuppressWarnings("unchecked")
+        public JSONObject toJSON() {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            o.put("bitrate", bitrate);
+            o.put("ptime_millis", ptimeMillis);
+            o.put("vbr", vbr);
+            o.put("talk_millis", talkMillis);
+            o.put("silence_millis", silenceMillis);
+            o.put("sid_interval", sidInterval);
+            o.put("sid_size", sidSize);
+            return o;
+        }
+    }
+
+    public static final Profile VOICE_10KBPS_20MS = new Profile("10Kbps_20ms", 10000, 20);
+    public static final Profile VOICE_20KBPS_20MS = new Profile("20Kbps_20ms", 20000, 20);
+    public static final Profile VOICE_50KBPS_40MS = new Profile("50Kbps_40ms", 50000, 40);
+    // AMR-WB like: VBR, Brady's talk spurt and silence lengths, SID every 160ms
+    public static final Profile VBR_VAD_24KBPS_20MS =
+        new Profile("vbr_vad_24Kbps_20ms", 24000, 20, 0.25, 1000, 1350, 8, 16);
+
+    private final long mSeed;
+    private final Profile mProfile;
+    private final long mDurationMillis;
+    private final int mSize;
+    // Start slot (in ptimes) and first packet index of each talk spurt (even
+    // positions) and silence (odd positions)
+    private int[] mPeriodSlots = new int[16];
+    private int[] mPeriodIndexes = new int[16];
+    private int mPeriods = 0;
+
+    /**
+     * Generates the talk spurts and silences of a trace lasting durationMillis.
+     * Throws IllegalArgumentException if the profile would generate packets with no
+     * room for a footer, or bigger than Config.MAX_TRACE_PACKET_SIZE.
+     */
+    public SyntheticTrace(long seed, Profile profile, long durationMillis) {
+        super(ID, (short) 0);
+        checkProfile(profile);
+        mSeed = seed;
+        mProfile = profile;
+        mDurationMillis = durationMillis;
+
+        int slots = (int) ((durationMillis + profile.ptimeMillis - 1) / profile.ptimeMillis);
+        JavaRandom random = new JavaRandom(seed);
+        double talkEnd = profile.hasVAD() ? (double) profile.ptimeMillis / profile.talkMillis : 0;
+        double silenceEnd = profile.hasVAD() ?
+                            (double) profile.ptimeMillis / profile.silenceMillis : 0;
+        int size = 0;
+        int periodStart = 0;
+        addPeriod(0, 0);
+        for (int slot = 0; slot < slots; ++slot) {
+            boolean talk = (mPeriods - 1) % 2 == 0;
+            if (slot > 0 && profile.hasVAD() &&
+                random.nextDouble() < (talk ? talkEnd : silenceEnd)) {
+                talk = !talk;
+                periodStart = slot;
+                addPeriod(slot, size);
+            }
+            if (talk || (profile.sidInterval > 0 &&
+                         (slot - periodStart) % profile.sidInterval == 0)) {
+                size += 1;
+            }
+        }
+        mSize = size;
+    }
+
+    private static void checkProfile(Profile profile) {
+        if (profile.ptimeMillis <= 0) {
+            throw new IllegalArgumentException("Invalid ptime " + profile.ptimeMillis);
+        }
+        int size = profile.talkPacketSize();
+        int spread = profile.talkPacketSpread();
+        if (size - spread < PacketFooter.SIZE || size + spread > Config.MAX_TRACE_PACKET_SIZE) {
+            throw new IllegalArgumentException("Invalid talk packet size " + size + "+-" + spread);
+        }
+        if (profile.sidInterval > 0 && (profile.sidSize < PacketFooter.SIZE ||
+                                        profile.sidSize > Config.MAX_TRACE_PACKET_SIZE)) {
+            throw new IllegalArgumentException("Invalid SID packet size " + profile.sidSize);
+        }
+    }
+
+    private void addPeriod(int slot, int index) {
+        if (mPeriods == mPeriodSlots.length) {
+            int[] slots = new int[mPeriods * 2];
+            int[] indexes = new int[mPeriods * 2];
+            System.arraycopy(mPeriodSlots, 0, slots, 0, mPeriods);
+            System.arraycopy(mPeriodIndexes, 0, indexes, 0, mPeriods);
+            mPeriodSlots = slots;
+            mPeriodIndexes = indexes;
+        }
+        mPeriodSlots[mPeriods] = slot;
+        mPeriodIndexes[mPeriods] = index;
+        mPeriods += 1;
+    }
+
+    public long seed() {
+        return mSeed;
+    }
+
+    public Profile profile() {
+        return mProfile;
+    }
+
+    /**
+     * Returns the talk spurt or silence the packet with the given index belongs to.
+     */
+    private int period(int index) {
+        // The last period starting at or before the packet: silences with no packet
+        // start at the same index as the next talk spurt, which is the one we want
+        int low = 0, high = mPeriods - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mPeriodIndexes[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isTalk(int period) {
+        return period % 2 == 0;
+    }
+
+    private int slot(int index) {
+        int period = period(index);
+        int offset = index - mPeriodIndexes[period];
+        return mPeriodSlots[period] + (isTalk(period) ? offset : offset * mProfile.sidInterval);
+    }
+
+    private JavaRandom packetRandom(int index) {
+        return packetRandom(mSeed, index);
+    }
+
+    /**
+     * Returns the generator of the packet with the given index of the trace with the
+     * given seed (also used for the seeded payloads of TraceV4).
+     */
+    static JavaRandom packetRandom(long seed, int index) {
+        return new JavaRandom(seed ^ (index * PACKET_SEED_STRIDE));
+    }
+
+    /**
+     * Draws the size of the packet from its generator, which is then ready to
+     * generate the payload.
+     */
+    private int packetSize(int index, JavaRandom random) {
+        if (isTalk(period(index)) == false) {
+            return mProfile.sidSize;
+        }
+        int size = mProfile.talkPacketSize();
+        int spread = mProfile.talkPacketSpread();
+        if (spread > 0) {
+            size += random.nextInt(2 * spread + 1) - spread;
+        }
+        return size;
+    }
+
+    @Override
+    public int version() {
+        return VERSION;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public long durationMillis() {
+        if (mSize == 0)
+            return 0;
+        return (long) (slot(mSize - 1) - slot(0)) * mProfile.ptimeMillis;
+    }
+
+    @Override
+    public double ts(int index) {
+        return (long) slot(index) * mProfile.ptimeMillis / 1000.0;
+    }
+
+    @Override
+    public int packetSize(int index) {
+        return packetSize(index, packetRandom(index));
+    }
+
+    @Override
+    public void copyPayload(int index, byte[] dst, int offset) {
+        JavaRandom random = packetRandom(index);
+        int size = packetSize(index, random);
+        random.nextBytes(dst, offset, size);
+    }
+
+    /**
+     * Generates the packets as they are iterated, with a single JavaRandom reseeded
+     * for each packet.
+     */
+    @Override
+    public TraceCursor cursor() {
+        return new TraceCursor() {
+            private final JavaRandom mRandom = new JavaRandom(0);
+            private int mIndex = -1;
+            private int mPacketSize;
+
+            @Override
+            public boolean next() {
+                if (mIndex < mSize) {
+                    mIndex += 1;
+                }
+                if (mIndex == mSize) {
+                    return false;
+                }
+                mRandom.setSeed(mSeed ^ (mIndex * PACKET_SEED_STRIDE));
+                mPacketSize = SyntheticTrace.this.packetSize(mIndex, mRandom);
+                return true;
+            }
+
+            @Override
+            public int index() {
+                return mIndex;
+            }
+
+            @Override
+            public double ts() {
+                return SyntheticTrace.this.ts(mIndex);
+            }
+
+            @Override
+            public int packetSize() {
+                return mPacketSize;
+            }
+
+            @Override
+            public void copyPayload(byte[] dst, int offset) {
+                // Draw the size again, so the payload can be copied more than once
+                mRandom.setSeed(mSeed ^ (mIndex * PACKET_SEED_STRIDE));
+                SyntheticTrace.this.packetSize(mIndex, mRandom);
+                mRandom.nextBytes(dst, offset, mPacketSize);
+            }
+        };
+    }
+
+    @Override
+    public boolean isStreamed() {
+        return true;
+    }
+
+    /**
+     * Materialises a copy of every packet of the trace. This is only meant for
+     * code still relying on packet objects: the trace engines use the index
+     * based accessors instead.
+     */
+    @Override @SuppressWarnings({ "rawtypes", "unchecked" })
+    public ArrayList packets() {
+        ArrayList packets = new ArrayList(mSize);
+        for (int i = 0; i < mSize; ++i) {
+            byte[] payload = new byte[packetSize(i)];
+            copyPayload(i, payload, 0);
+            packets.add(new TraceV1.Packet(ts(i), payload));
+        }
+        return packets;
+    }
+
+    /**
+     * Returns what the server needs to generate the same trace.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put(SEED_KEY, mSeed);
+        o.put(DURATION_KEY, mDurationMillis);
+        o.put(PROFILE_KEY, mProfile.toJSON());
+        return o;
+    }
+}
@@ -44,6 +44,31 @@ public abstract class Trace {
     
     public abstract long durationMillis();
     
+    /* Index based access to the packets of the trace. Unlike packets(),
+     * these methods do not need one object per packet */
+    
+    public abstract double ts(int index);
+    
+    public abstract int packetSize(int index);
+    
+    public abstract void copyPayload(int index, byte[] dst, int offset);
+    
+    /**
+     * Returns a new cursor over the packets of the trace, in order.
+     */
+    public TraceCursor cursor() throws IOException {
+        return new TraceCursor.IndexCursor(this);
+    }
+    
+    /**
+     * Whether the packets are read or generated as the trace is iterated, rather
+     * than being in memory already: senders then read them ahead (see
+     * ReadAheadCursor).
+     */
+    public boolean isStreamed() {
+        return false;
+    }
+    
     public static Trace loadFromFile(String filename)
             throws IOException {
         
@@ -62,6 +87,8 @@ public abstract class Trace {
                     return TraceV1.loadFromStream(input);
                 case RTPTrace.VERSION:
                     return RTPTrace.loadFromStream(input);
+                case TraceV4.VERSION:
+                    return TraceV4.loadFromStream(input);
                 default:
                     throw new IOException("Unknown trace version: " + version);
             }
@@ -0,0 +1,183 @@
+package it.uniroma1.voiperf.traces;
+
+import it.uniroma1.voiperf.Config;
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the loaded traces, shared by all the measurement tasks.
+ *
+ * Traces are keyed by file name, and an entry is only valid as long as the file
+ * keeps the modification time and the length it had when it was loaded, so an
+ * updated trace file is reloaded transparently. Recently used traces are strongly
+ * referenced up to a total of Config.TRACE_CACHE_MAX_BYTES; traces pushed out of
+ * this LRU are only softly referenced, so they can still be reused until the VM
+ * actually needs the memory.
+ */
+public class TraceCache {
+
+    private static final String sTag = TraceCache.class.getName();
+
+    private static TraceCache sInstance = null;
+
+    private static class Entry {
+        public final MappedTrace trace;
+        public final long lastModified;
+        public final long length;
+
+        public Entry(MappedTrace trace, long lastModified, long length) {
+            this.trace = trace;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        public boolean isValidFor(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final HashMap<String, SoftReference<Entry>> mEvicted;
+    private long mBytes = 0;
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public static synchronized TraceCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new TraceCache(Config.TRACE_CACHE_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    public TraceCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        mEvicted = new HashMap<String, SoftReference<Entry>>();
+    }
+
+    /**
+     * Returns the trace stored in the given file, loading it only if it is not
+     * cached yet or if the file has changed since it was loaded.
+     */
+    public MappedTrace get(String filename) throws IOException {
+        File file = new File(filename);
+        if (file.isFile() == false) {
+            throw new FileNotFoundException("Trace file " + filename + " not found");
+        }
+
+        synchronized (this) {
+            Entry entry = lookup(filename, file);
+            if (entry != null) {
+                mHits += 1;
+                return entry.trace;
+            }
+            mMisses += 1;
+        }
+
+        // Load outside the lock, so that a slow load does not stall the other tasks.
+        // If two tasks race on the same file the trace is loaded twice, which is harmless
+        long lastModified = file.lastModified();
+        long length = file.length();
+        MappedTrace trace = MappedTrace.loadFromFile(filename);
+
+        synchronized (this) {
+            put(filename, new Entry(trace, lastModified, length));
+        }
+        return trace;
+    }
+
+    /**
+     * Loads (and thus validates) the given traces. Returns the number of traces
+     * that failed to load.
+     */
+    public int preload(Iterable<String> filenames) {
+        int failures = 0;
+        for (String filename: filenames) {
+            try {
+                get(filename);
+            } catch (IOException e) {
+                Logger.w(sTag, "failed to preload trace " + filename + ": " + e.getMessage());
+                failures += 1;
+            }
+        }
+        Logger.i(sTag, "traces preloaded (" + failures + " failures). " + this);
+        return failures;
+    }
+
+    /**
+     * Drops the strong references to all the cached traces. They stay softly
+     * reachable, so they are only reloaded if the VM has actually collected them.
+     */
+    public synchronized void trim() {
+        for (Map.Entry<String, Entry> e: mEntries.entrySet()) {
+            mEvicted.put(e.getKey(), new SoftReference<Entry>(e.getValue()));
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mEvicted.clear();
+        mBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TraceCache: " + mEntries.size() + " traces (" + mBytes + " bytes), " +
+               mEvicted.size() + " evicted, " + mHits + " hits, " + mMisses + " misses";
+    }
+
+    private Entry lookup(String filename, File file) {
+        Entry entry = mEntries.get(filename);
+        if (entry == null) {
+            SoftReference<Entry> ref = mEvicted.remove(filename);
+            if (ref == null || (entry = ref.get()) == null) {
+                return null;
+            }
+            if (entry.isValidFor(file) == false) {
+                return null;
+            }
+            // Still there: promote it back to the LRU
+            put(filename, entry);
+            return entry;
+        }
+        if (entry.isValidFor(file) == false) {
+            Logger.i(sTag, "trace file " + filename + " changed, reloading it");
+            mEntries.remove(filename);
+            mBytes -= entry.length;
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(String filename, Entry entry) {
+        Entry old = mEntries.put(filename, entry);
+        if (old != null) {
+            mBytes -= old.length;
+        }
+        mEvicted.remove(filename);
+        mBytes += entry.length;
+
+        // Evict the least recently used traces, but always keep the newest one
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && mEntries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) {
+                continue;
+            }
+            it.remove();
+            mBytes -= eldest.getValue().length;
+            mEvicted.put(eldest.getKey(), new SoftReference<Entry>(eldest.getValue()));
+        }
+    }
+}
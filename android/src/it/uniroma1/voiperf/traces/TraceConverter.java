@@ -0,0 +1,117 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Command line tool converting version 1 and RTP trace files to version 4 (see
+ * TraceV4), run on the desktop with the app classes in the classpath:
+ *
+ *   java it.uniroma1.voiperf.traces.TraceConverter [-raw | -dictionary | -seed <seed>]
+ *        <input> <output>
+ *
+ * By default payloads are stored in a dictionary if it makes the file smaller, raw
+ * otherwise. The converted trace is loaded back and compared with the original
+ * one before exiting.
+ */
+public class TraceConverter {
+
+    public static void main(String[] args) throws IOException {
+        int payloadMode = -1;
+        long seed = 0;
+        int arg = 0;
+        try {
+            if (args[arg].equals("-raw")) {
+                payloadMode = TraceV4.PAYLOAD_RAW;
+                arg += 1;
+            } else if (args[arg].equals("-dictionary")) {
+                payloadMode = TraceV4.PAYLOAD_DICTIONARY;
+                arg += 1;
+            } else if (args[arg].equals("-seed")) {
+                payloadMode = TraceV4.PAYLOAD_SEED;
+                seed = Long.parseLong(args[arg + 1]);
+                arg += 2;
+            }
+            if (args.length != arg + 2) {
+                throw new IllegalArgumentException();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("usage: TraceConverter [-raw | -dictionary | -seed <seed>] "
+                               + "<input> <output>");
+            System.exit(2);
+        }
+        String input = args[arg];
+        String output = args[arg + 1];
+
+        MappedTrace trace = map(input);
+        byte[] encoded;
+        if (payloadMode < 0) {
+            byte[] raw = TraceV4.encode(trace, TraceV4.PAYLOAD_RAW, 0);
+            encoded = TraceV4.encode(trace, TraceV4.PAYLOAD_DICTIONARY, 0);
+            if (raw.length <= encoded.length) {
+                encoded = raw;
+            }
+        } else {
+            encoded = TraceV4.encode(trace, payloadMode, seed);
+        }
+
+        FileOutputStream file = new FileOutputStream(output);
+        try {
+            file.write(encoded);
+        } finally {
+            file.close();
+        }
+
+        MappedTrace converted = map(output);
+        check(trace, converted, payloadMode == TraceV4.PAYLOAD_SEED);
+        System.out.println(input + ": version " + trace.version() + ", " + trace.size()
+                           + " packets, " + new File(input).length() + " bytes");
+        System.out.println(output + ": version " + converted.version() + ", "
+                           + encoded.length + " bytes");
+    }
+
+    private static MappedTrace map(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return MappedTrace.load(buffer);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Throws IOException if the converted trace differs from the original one,
+     * payloads aside if they were replaced by seeded ones.
+     */
+    private static void check(MappedTrace trace, MappedTrace converted, boolean seeded)
+        throws IOException {
+        if (converted.id() != trace.id() || converted.dport() != trace.dport()
+            || converted.size() != trace.size()
+            || converted.hasRTPHeaders() != trace.hasRTPHeaders()) {
+            throw new IOException("Converted trace header differs from the original");
+        }
+        int headerSize = trace.hasRTPHeaders() ? RTPHeader.SIZE : 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (Math.abs(converted.ts(i) - trace.ts(i)) > 1e-6
+                || converted.packetSize(i) != trace.packetSize(i)) {
+                throw new IOException("Converted packet " + i + " differs from the original");
+            }
+            byte[] expected = new byte[trace.packetSize(i)];
+            byte[] actual = new byte[expected.length];
+            trace.copyPayload(i, expected, 0);
+            converted.copyPayload(i, actual, 0);
+            int length = seeded ? headerSize : expected.length;
+            for (int j = 0; j < length; ++j) {
+                if (actual[j] != expected[j]) {
+                    throw new IOException("Converted payload " + i + " differs from the original");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.IOException;
+
+/**
+ * Pull based iterator over the packets of a trace (see Trace.cursor()).
+ *
+ * The cursor starts before the first packet: each call to next() moves it to the
+ * following packet, whose fields are then available until the next call. Cursors
+ * do not allocate anything per packet, and do not need the whole trace in memory,
+ * so they can stream arbitrarily long traces from a file or a generator.
+ */
+public abstract class TraceCursor {
+
+    /**
+     * Moves to the next packet. Returns false once past the last packet.
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * Returns the index of the current packet in the trace.
+     */
+    public abstract int index();
+
+    public abstract double ts();
+
+    public abstract int packetSize();
+
+    public abstract void copyPayload(byte[] dst, int offset);
+
+    /**
+     * Releases the resources (files, threads) held by the cursor.
+     */
+    public void close() { }
+
+    /**
+     * Cursor over the index based accessors of a trace.
+     */
+    static class IndexCursor extends TraceCursor {
+
+        private final Trace mTrace;
+        private int mIndex = -1;
+
+        public IndexCursor(Trace trace) {
+            mTrace = trace;
+        }
+
+        @Override
+        public boolean next() {
+            if (mIndex < mTrace.size()) {
+                mIndex += 1;
+            }
+            return mIndex < mTrace.size();
+        }
+
+        @Override
+        public int index() {
+            return mIndex;
+        }
+
+        @Override
+        public double ts() {
+            return mTrace.ts(mIndex);
+        }
+
+        @Override
+        public int packetSize() {
+            return mTrace.packetSize(mIndex);
+        }
+
+        @Override
+        public void copyPayload(byte[] dst, int offset) {
+            mTrace.copyPayload(mIndex, dst, offset);
+        }
+    }
+}
@@ -76,6 +76,22 @@ public class TraceV1 extends Trace {
         return mPackets.size();
     }
     
+    @Override
+    public double ts(int index) {
+        return mPackets.get(index).ts();
+    }
+    
+    @Override
+    public int packetSize(int index) {
+        return mPackets.get(index).size();
+    }
+    
+    @Override
+    public void copyPayload(int index, byte[] dst, int offset) {
+        Packet packet = mPackets.get(index);
+        System.arraycopy(packet.payload(), 0, dst, offset, packet.size());
+    }
+    
     @Override
     public long durationMillis() {
         if (mPackets.isEmpty())
@@ -0,0 +1,312 @@
+package it.uniroma1.voiperf.traces;
+
+import it.uniroma1.voiperf.util.DeltaCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact, columnar trace file format (version 4), written by TraceConverter.
+ *
+ * Instead of a (timestamp, length, payload) record per packet, each field of the
+ * packets is stored in its own column, and the header indexes the columns, so the
+ * loader decodes each of them in one go straight into the arrays of a MappedTrace:
+ *
+ *   int version, int id, short dport, byte flags, byte payload mode,
+ *   int packet count, int column count,
+ *   column count times {int column id, int offset, int length},
+ *   the columns.
+ *
+ * Timestamps (in microseconds) and lengths are DeltaCodec varints, so with a
+ * constant ptime or bitrate they take a few bytes per packet. With FLAG_RTP the RTP
+ * headers are split in three more varint columns (sequence numbers, timestamps,
+ * and the first two bytes with the SSRC), which take as little: sequence numbers
+ * are stored extended (see RTPHeader.SequenceTracker), so they do not wrap. The
+ * rest of each payload (the body) is stored according to the payload mode:
+ *
+ *   PAYLOAD_RAW: the bodies, one after another;
+ *   PAYLOAD_DICTIONARY: the distinct bodies (int count, their lengths as varints,
+ *                       their bytes), and the index of the body of each packet;
+ *   PAYLOAD_SEED: a long seed, the bodies being generated as those of
+ *                 SyntheticTrace, for traces whose payloads carry no information.
+ *
+ * Columns with an unknown id are skipped, so new ones can be added to the format.
+ */
+public class TraceV4 {
+
+    public static final int VERSION = 4;
+
+    public static final int FLAG_RTP = 1;
+
+    public static final int PAYLOAD_RAW = 0;
+    public static final int PAYLOAD_DICTIONARY = 1;
+    public static final int PAYLOAD_SEED = 2;
+
+    private static final int COLUMN_TIMESTAMPS = 1;
+    private static final int COLUMN_LENGTHS = 2;
+    private static final int COLUMN_RTP_SEQUENCE_NUMBERS = 3;
+    private static final int COLUMN_RTP_TIMESTAMPS = 4;
+    private static final int COLUMN_RTP_FIELDS = 5;
+    private static final int COLUMN_BODIES = 6;
+    private static final int COLUMN_DICTIONARY = 7;
+    private static final int COLUMN_BODY_INDEXES = 8;
+    private static final int COLUMN_SEED = 9;
+
+    private static final int HEADER_SIZE = 4 + 4 + 2 + 1 + 1 + 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 4 + 4 + 4;
+
+    /**
+     * Encodes a version 1, RTP or version 4 trace. The seed is only used with
+     * PAYLOAD_SEED, which replaces the payloads (the RTP headers aside).
+     */
+    public static byte[] encode(MappedTrace trace, int payloadMode, long seed)
+        throws IOException {
+        int size = trace.size();
+        boolean isRTP = trace.hasRTPHeaders();
+        int headerSize = isRTP ? RTPHeader.SIZE : 0;
+
+        DeltaCodec timestamps = new DeltaCodec(size);
+        DeltaCodec lengths = new DeltaCodec(size);
+        DeltaCodec sequenceNumbers = new DeltaCodec(size);
+        DeltaCodec rtpTimestamps = new DeltaCodec(size);
+        DeltaCodec rtpFields = new DeltaCodec(size);
+        ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+        HashMap<ByteBuffer, Integer> dictionary = new HashMap<ByteBuffer, Integer>();
+        DeltaCodec dictionaryLengths = new DeltaCodec(size);
+        ByteArrayOutputStream dictionaryBodies = new ByteArrayOutputStream();
+        DeltaCodec bodyIndexes = new DeltaCodec(size);
+
+        for (int i = 0; i < size; ++i) {
+            int length = trace.packetSize(i);
+            byte[] payload = new byte[length];
+            trace.copyPayload(i, payload, 0);
+            timestamps.add(Math.round(trace.ts(i) * 1e6));
+            lengths.add(length);
+            if (isRTP) {
+                ByteBuffer header = ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN);
+                sequenceNumbers.add(trace.sequenceNumber(i));
+                rtpTimestamps.add(header.getInt(4) & 0xFFFFFFFFL);
+                rtpFields.add((long) (header.getShort(0) & 0xFFFF) << 32 |
+                              header.getInt(8) & 0xFFFFFFFFL);
+            }
+            if (payloadMode == PAYLOAD_RAW) {
+                bodies.write(payload, headerSize, length - headerSize);
+            } else if (payloadMode == PAYLOAD_DICTIONARY) {
+                ByteBuffer body = ByteBuffer.wrap(payload, headerSize, length - headerSize).slice();
+                Integer index = dictionary.get(body);
+                if (index == null) {
+                    index = dictionary.size();
+                    dictionary.put(body, index);
+                    dictionaryLengths.add(length - headerSize);
+                    dictionaryBodies.write(payload, headerSize, length - headerSize);
+                }
+                bodyIndexes.add(index);
+            }
+        }
+
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ArrayList<byte[]> columns = new ArrayList<byte[]>();
+        ids.add(COLUMN_TIMESTAMPS);
+        columns.add(timestamps.toByteArray());
+        ids.add(COLUMN_LENGTHS);
+        columns.add(lengths.toByteArray());
+        if (isRTP) {
+            ids.add(COLUMN_RTP_SEQUENCE_NUMBERS);
+            columns.add(sequenceNumbers.toByteArray());
+            ids.add(COLUMN_RTP_TIMESTAMPS);
+            columns.add(rtpTimestamps.toByteArray());
+            ids.add(COLUMN_RTP_FIELDS);
+            columns.add(rtpFields.toByteArray());
+        }
+        if (payloadMode == PAYLOAD_RAW) {
+            ids.add(COLUMN_BODIES);
+            columns.add(bodies.toByteArray());
+        } else if (payloadMode == PAYLOAD_DICTIONARY) {
+            ByteArrayOutputStream column = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(column);
+            output.writeInt(dictionary.size());
+            output.write(dictionaryLengths.toByteArray());
+            dictionaryBodies.writeTo(output);
+            output.flush();
+            ids.add(COLUMN_DICTIONARY);
+            columns.add(column.toByteArray());
+            ids.add(COLUMN_BODY_INDEXES);
+            columns.add(bodyIndexes.toByteArray());
+        } else if (payloadMode == PAYLOAD_SEED) {
+            ids.add(COLUMN_SEED);
+            columns.add(ByteBuffer.allocate(8).putLong(seed).array());
+        } else {
+            throw new IllegalArgumentException("Unknown payload mode " + payloadMode);
+        }
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(file);
+        output.writeInt(VERSION);
+        output.writeInt(trace.id());
+        output.writeShort(trace.dport());
+        output.writeByte(isRTP ? FLAG_RTP : 0);
+        output.writeByte(payloadMode);
+        output.writeInt(size);
+        output.writeInt(columns.size());
+        int offset = HEADER_SIZE + columns.size() * INDEX_ENTRY_SIZE;
+        for (int c = 0; c < columns.size(); ++c) {
+            output.writeInt(ids.get(c));
+            output.writeInt(offset);
+            output.writeInt(columns.get(c).length);
+            offset += columns.get(c).length;
+        }
+        for (byte[] column: columns) {
+            output.write(column);
+        }
+        output.flush();
+        return file.toByteArray();
+    }
+
+    public static MappedTrace loadFromStream(DataInputStream input) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            data.write(buffer, 0, read);
+        }
+        return load(ByteBuffer.wrap(data.toByteArray()));
+    }
+
+    /**
+     * Decodes the version 4 trace stored in the given buffer. Payloads are decoded
+     * into a heap buffer, the other columns into the index arrays of the trace.
+     */
+    public static MappedTrace load(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        try {
+            /* read the header and the column index */
+            int version = buffer.getInt(0);
+            if (version != VERSION) {
+                throw new IOException("Invalid trace version (got " + version + ")");
+            }
+            int id = buffer.getInt(4);
+            short dport = buffer.getShort(8);
+            boolean isRTP = (buffer.get(10) & FLAG_RTP) != 0;
+            int payloadMode = buffer.get(11);
+            int size = buffer.getInt(12);
+            int columnCount = buffer.getInt(16);
+            if (size < 0 || columnCount < 0) {
+                throw new IOException("Invalid trace header");
+            }
+            HashMap<Integer, ByteBuffer> columns = new HashMap<Integer, ByteBuffer>();
+            for (int c = 0; c < columnCount; ++c) {
+                int entry = HEADER_SIZE + c * INDEX_ENTRY_SIZE;
+                int offset = buffer.getInt(entry + 4);
+                int length = buffer.getInt(entry + 8);
+                if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+                    throw new IOException("Invalid trace column index");
+                }
+                ByteBuffer column = buffer.duplicate();
+                column.limit(offset + length);
+                column.position(offset);
+                columns.put(buffer.getInt(entry), column.slice().order(ByteOrder.BIG_ENDIAN));
+            }
+
+            /* timestamps and lengths */
+            long[] micros = DeltaCodec.decode(column(columns, COLUMN_TIMESTAMPS), size);
+            long[] packetLengths = DeltaCodec.decode(column(columns, COLUMN_LENGTHS), size);
+            int headerSize = isRTP ? RTPHeader.SIZE : 0;
+            double[] timestamps = new double[size];
+            int[] offsets = new int[size];
+            int[] lengths = new int[size];
+            int total = 0;
+            for (int i = 0; i < size; ++i) {
+                timestamps[i] = micros[i] / 1e6;
+                if (packetLengths[i] < headerSize || packetLengths[i] > 0xFFFF) {
+                    throw new IOException("Invalid packet length " + packetLengths[i]);
+                }
+                lengths[i] = (int) packetLengths[i];
+                offsets[i] = total;
+                total += lengths[i];
+            }
+            byte[] payloads = new byte[total];
+            ByteBuffer output = ByteBuffer.wrap(payloads).order(ByteOrder.BIG_ENDIAN);
+
+            /* RTP headers */
+            int[] sequenceNumbers = null;
+            if (isRTP) {
+                long[] seqs = DeltaCodec.decode(column(columns, COLUMN_RTP_SEQUENCE_NUMBERS), size);
+                long[] rtpTimestamps = DeltaCodec.decode(column(columns, COLUMN_RTP_TIMESTAMPS),
+                                                         size);
+                long[] rtpFields = DeltaCodec.decode(column(columns, COLUMN_RTP_FIELDS), size);
+                sequenceNumbers = new int[size];
+                for (int i = 0; i < size; ++i) {
+                    sequenceNumbers[i] = (int) seqs[i];
+                    output.putShort(offsets[i], (short) (rtpFields[i] >>> 32));
+                    output.putShort(offsets[i] + 2, (short) sequenceNumbers[i]);
+                    output.putInt(offsets[i] + 4, (int) rtpTimestamps[i]);
+                    output.putInt(offsets[i] + 8, (int) rtpFields[i]);
+                }
+            }
+
+            /* bodies */
+            if (payloadMode == PAYLOAD_RAW) {
+                ByteBuffer bodies = column(columns, COLUMN_BODIES);
+                for (int i = 0; i < size; ++i) {
+                    bodies.get(payloads, offsets[i] + headerSize, lengths[i] - headerSize);
+                }
+            } else if (payloadMode == PAYLOAD_DICTIONARY) {
+                ByteBuffer dictionary = column(columns, COLUMN_DICTIONARY);
+                int entries = dictionary.getInt();
+                if (entries < 0) {
+                    throw new IOException("Invalid payload dictionary");
+                }
+                long[] entryLengths = DeltaCodec.decode(dictionary, entries);
+                int[] entryOffsets = new int[entries];
+                int position = dictionary.position();
+                for (int e = 0; e < entries; ++e) {
+                    entryOffsets[e] = position;
+                    position += (int) entryLengths[e];
+                }
+                if (position > dictionary.limit()) {
+                    throw new IOException("Truncated payload dictionary");
+                }
+                long[] indexes = DeltaCodec.decode(column(columns, COLUMN_BODY_INDEXES), size);
+                for (int i = 0; i < size; ++i) {
+                    int e = (int) indexes[i];
+                    if (e < 0 || e >= entries || entryLengths[e] != lengths[i] - headerSize) {
+                        throw new IOException("Invalid payload of packet " + i);
+                    }
+                    dictionary.position(entryOffsets[e]);
+                    dictionary.get(payloads, offsets[i] + headerSize, lengths[i] - headerSize);
+                }
+            } else if (payloadMode == PAYLOAD_SEED) {
+                long seed = column(columns, COLUMN_SEED).getLong();
+                for (int i = 0; i < size; ++i) {
+                    SyntheticTrace.packetRandom(seed, i).nextBytes(
+                        payloads, offsets[i] + headerSize, lengths[i] - headerSize);
+                }
+            } else {
+                throw new IOException("Unknown payload mode " + payloadMode);
+            }
+
+            return new MappedTrace(id, dport, VERSION, output, size,
+                                   timestamps, offsets, lengths, sequenceNumbers);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of trace column");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Unexpected end of file");
+        }
+    }
+
+    private static ByteBuffer column(HashMap<Integer, ByteBuffer> columns, int id)
+        throws IOException {
+        ByteBuffer column = columns.get(id);
+        if (column == null) {
+            throw new IOException("Missing trace column " + id);
+        }
+        return column;
+    }
+}
@@ -0,0 +1,173 @@
+package it.uniroma1.voiperf.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Compact encoding for the per-packet series of the measurement info (timestamps,
+ * sequence numbers, RTTs). Each value is stored as the difference from the previous
+ * one (the first from 0), zig-zag mapped so that small negative deltas stay small,
+ * and written as a little endian base 128 varint. Monotone series such as arrival
+ * timestamps take 1-2 bytes per value instead of the 14 characters of JSON.
+ *
+ * In the measurement info a series is a JSON object {"codec", "count", "data"} with
+ * the encoded bytes in base64, since JSON has no binary type. Trace files store
+ * the bytes as they are (see TraceV4).
+ */
+public class DeltaCodec {
+
+    public static final String NAME = "delta_varint";
+
+    public static final String CODEC_KEY = "codec";
+    public static final String COUNT_KEY = "count";
+    public static final String DATA_KEY = "data";
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private byte[] mBuffer;
+    private int mLength = 0;
+    private long mPrevious = 0;
+
+    public DeltaCodec(int capacity) {
+        mBuffer = new byte[Math.max(capacity, 16)];
+    }
+
+    public void add(long value) {
+        long delta = value - mPrevious;
+        mPrevious = value;
+        long zigzag = (delta << 1) ^ (delta >> 63);
+        if (mLength + 10 > mBuffer.length) {
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        while ((zigzag & ~0x7fL) != 0) {
+            mBuffer[mLength++] = (byte) ((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        mBuffer[mLength++] = (byte) zigzag;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[mLength];
+        System.arraycopy(mBuffer, 0, bytes, 0, mLength);
+        return bytes;
+    }
+
+    public String toBase64() {
+        char[] out = new char[(mLength + 2) / 3 * 4];
+        int o = 0;
+        for (int i = 0; i < mLength; i += 3) {
+            int b = (mBuffer[i] & 0xff) << 16;
+            if (i + 1 < mLength) b |= (mBuffer[i + 1] & 0xff) << 8;
+            if (i + 2 < mLength) b |= mBuffer[i + 2] & 0xff;
+            out[o++] = BASE64[(b >> 18) & 0x3f];
+            out[o++] = BASE64[(b >> 12) & 0x3f];
+            out[o++] = i + 1 < mLength ? BASE64[(b >> 6) & 0x3f] : '=';
+            out[o++] = i + 2 < mLength ? BASE64[b & 0x3f] : '=';
+        }
+        return new String(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJSON(DeltaCodec codec, int count) {
+        JSONObject o = new JSONObject();
+        o.put(CODEC_KEY, NAME);
+        o.put(COUNT_KEY, count);
+        o.put(DATA_KEY, codec.toBase64());
+        return o;
+    }
+
+    /**
+     * Encodes the first count values of the given series.
+     */
+    public static JSONObject toJSON(long[] values, int count) {
+        // Most deltas of the series we send fit in 2 bytes
+        DeltaCodec codec = new DeltaCodec(count * 2);
+        for (int i = 0; i < count; ++i) {
+            codec.add(values[i]);
+        }
+        return toJSON(codec, count);
+    }
+
+    public static JSONObject toJSON(int[] values, int count) {
+        DeltaCodec codec = new DeltaCodec(count * 2);
+        for (int i = 0; i < count; ++i) {
+            codec.add(values[i]);
+        }
+        return toJSON(codec, count);
+    }
+
+    /**
+     * Decodes a series encoded by toJSON().
+     */
+    public static long[] fromJSON(JSONObject o) {
+        if (NAME.equals(o.get(CODEC_KEY)) == false) {
+            throw new IllegalArgumentException("unknown series codec " + o.get(CODEC_KEY));
+        }
+        int count = ((Number) o.get(COUNT_KEY)).intValue();
+        byte[] data = fromBase64((String) o.get(DATA_KEY));
+        try {
+            return decode(ByteBuffer.wrap(data), count);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated series");
+        }
+    }
+
+    /**
+     * Decodes count values from the buffer, starting at its position, which is left
+     * right after the last value. Throws BufferUnderflowException if the buffer ends
+     * first.
+     */
+    public static long[] decode(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; ++i) {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                zigzag |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    private static byte[] fromBase64(String s) {
+        int padding = s.endsWith("==") ? 2 : s.endsWith("=") ? 1 : 0;
+        byte[] out = new byte[s.length() / 4 * 3 - padding];
+        int o = 0;
+        for (int i = 0; i + 3 < s.length(); i += 4) {
+            int b = 0;
+            for (int j = 0; j < 4; ++j) {
+                char c = s.charAt(i + j);
+                b = (b << 6) | (c == '=' ? 0 : base64Value(c));
+            }
+            // Padding is only found in the last quantum
+            for (int shift = 16; shift >= 0 && o < out.length; shift -= 8) {
+                out[o++] = (byte) (b >> shift);
+            }
+        }
+        return out;
+    }
+
+    private static int base64Value(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+        if (c >= '0' && c <= '9') return c - '0' + 52;
+        if (c == '+') return 62;
+        if (c == '/') return 63;
+        throw new IllegalArgumentException("invalid base64 character " + c);
+    }
+}
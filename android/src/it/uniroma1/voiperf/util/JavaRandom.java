@@ -87,8 +87,18 @@ public class JavaRandom {
      * Fills {@code buf} with random bytes.
      */
     public void nextBytes(byte[] buf) {
-        int rand = 0, count = 0, loop = 0;
-        while (count < buf.length) {
+        nextBytes(buf, 0, buf.length);
+    }
+
+    /**
+     * Fills {@code length} bytes of {@code buf} starting at {@code offset} with
+     * random bytes, the same {@code nextBytes()} would return for an array of
+     * {@code length} bytes.
+     */
+    public void nextBytes(byte[] buf, int offset, int length) {
+        int rand = 0, count = offset, loop = 0;
+        int end = offset + length;
+        while (count < end) {
             if (loop == 0) {
                 rand = nextInt();
                 loop = 3;
@@ -110,6 +110,45 @@ public class NetworkStatus {
         return ninfo != null && ninfo.isConnected();
     }
     
+    /**
+     * Returns a string identifying the network we are attached to (the BSSID of
+     * the access point or the cell id), or null if unknown.
+     */
+    public static String getNetworkIdentity() {
+        Context context = Session.getGlobalContext();
+        ConnectivityManager connectivityManager = 
+                       (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || networkInfo.isConnected() == false) {
+            return null;
+        }
+        
+        if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+            if (wifiInfo == null || wifiInfo.getBSSID() == null) {
+                return null;
+            }
+            return "wifi:" + wifiInfo.getBSSID();
+        }
+        
+        TelephonyManager telephonyManager =
+                       (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        if (telephonyManager.getPhoneType() == TelephonyManager.PHONE_TYPE_GSM) {
+            GsmCellLocation location = (GsmCellLocation) telephonyManager.getCellLocation();
+            if (location != null && location.getCid() != -1) {
+                return "gsm:" + location.getLac() + ":" + location.getCid();
+            }
+        } else if (telephonyManager.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA) {
+            CdmaCellLocation location = (CdmaCellLocation) telephonyManager.getCellLocation();
+            if (location != null && location.getBaseStationId() != -1) {
+                return "cdma:" + location.getSystemId() + ":" + location.getNetworkId() +
+                       ":" + location.getBaseStationId();
+            }
+        }
+        return null;
+    }
+    
     @SuppressWarnings("unchecked")
     public JSONObject getNetworkStatus() {
         JSONObject state = new JSONObject();
@@ -0,0 +1,239 @@
+package it.uniroma1.voiperf.util;
+
+import it.uniroma1.voiperf.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Runs an external command and captures its output, like Popen.communicate().
+ *
+ * Standard output and standard error are drained at the same time by two threads,
+ * so the command never blocks on a full pipe. Each stream keeps at most maxLines
+ * lines of at most MAX_LINE_LENGTH characters, further output being read and
+ * dropped. Lines can also be handed to a listener as soon as they are read. If the
+ * command does not exit within the timeout, or cancel() is called, it is killed.
+ */
+public class ProcessRunner {
+
+    private static final String sTag = ProcessRunner.class.getName();
+
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    private static final long EXIT_POLL_MILLIS = 10;
+
+    /**
+     * Receives the lines of a stream as they are read, on its drain thread.
+     */
+    public interface LineListener {
+        public void onLine(String line);
+    }
+
+    /**
+     * Outcome of a command.
+     */
+    public static class Result {
+        public final int exitValue;
+        public final ArrayList<String> output;
+        public final ArrayList<String> error;
+        public final boolean killed;
+
+        public Result(int exitValue, ArrayList<String> output, ArrayList<String> error,
+                      boolean killed) {
+            this.exitValue = exitValue;
+            this.output = output;
+            this.error = error;
+            this.killed = killed;
+        }
+
+        public String outputText() {
+            return join(output);
+        }
+
+        public String errorText() {
+            return join(error);
+        }
+
+        private static String join(ArrayList<String> lines) {
+            StringBuilder sb = new StringBuilder();
+            for (String line: lines) {
+                sb.append(line).append("\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads the lines of a stream until EOF.
+     */
+    private static class Drain extends Thread {
+
+        private final InputStream mStream;
+        private final int mMaxLines;
+        private final LineListener mListener;
+        private final ArrayList<String> mLines = new ArrayList<String>();
+        private int mDropped = 0;
+        private IOException mError = null;
+
+        public Drain(String name, InputStream stream, int maxLines, LineListener listener) {
+            super(name);
+            mStream = stream;
+            mMaxLines = maxLines;
+            mListener = listener;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(mStream));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > MAX_LINE_LENGTH) {
+                        line = line.substring(0, MAX_LINE_LENGTH);
+                    }
+                    if (mListener != null) {
+                        mListener.onLine(line);
+                    }
+                    if (mLines.size() < mMaxLines) {
+                        mLines.add(line);
+                    } else {
+                        mDropped += 1;
+                    }
+                }
+            } catch (IOException e) {
+                // Also happens when the process is killed
+                mError = e;
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to read anyway
+                }
+            }
+        }
+    }
+
+    private final String mCommand;
+    private long mTimeoutMillis = 0;
+    private int mMaxLines = 1000;
+    private LineListener mOutputListener = null;
+    private LineListener mErrorListener = null;
+    private volatile Process mProcess = null;
+    private volatile boolean mCancelled = false;
+
+    public ProcessRunner(String command) {
+        mCommand = command;
+    }
+
+    /**
+     * Kills the command if it runs longer than the given time (0, the default,
+     * waits forever).
+     */
+    public void setTimeout(long millis) {
+        mTimeoutMillis = millis;
+    }
+
+    public void setMaxLines(int maxLines) {
+        mMaxLines = maxLines;
+    }
+
+    public void setOutputListener(LineListener listener) {
+        mOutputListener = listener;
+    }
+
+    public void setErrorListener(LineListener listener) {
+        mErrorListener = listener;
+    }
+
+    /**
+     * Kills the command, if running. run() then returns a killed result.
+     */
+    public void cancel() {
+        mCancelled = true;
+        Process p = mProcess;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
+    /**
+     * Runs the command and waits for it to exit (or to be killed) and for both
+     * its streams to be drained.
+     */
+    public Result run() throws IOException, InterruptedException {
+        Process p = Runtime.getRuntime().exec(mCommand);
+        mProcess = p;
+        try {
+            p.getOutputStream().close();
+            Drain output = new Drain("ProcessRunner stdout", p.getInputStream(),
+                                     mMaxLines, mOutputListener);
+            Drain error = new Drain("ProcessRunner stderr", p.getErrorStream(),
+                                    mMaxLines, mErrorListener);
+            output.start();
+            error.start();
+
+            long deadline = mTimeoutMillis > 0 ?
+                            System.currentTimeMillis() + mTimeoutMillis : Long.MAX_VALUE;
+            Integer exitValue = null;
+            boolean killed = mCancelled;
+            if (killed == false) {
+                exitValue = waitFor(p, output, error, deadline);
+                killed = exitValue == null || mCancelled;
+            }
+            if (exitValue == null) {
+                Logger.w(sTag, "killing " + mCommand + (mCancelled ? "" : " after " +
+                               mTimeoutMillis + "ms"));
+                p.destroy();
+                exitValue = p.waitFor();
+            }
+            // Once the process is gone the pipes are closed, so the drains end
+            output.join();
+            error.join();
+
+            if (output.mDropped > 0 || error.mDropped > 0) {
+                Logger.w(sTag, "dropped " + output.mDropped + " output lines and " +
+                               error.mDropped + " error lines of " + mCommand);
+            }
+            if (output.mError != null && killed == false) {
+                throw output.mError;
+            }
+            return new Result(exitValue, output.mLines, error.mLines, killed);
+        } finally {
+            mProcess = null;
+            p.destroy();
+        }
+    }
+
+    /**
+     * Waits until the process has exited and its streams have been drained, and
+     * returns its exit value, or null if the deadline passes first.
+     */
+    private static Integer waitFor(Process p, Thread output, Thread error, long deadline)
+        throws InterruptedException {
+        for (Thread drain: new Thread[] {output, error}) {
+            long timeLeft = deadline - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+                return null;
+            }
+            drain.join(timeLeft);
+            if (drain.isAlive()) {
+                return null;
+            }
+        }
+        // Both streams are closed, the process is exiting
+        while (true) {
+            try {
+                return p.exitValue();
+            } catch (IllegalThreadStateException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return null;
+                }
+                Thread.sleep(EXIT_POLL_MILLIS);
+            }
+        }
+    }
+}
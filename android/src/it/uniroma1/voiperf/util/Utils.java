@@ -6,15 +6,18 @@ import it.uniroma1.voiperf.logging.Logger;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
@@ -26,6 +29,7 @@ import java.util.zip.GZIPOutputStream;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -125,35 +129,25 @@ public class Utils {
         }
     }
     
-    public static byte[] compressString(String src) throws IOException {
-        InputStream srcStream = new ByteArrayInputStream(src.getBytes());
-        ByteArrayOutputStream dstStream = new ByteArrayOutputStream();
-        GZIPOutputStream gzos = null;
+    /**
+     * Serializes the given JSON object straight into a gzip stream over dst, without
+     * building its string first. dst is closed once the gzip trailer has been written.
+     */
+    public static void writeCompressedJSON(JSONStreamAware obj, OutputStream dst)
+        throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(dst),
+                                                                  "UTF-8"));
         try {
-            gzos = new GZIPOutputStream(dstStream);
-
-            byte[] buff = new byte[256 * 1024];
-            int nread;
-            while ((nread = srcStream.read(buff)) != -1) {
-                gzos.write(buff, 0, nread);
-            }
-            
-            gzos.close();
-            gzos = null;
-            
-            return dstStream.toByteArray();
+            obj.writeJSONString(writer);
         } finally {
-            srcStream.close();
-            dstStream.close();
-            if (gzos != null) gzos.close();
+            writer.close();
         }
     }
     
-    public static void sendCompressedJSON(DataOutputStream dos, JSONObject obj)
-        throws IOException {
-        byte[] result = compressString(obj.toJSONString());
-        dos.writeBytes(result.length + "\n");
-        dos.write(result);
+    public static byte[] compressJSON(JSONStreamAware obj) throws IOException {
+        ByteArrayOutputStream dstStream = new ByteArrayOutputStream();
+        writeCompressedJSON(obj, dstStream);
+        return dstStream.toByteArray();
     }
     
     @SuppressWarnings("unchecked")
@@ -174,6 +168,20 @@ public class Utils {
         return array;
     }
     
+    /**
+     * Returns a buffer wrapping the data of the given packet, positioned on its
+     * content. The given buffer is reused if it already wraps the same array.
+     */
+    public static ByteBuffer wrapPacket(ByteBuffer buffer, DatagramPacket packet) {
+        if (buffer == null || buffer.array() != packet.getData()) {
+            buffer = ByteBuffer.wrap(packet.getData());
+        }
+        buffer.clear();
+        buffer.position(packet.getOffset());
+        buffer.limit(packet.getOffset() + packet.getLength());
+        return buffer;
+    }
+    
     public static boolean isSDCardWriteable() {
         String state = Environment.getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equals(state)) {
@@ -203,6 +211,14 @@ public class Utils {
         return output;
     }
     
+    /**
+     * Milliseconds from System.nanoTime(), for timeouts that must not be affected
+     * by changes of the wall clock.
+     */
+    public static long monotonicMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+    
     // See: http://andy-malakov.blogspot.it/2010/06/alternative-to-threadsleep.html
     private static final long sSleepPrecision = TimeUnit.MILLISECONDS.toNanos(1);    // TODO: tune
     private static final long sSpinYieldPrecision = TimeUnit.NANOSECONDS.toNanos(1); // TODO: tune
@@ -0,0 +1,98 @@
+package it.uniroma1.voiperf.measurements;
+
+import junit.framework.TestCase;
+
+/**
+ * Known values of the jitter, loss burst and E-model estimates, with the default
+ * E-model parameters of Config (R0 93.2, Ie 0, Bpl 25.1, 25ms codec delay).
+ */
+public class CallQualityTest extends TestCase {
+
+    private static CallQuality receive(int expected, boolean roundTrip, int[] seqs,
+                                       double transitMillis) {
+        CallQuality quality = new CallQuality(expected, roundTrip);
+        for (int seq: seqs) {
+            quality.add(seq, transitMillis);
+        }
+        return quality;
+    }
+
+    private static int[] range(int from, int to) {
+        int[] seqs = new int[to - from];
+        for (int i = 0; i < seqs.length; ++i) {
+            seqs[i] = from + i;
+        }
+        return seqs;
+    }
+
+    public void testJitter() {
+        CallQuality quality = new CallQuality(3, false);
+        quality.add(0, 0.0);
+        quality.add(1, 10.0);
+        assertEquals(0.625, quality.jitterMillis(), 1e-9);
+        quality.add(2, 0.0);
+        assertEquals(0.625 + (10 - 0.625) / 16, quality.jitterMillis(), 1e-9);
+    }
+
+    public void testNoLoss() {
+        CallQuality quality = receive(10, false, range(0, 10), 40.0);
+        assertEquals(0.0, quality.jitterMillis(), 1e-9);
+        assertEquals(0.0, quality.lossRate(), 1e-9);
+        assertEquals(0.0, quality.burstP(), 1e-9);
+        assertEquals(1.0, quality.burstR(), 1e-9);
+        // Only the codec delay: Id = 0.024 * 25
+        assertEquals(92.6, quality.rFactor(), 1e-9);
+        assertEquals(4.397372, quality.mos(), 1e-6);
+    }
+
+    public void testRoundTripDelay() {
+        // Half the RTT is the network delay: Id = 0.024 * (50 + 25)
+        CallQuality quality = receive(10, true, range(0, 10), 100.0);
+        assertEquals(75.0, quality.delayMillis(), 1e-9);
+        assertEquals(91.4, quality.rFactor(), 1e-9);
+    }
+
+    public void testLossBurst() {
+        CallQuality quality = receive(10, false, new int[] {0, 1, 2, 5, 6, 7, 8, 9}, 0.0);
+        assertEquals(0.2, quality.lossRate(), 1e-9);
+        assertEquals(1 / 8.0, quality.burstP(), 1e-9);
+        assertEquals(1 / 2.0, quality.burstR(), 1e-9);
+    }
+
+    public void testTrailingLosses() {
+        CallQuality quality = receive(10, false, range(0, 8), 0.0);
+        assertEquals(0.2, quality.lossRate(), 1e-9);
+        assertEquals(1 / 9.0, quality.burstP(), 1e-9);
+        assertEquals(0.0, quality.burstR(), 1e-9);
+    }
+
+    public void testEModelWithLoss() {
+        // Ppl 10%, BurstR 0.9: Ie-eff = 95 * 10 / (10 / 0.9 + 25.1)
+        CallQuality quality = receive(10, false, new int[] {0, 1, 2, 3, 5, 6, 7, 8, 9}, 0.0);
+        assertEquals(66.364959, quality.rFactor(), 1e-6);
+        assertEquals(3.422228, quality.mos(), 1e-6);
+    }
+
+    public void testLatePacket() {
+        CallQuality quality = receive(3, false, new int[] {0, 2, 1}, 0.0);
+        assertEquals(3, quality.receivedPackets());
+        assertEquals(1, quality.latePackets());
+        // already counted as lost when seq 2 arrived
+        assertEquals(1 / 3.0, quality.lossRate(), 1e-9);
+    }
+
+    public void testDuplicatesAreIgnored() {
+        CallQuality quality = receive(5, true, range(0, 5), 20.0);
+        double jitter = quality.jitterMillis();
+        double delay = quality.delayMillis();
+        quality.add(2, 500.0);
+        quality.add(4, 500.0);
+        assertEquals(5, quality.receivedPackets());
+        assertEquals(2, quality.latePackets());
+        assertEquals(jitter, quality.jitterMillis(), 1e-9);
+        assertEquals(delay, quality.delayMillis(), 1e-9);
+        assertEquals(5, quality.delaySketch().count());
+        assertEquals(20, quality.delaySketch().max());
+        assertEquals(0.0, quality.lossRate(), 1e-9);
+    }
+}
@@ -0,0 +1,103 @@
+package it.uniroma1.voiperf.measurements;
+
+import it.uniroma1.voiperf.Config;
+
+import junit.framework.TestCase;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Checks the offset and skew fit on probes generated from a known server clock:
+ * server time = client time + OFFSET + skew * (client time - REFERENCE).
+ */
+public class ClockSyncTest extends TestCase {
+
+    private static final long OFFSET = 5000;
+    private static final long REFERENCE = 1000000000;
+    private static final long SECOND = 1000000;
+
+    private ClockSync mSync;
+
+    @Override
+    protected void setUp() {
+        mSync = new ClockSync(new TimestampSource(true));
+    }
+
+    private static long server(long client, long skewPpm) {
+        return client + OFFSET + skewPpm * (client - REFERENCE) / SECOND;
+    }
+
+    /**
+     * Adds a probe sent at t1 with the given uplink and downlink delays, which
+     * the server answers at once.
+     */
+    private void probe(int exchange, long t1, long up, long down, long skewPpm) {
+        long t2 = server(t1 + up, skewPpm);
+        mSync.addSample(exchange, t1, t2, t2, t1 + up + down);
+    }
+
+    public void testNoProbes() {
+        assertFalse(mSync.estimate());
+        assertNull(mSync.toJSON().get(ClockSync.OFFSET_KEY));
+    }
+
+    public void testSymmetricPath() {
+        for (int i = 0; i < 4; ++i) {
+            probe(ClockSync.BEFORE_TRACE, REFERENCE + i * SECOND, 10000, 10000, 0);
+        }
+        assertTrue(mSync.estimate());
+        assertEquals(OFFSET, mSync.offsetAt(REFERENCE), 1e-6);
+        assertEquals(OFFSET, mSync.offsetAt(REFERENCE + 100 * SECOND), 1e-6);
+    }
+
+    public void testMinimumDelayEnvelope() {
+        // Queueing on the uplink only biases the offsets of the slower probes
+        int probes = 8;
+        int fast = (int) Math.ceil(probes * Config.CLOCK_SYNC_ENVELOPE_FRACTION);
+        for (int i = 0; i < probes; ++i) {
+            long queueing = i < fast ? 0 : 3000 + 1000 * i;
+            probe(ClockSync.BEFORE_TRACE, REFERENCE + i * SECOND, 10000 + queueing, 10000, 0);
+        }
+        assertTrue(mSync.estimate());
+        assertEquals(OFFSET, mSync.offsetAt(REFERENCE), 1e-6);
+        JSONObject o = mSync.toJSON();
+        assertEquals(20000L, o.get(ClockSync.MIN_DELAY_KEY));
+        assertEquals(fast, ((Number) o.get(ClockSync.ENVELOPE_KEY)).intValue());
+        assertEquals(probes, ((Number) o.get(ClockSync.SAMPLES_KEY)).intValue());
+    }
+
+    public void testSkewAcrossTheTrace() {
+        long skewPpm = 50;
+        for (int i = 0; i < 4; ++i) {
+            probe(ClockSync.BEFORE_TRACE, REFERENCE - 10000 + i * SECOND, 10000, 10000, skewPpm);
+            probe(ClockSync.AFTER_TRACE, REFERENCE - 10000 + (60 + i) * SECOND, 10000, 10000,
+                  skewPpm);
+        }
+        assertTrue(mSync.estimate());
+        assertEquals(skewPpm, ((Number) mSync.toJSON().get(ClockSync.SKEW_KEY)).doubleValue(),
+                     1e-6);
+        for (long t: new long[] {REFERENCE, REFERENCE + 30 * SECOND, REFERENCE + 63 * SECOND}) {
+            assertEquals(server(t, skewPpm) - t, mSync.offsetAt(t), 1e-3);
+        }
+    }
+
+    public void testNoSkewWithOneExchange() {
+        // The drift is only estimated from probes on both sides of the trace
+        for (int i = 0; i < 4; ++i) {
+            probe(ClockSync.BEFORE_TRACE, REFERENCE + i * 10 * SECOND, 10000, 10000, 100);
+        }
+        assertTrue(mSync.estimate());
+        assertEquals(0.0, ((Number) mSync.toJSON().get(ClockSync.SKEW_KEY)).doubleValue(), 0.0);
+    }
+
+    public void testNewProbesInvalidateTheEstimate() {
+        probe(ClockSync.BEFORE_TRACE, REFERENCE, 10000, 10000, 0);
+        assertTrue(mSync.estimate());
+        assertEquals(OFFSET, mSync.offsetAt(REFERENCE), 1e-6);
+        // A probe after the trace seeing no offset: the fit goes through both
+        long t1 = REFERENCE + SECOND;
+        mSync.addSample(ClockSync.AFTER_TRACE, t1, t1 + 1000, t1 + 1000, t1 + 2000);
+        assertTrue(mSync.estimate());
+        assertEquals(0.0, mSync.offsetAt(t1 + 1000), 1e-6);
+    }
+}
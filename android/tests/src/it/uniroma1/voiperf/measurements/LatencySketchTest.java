@@ -0,0 +1,114 @@
+package it.uniroma1.voiperf.measurements;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+public class LatencySketchTest extends TestCase {
+
+    private static final double ERROR = 1.0 / LatencySketch.SUB_BUCKETS;
+
+    private static long exactQuantile(long[] sorted, double q) {
+        int rank = (int) Math.ceil(q * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+
+    public void testEmpty() {
+        LatencySketch sketch = new LatencySketch();
+        assertEquals(0, sketch.count());
+        assertEquals(0, sketch.quantile(0.5));
+        assertEquals(0.0, sketch.mean(), 0.0);
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencySketch sketch = new LatencySketch();
+        for (int v = 1; v <= 50; ++v) {
+            sketch.add(v);
+        }
+        assertEquals(25, sketch.quantile(0.5));
+        assertEquals(48, sketch.quantile(0.95));
+        assertEquals(1, sketch.min());
+        assertEquals(50, sketch.max());
+        assertEquals(25.5, sketch.mean(), 1e-9);
+    }
+
+    public void testBuckets() {
+        for (long v: new long[] {0, 63, 64, 65, 1000, 123456789}) {
+            int index = LatencySketch.bucketIndex(v);
+            assertTrue(LatencySketch.bucketLow(index) <= v);
+            assertTrue(v < LatencySketch.bucketLow(index + 1));
+        }
+    }
+
+    public void testQuantilesWithinError() {
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        LatencySketch sketch = new LatencySketch();
+        for (int i = 0; i < values.length; ++i) {
+            // log-normal like delays, from a few ms to seconds
+            values[i] = (long) Math.exp(3 + 2 * random.nextDouble() + random.nextGaussian());
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q: new double[] {0.01, 0.25, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = exactQuantile(values, q);
+            assertEquals("quantile " + q, exact, sketch.quantile(q), exact * ERROR + 1);
+        }
+        assertEquals(values[0], sketch.quantile(0.0));
+        assertEquals(values[values.length - 1], sketch.quantile(1.0));
+    }
+
+    public void testNegativeValues() {
+        LatencySketch sketch = new LatencySketch();
+        for (long v = -100; v <= 100; ++v) {
+            sketch.add(v);
+        }
+        assertEquals(-100, sketch.min());
+        assertEquals(0, sketch.quantile(0.5));
+        assertEquals(-90, sketch.quantile(0.05), 90 * ERROR + 1);
+        assertEquals(90, sketch.quantile(0.95), 90 * ERROR + 1);
+    }
+
+    public void testMerge() {
+        Random random = new Random(7);
+        LatencySketch a = new LatencySketch();
+        LatencySketch b = new LatencySketch();
+        LatencySketch all = new LatencySketch();
+        for (int i = 0; i < 5000; ++i) {
+            long v = random.nextInt(5000) - 100;
+            (i % 3 == 0 ? a : b).add(v);
+            all.add(v);
+        }
+        a.merge(b);
+        assertEquals(all.count(), a.count());
+        assertEquals(all.min(), a.min());
+        assertEquals(all.max(), a.max());
+        assertEquals(all.mean(), a.mean(), 1e-9);
+        assertEquals(all.standardDeviation(), a.standardDeviation(), 1e-6);
+        for (double q: new double[] {0.1, 0.5, 0.99}) {
+            assertEquals(all.quantile(q), a.quantile(q));
+        }
+    }
+
+    public void testJSONRoundTrip() {
+        Random random = new Random(3);
+        LatencySketch sketch = new LatencySketch();
+        for (int i = 0; i < 2000; ++i) {
+            sketch.add(random.nextInt(3000) - 500);
+        }
+        // through the text the server receives
+        String text = sketch.toJSON().toJSONString();
+        LatencySketch parsed = LatencySketch.fromJSON((JSONObject) JSONValue.parse(text));
+        assertEquals(sketch.count(), parsed.count());
+        assertEquals(sketch.min(), parsed.min());
+        assertEquals(sketch.max(), parsed.max());
+        assertEquals(sketch.mean(), parsed.mean(), 1e-9);
+        for (double q: new double[] {0.05, 0.5, 0.95, 0.99}) {
+            assertEquals(sketch.quantile(q), parsed.quantile(q));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MappedTraceTest extends TestCase {
+
+    public void testCursor() throws IOException {
+        TraceBytes bytes = new TraceBytes(TraceV1.VERSION, 3, 5004);
+        for (int i = 0; i < 10; ++i) {
+            bytes.add(i * 0.02, TraceBytes.body(i * 3, i));
+        }
+        MappedTrace trace = bytes.load();
+        TraceCursor cursor = trace.cursor();
+        for (int i = 0; i < trace.size(); ++i) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.index());
+            assertEquals(trace.ts(i), cursor.ts(), 0);
+            assertEquals(trace.packetSize(i), cursor.packetSize());
+            byte[] expected = new byte[trace.packetSize(i)];
+            trace.copyPayload(i, expected, 0);
+            // at an offset, as the senders copy after their own header
+            byte[] actual = new byte[expected.length + 4];
+            cursor.copyPayload(actual, 4);
+            System.arraycopy(actual, 4, actual, 0, expected.length);
+            assertTrue(Arrays.equals(TraceBytes.body(i * 3, i), expected));
+            for (int j = 0; j < expected.length; ++j) {
+                assertEquals(expected[j], actual[j]);
+            }
+        }
+        assertFalse(cursor.next());
+        cursor.close();
+    }
+}
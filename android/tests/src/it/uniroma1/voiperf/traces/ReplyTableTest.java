@@ -0,0 +1,56 @@
+package it.uniroma1.voiperf.traces;
+
+import junit.framework.TestCase;
+
+public class ReplyTableTest extends TestCase {
+
+    private static byte[] reply(int seq, long sentTimestamp) {
+        byte[] data = new byte[PacketFooter.SIZE + 4];
+        PacketFooter.write(data, data.length, seq, sentTimestamp);
+        return data;
+    }
+
+    public void testRecord() {
+        PacketFooter.ReplyTable table = new PacketFooter.ReplyTable(4);
+        byte[] data = reply(2, 1000);
+        assertEquals(2, table.record(data, data.length, 1040));
+        assertTrue(table.isReceived(2));
+        assertFalse(table.isReceived(1));
+        assertEquals(40, table.rtt(2));
+        assertEquals(-1, table.rtt(1));
+        assertEquals(1, table.replies());
+    }
+
+    public void testDuplicate() {
+        PacketFooter.ReplyTable table = new PacketFooter.ReplyTable(4);
+        byte[] data = reply(1, 1000);
+        assertEquals(1, table.record(data, data.length, 1010));
+        assertEquals(PacketFooter.ReplyTable.DUPLICATE, table.record(data, data.length, 1500));
+        // the first reply is kept
+        assertEquals(10, table.rtt(1));
+        assertEquals(1, table.replies());
+        assertEquals(1, table.duplicates());
+    }
+
+    public void testInvalid() {
+        PacketFooter.ReplyTable table = new PacketFooter.ReplyTable(4);
+        byte[] data = reply(4, 1000);
+        assertEquals(PacketFooter.ReplyTable.INVALID, table.record(data, data.length, 1010));
+        assertEquals(PacketFooter.ReplyTable.INVALID,
+                     table.record(data, PacketFooter.SIZE - 1, 1010));
+        assertEquals(0, table.replies());
+    }
+
+    public void testReordered() {
+        PacketFooter.ReplyTable table = new PacketFooter.ReplyTable(4);
+        for (int seq: new int[] {0, 2, 1, 3}) {
+            byte[] data = reply(seq, 0);
+            table.record(data, data.length, 1);
+        }
+        assertEquals(4, table.replies());
+        assertEquals(1, table.reordered());
+        long[] rtts = table.getRTTs();
+        assertEquals(4, rtts.length);
+        assertEquals(1, rtts[3]);
+    }
+}
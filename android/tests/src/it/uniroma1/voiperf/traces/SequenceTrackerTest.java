@@ -0,0 +1,101 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class SequenceTrackerTest extends TestCase {
+
+    private static void assertExtended(RTPHeader.SequenceTracker tracker, int[] seqs,
+                                       int[] expected) {
+        for (int i = 0; i < seqs.length; ++i) {
+            assertEquals("packet " + i, expected[i], tracker.extend(seqs[i]));
+        }
+    }
+
+    public void testInOrder() {
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker();
+        assertExtended(tracker, new int[] {65534, 65535, 0, 1, 2},
+                       new int[] {65534, 65535, 65536, 65537, 65538});
+        assertEquals(1, tracker.cycles());
+        assertEquals(65538, tracker.maxExtended());
+    }
+
+    public void testGap() {
+        // a gap shorter than MAX_DROPOUT is followed, even across the wraparound
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker();
+        assertExtended(tracker, new int[] {64000, 1000},
+                       new int[] {64000, 66536});
+        assertEquals(1, tracker.cycles());
+    }
+
+    public void testMisordered() {
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker();
+        assertExtended(tracker, new int[] {65530, 65533, 65532, 65535, 2, 1, 5, 65534},
+                       new int[] {65530, 65533, 65532, 65535, 65538, 65537, 65541, 65534});
+        // the late packets do not move the highest sequence number back
+        assertEquals(65541, tracker.maxExtended());
+    }
+
+    public void testJump() {
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker();
+        assertExtended(tracker, new int[] {65535, 5, 40000},
+                       new int[] {65535, 65541, 105536});
+        // a single packet does not follow the jump
+        assertEquals(65541, tracker.maxExtended());
+        // the next one confirms it
+        assertExtended(tracker, new int[] {40001, 40002},
+                       new int[] {105537, 105538});
+        assertEquals(105538, tracker.maxExtended());
+    }
+
+    public void testUnconfirmedJump() {
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker();
+        assertExtended(tracker, new int[] {100, 30000, 101},
+                       new int[] {100, 30000, 101});
+        assertEquals(101, tracker.maxExtended());
+    }
+
+    public void testFromExtended() {
+        RTPHeader.SequenceTracker tracker = new RTPHeader.SequenceTracker(65530);
+        assertExtended(tracker, new int[] {65531, 65529, 3, 65535},
+                       new int[] {65531, 65529, 65539, 65535});
+        tracker = new RTPHeader.SequenceTracker(3 * 65536 + 10);
+        assertEquals(3, tracker.cycles());
+        assertEquals(3 * 65536 + 11, tracker.extend(11));
+    }
+
+    private static TraceBytes wrappingTrace() throws IOException {
+        TraceBytes bytes = new TraceBytes(RTPTrace.VERSION, 1, 5004);
+        int[] seqs = {65533, 65534, 65535, 0, 65535, 2, 1, 3, 3};
+        for (int i = 0; i < seqs.length; ++i) {
+            bytes.addRTP(i * 0.02, seqs[i], TraceBytes.body(20, i));
+        }
+        return bytes;
+    }
+
+    public void testMappedTrace() throws IOException {
+        MappedTrace trace = wrappingTrace().load();
+        // the duplicates of 65535 and 3 are dropped
+        int[] expected = {65533, 65534, 65535, 65536, 65538, 65537, 65539};
+        assertEquals(expected.length, trace.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], trace.sequenceNumber(i));
+        }
+        assertEquals(65533, trace.minSequenceNumber());
+        assertEquals(65539, trace.maxSequenceNumber());
+        assertEquals(7, trace.sequenceNumberRange());
+        // the first of the duplicates is kept
+        assertEquals(0.14, trace.ts(6), 1e-9);
+    }
+
+    public void testRTPTrace() throws IOException {
+        DataInputStream input = new DataInputStream(
+            new ByteArrayInputStream(wrappingTrace().toByteArray()));
+        RTPTrace trace = RTPTrace.loadFromStream(input);
+        assertEquals(7, trace.size());
+        assertEquals(7, trace.sequenceNumberRange());
+    }
+}
@@ -0,0 +1,58 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes version 1 and RTP trace files in memory, for the tests of the loaders.
+ */
+class TraceBytes {
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+    TraceBytes(int version, int id, int dport) throws IOException {
+        mOut.writeInt(version);
+        mOut.writeInt(id);
+        mOut.writeShort(dport);
+    }
+
+    void add(double ts, byte[] payload) throws IOException {
+        mOut.writeDouble(ts);
+        mOut.writeShort(payload.length);
+        mOut.write(payload);
+    }
+
+    /**
+     * Adds an RTP packet with the given sequence number and body, its RTP timestamp
+     * being 160 units per sequence number.
+     */
+    void addRTP(double ts, int seq, byte[] body) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(RTPHeader.SIZE + body.length);
+        payload.put((byte) 0x80);
+        payload.put((byte) 0);
+        payload.putShort((short) seq);
+        payload.putInt(seq * 160);
+        payload.putInt(0x12345678);
+        payload.put(body);
+        add(ts, payload.array());
+    }
+
+    byte[] toByteArray() {
+        return mBytes.toByteArray();
+    }
+
+    MappedTrace load() throws IOException {
+        return MappedTrace.load(ByteBuffer.wrap(toByteArray()));
+    }
+
+    static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            body[i] = (byte) (seed * 31 + i);
+        }
+        return body;
+    }
+}
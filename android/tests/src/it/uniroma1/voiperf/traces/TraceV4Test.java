@@ -0,0 +1,121 @@
+package it.uniroma1.voiperf.traces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TraceV4Test extends TestCase {
+
+    private static final long SEED = 42;
+
+    private static MappedTrace v1Trace() throws IOException {
+        TraceBytes bytes = new TraceBytes(TraceV1.VERSION, 7, 5004);
+        for (int i = 0; i < 50; ++i) {
+            // three distinct payloads, of two sizes, and an empty one
+            int kind = i % 4;
+            byte[] payload = kind == 3 ? new byte[0] : TraceBytes.body(kind == 2 ? 33 : 20, kind);
+            bytes.add(0.5 + i * 0.02, payload);
+        }
+        return bytes.load();
+    }
+
+    private static MappedTrace rtpTrace() throws IOException {
+        TraceBytes bytes = new TraceBytes(RTPTrace.VERSION, 9, 5006);
+        for (int i = 0; i < 50; ++i) {
+            // across the wraparound of the sequence numbers, with some jitter
+            bytes.addRTP(i * 0.02 + (i % 3) * 0.000001, (65500 + i) & 0xFFFF,
+                         TraceBytes.body(i % 2 * 10 + 20, i % 2));
+        }
+        return bytes.load();
+    }
+
+    private static MappedTrace roundTrip(MappedTrace trace, int payloadMode) throws IOException {
+        byte[] bytes = TraceV4.encode(trace, payloadMode, SEED);
+        MappedTrace decoded = MappedTrace.load(ByteBuffer.wrap(bytes));
+        assertEquals(TraceV4.VERSION, decoded.version());
+        assertEquals(trace.id(), decoded.id());
+        assertEquals(trace.dport(), decoded.dport());
+        assertEquals(trace.hasRTPHeaders(), decoded.hasRTPHeaders());
+        assertEquals(trace.size(), decoded.size());
+        for (int i = 0; i < trace.size(); ++i) {
+            assertEquals(trace.ts(i), decoded.ts(i), 1e-6);
+            assertEquals(trace.packetSize(i), decoded.packetSize(i));
+            if (trace.hasRTPHeaders()) {
+                assertEquals(trace.sequenceNumber(i), decoded.sequenceNumber(i));
+            }
+        }
+        return decoded;
+    }
+
+    private static byte[] payload(MappedTrace trace, int index) {
+        byte[] payload = new byte[trace.packetSize(index)];
+        trace.copyPayload(index, payload, 0);
+        return payload;
+    }
+
+    private static void assertSamePayloads(MappedTrace expected, MappedTrace actual) {
+        for (int i = 0; i < expected.size(); ++i) {
+            assertTrue(Arrays.equals(payload(expected, i), payload(actual, i)));
+        }
+    }
+
+    public void testRaw() throws IOException {
+        MappedTrace trace = v1Trace();
+        assertSamePayloads(trace, roundTrip(trace, TraceV4.PAYLOAD_RAW));
+    }
+
+    public void testDictionary() throws IOException {
+        MappedTrace trace = v1Trace();
+        byte[] raw = TraceV4.encode(trace, TraceV4.PAYLOAD_RAW, SEED);
+        byte[] dictionary = TraceV4.encode(trace, TraceV4.PAYLOAD_DICTIONARY, SEED);
+        assertTrue(dictionary.length < raw.length);
+        assertSamePayloads(trace, roundTrip(trace, TraceV4.PAYLOAD_DICTIONARY));
+    }
+
+    public void testSeed() throws IOException {
+        MappedTrace trace = v1Trace();
+        MappedTrace decoded = roundTrip(trace, TraceV4.PAYLOAD_SEED);
+        for (int i = 0; i < trace.size(); ++i) {
+            byte[] expected = new byte[trace.packetSize(i)];
+            SyntheticTrace.packetRandom(SEED, i).nextBytes(expected, 0, expected.length);
+            assertTrue(Arrays.equals(expected, payload(decoded, i)));
+        }
+    }
+
+    public void testRTP() throws IOException {
+        MappedTrace trace = rtpTrace();
+        assertSamePayloads(trace, roundTrip(trace, TraceV4.PAYLOAD_RAW));
+        assertSamePayloads(trace, roundTrip(trace, TraceV4.PAYLOAD_DICTIONARY));
+    }
+
+    public void testRTPSeed() throws IOException {
+        MappedTrace trace = rtpTrace();
+        MappedTrace decoded = roundTrip(trace, TraceV4.PAYLOAD_SEED);
+        for (int i = 0; i < trace.size(); ++i) {
+            byte[] original = payload(trace, i);
+            byte[] expected = new byte[original.length];
+            // the RTP headers are kept, only the bodies are generated
+            System.arraycopy(original, 0, expected, 0, RTPHeader.SIZE);
+            SyntheticTrace.packetRandom(SEED, i).nextBytes(
+                expected, RTPHeader.SIZE, expected.length - RTPHeader.SIZE);
+            assertTrue(Arrays.equals(expected, payload(decoded, i)));
+        }
+    }
+
+    public void testEmpty() throws IOException {
+        MappedTrace trace = new TraceBytes(RTPTrace.VERSION, 1, 5004).load();
+        assertEquals(0, roundTrip(trace, TraceV4.PAYLOAD_DICTIONARY).size());
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] bytes = TraceV4.encode(v1Trace(), TraceV4.PAYLOAD_RAW, SEED);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice();
+        try {
+            MappedTrace.load(buffer);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}
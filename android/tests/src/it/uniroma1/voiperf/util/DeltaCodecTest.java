@@ -0,0 +1,113 @@
+package it.uniroma1.voiperf.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+public class DeltaCodecTest extends TestCase {
+
+    private static byte[] encode(long[] values) {
+        DeltaCodec codec = new DeltaCodec(values.length);
+        for (long value: values) {
+            codec.add(value);
+        }
+        assertEquals(codec.toByteArray().length, codec.length());
+        return codec.toByteArray();
+    }
+
+    private static void assertRoundTrip(long[] values) {
+        ByteBuffer buffer = ByteBuffer.wrap(encode(values));
+        assertTrue(Arrays.equals(values, DeltaCodec.decode(buffer, values.length)));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    public void testKnownBytes() {
+        // deltas 0, 1, -2, 65 zig-zag to 0, 2, 3, 130 (two varint bytes)
+        byte[] bytes = encode(new long[] {0, 1, -1, 64});
+        assertTrue(Arrays.equals(new byte[] {0, 2, 3, (byte) 0x82, 1}, bytes));
+    }
+
+    public void testRoundTrip() {
+        assertRoundTrip(new long[0]);
+        assertRoundTrip(new long[] {1000, 1020, 1040, 1060, 1080});
+        assertRoundTrip(new long[] {5, -3, 0, -70000, 123456789012L});
+        assertRoundTrip(new long[] {Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MIN_VALUE, -1});
+    }
+
+    public void testGrows() {
+        // more values than the initial capacity, each delta (wrapping to
+        // Long.MIN_VALUE) taking the 10 bytes of a long
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i % 2 == 0 ? 1L << 62 : -(1L << 62);
+        }
+        assertEquals(values.length * 10, encode(values).length);
+        assertRoundTrip(values);
+    }
+
+    public void testDecodeLeavesPosition() {
+        byte[] bytes = encode(new long[] {1, 2, 300});
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertTrue(Arrays.equals(new long[] {1, 2}, DeltaCodec.decode(buffer, 2)));
+        assertEquals(2, buffer.position());
+    }
+
+    public void testDecodeTruncated() {
+        byte[] bytes = encode(new long[] {1, 2, 300});
+        try {
+            DeltaCodec.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1), 3);
+            fail();
+        } catch (BufferUnderflowException e) {
+        }
+    }
+
+    public void testJSONRoundTrip() {
+        // every length modulo 3, for the base64 padding
+        for (int count = 0; count < 8; ++count) {
+            int[] values = new int[count];
+            long[] expected = new long[count];
+            for (int i = 0; i < count; ++i) {
+                values[i] = i * 1000 - 3000;
+                expected[i] = values[i];
+            }
+            JSONObject o = DeltaCodec.toJSON(values, count);
+            assertEquals(DeltaCodec.NAME, o.get(DeltaCodec.CODEC_KEY));
+            JSONObject parsed = (JSONObject) JSONValue.parse(o.toJSONString());
+            assertTrue(Arrays.equals(expected, DeltaCodec.fromJSON(parsed)));
+        }
+    }
+
+    public void testJSONCount() {
+        long[] values = new long[] {7, 8, 9, 10};
+        JSONObject o = DeltaCodec.toJSON(values, 2);
+        assertTrue(Arrays.equals(new long[] {7, 8}, DeltaCodec.fromJSON(o)));
+    }
+
+    public void testJSONBase64() {
+        // the bytes of testKnownBytes()
+        JSONObject o = DeltaCodec.toJSON(new long[] {0, 1, -1, 64}, 4);
+        assertEquals("AAIDggE=", o.get(DeltaCodec.DATA_KEY));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testJSONInvalid() {
+        JSONObject o = DeltaCodec.toJSON(new long[] {1, 2, 300}, 3);
+        o.put(DeltaCodec.COUNT_KEY, 4);
+        try {
+            DeltaCodec.fromJSON(o);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        o.put(DeltaCodec.CODEC_KEY, "gzip");
+        try {
+            DeltaCodec.fromJSON(o);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -17,10 +17,16 @@ DEFAULT_CLIENT_IDLE_TIMEOUT = 60*5 # Timeout (in seconds) before an idle connect
 
 TRACE_WAIT_TIMEOUT = 120      # timeout (in seconds) before the first trace packet is received
 TRACE_RECV_TIMEOUT = 3       # timeout (in seconds) after the first trace packet is received
+TRACE_DRAIN_POLL_TIMEOUT = 0.1 # how often (in seconds) a sender checks whether to stop draining
+TRACE_DRAIN_RTT_FACTOR = 3     # replies are drained for RTT_FACTOR times the 99th percentile RTT,
+TRACE_DRAIN_MIN_TIMEOUT = 0.2  # but for no less than this (in seconds), and no more than
+                               # TRACE_RECV_TIMEOUT
 HOLE_PUNCHING_TIMEOUT = 10   # timeout (in seconds) for waiting for a hole punching packet
 TRACE_SEND_BSIZE = 1024**2   # send buffer size
 TRACE_RECV_BSIZE = 1024**2   # receive buffer size
 TRACE_MAX_PACKET_SIZE = 1500 # maximum trace packet size (in bytes)
+SYNTHETIC_MAX_DURATION = 600     # longest synthetic trace (in seconds) a client can ask for
+SYNTHETIC_MIN_PTIME_MILLIS = 10  # shortest packetization time of synthetic traces
 
 MEASUREMENT_SERVER_BUSY_MSG = 'BUSY'
 MEASUREMENT_SERVER_AVAILABLE_MSG = 'OK'
@@ -34,6 +40,36 @@ ZLIB_MAGIC_NUMBER = 15 + 32
 TRACE_END_MESSAGE = 'QUIT'          # message to be used to notify the trace has finished
 HOLE_PUNCHING_PACKET = 'I HATE NAT' # payload of UDP packets used for hole punching
 END_MEASUREMENTS = 'END'            # message a client uses to notify measurements have finished
+SESSION_MESSAGE = 'SESSION'         # message a client uses to start a pipelined session
+FEATURES_MESSAGE = 'FEATURES'       # message announcing the features supported by the server
+
+# Protocol features supported by the server, announced to the clients supporting any
+SERVER_FEATURES = ['session', 'frames', 'delta_varint', 'flows', 'late_traceroute',
+                   'micro_timestamps', 'clock_sync', 'synthetic_traces']
+
+# Binary control frames (see MeasurementUtils.FramedChannel)
+FRAME_VERSION = 1
+FRAME_TYPE_TEXT = 1
+FRAME_TYPE_JSON = 2
+FRAME_FLAG_GZIP = 0x0001
+FRAME_FLAG_MORE = 0x0002
+
+# Codec of the per-packet series in the measurement info (see MeasurementUtils.decode_series)
+DELTA_CODEC = 'delta_varint'
+
+# Timestamp series of the measurement info, converted to milliseconds when the
+# client sends them in microseconds (see MeasurementUtils.decode_measurement_info)
+TIMESTAMP_SERIES = ['recv_timestamps', 'sent_timestamps']
+DURATION_SERIES = ['trace_rtts']
+
+# Clock sync probes exchanged on the trace connections (see MeasurementUtils.ClockModel)
+CLOCK_SYNC_PROBE = 'VOIPERF_SYNC'
+CLOCK_SYNC_DONE = 'VOIPERF_SYNC_DONE'
+CLOCK_SYNC_TIMEOUT = 5    # timeout (in seconds) waiting for the probes after a trace
+
+# Delay distributions in the measurement info (see MeasurementUtils.LatencySketch)
+LATENCY_SKETCH = 'log_linear'
+LATENCY_SKETCH_SUB_BUCKETS = 32
 
 # Measurement types
 RTP_SEND_MEASUREMENT_TYPE = 'RTP_SEND'       # the client sends an RTP trace
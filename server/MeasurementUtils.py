@@ -3,9 +3,12 @@
 # vim: columns=100
 # vim: expandtab softtabstop=4 shiftwidth=4 tabstop=4
 
+import base64
 import datetime
 import json
+import math
 import socket
+import struct
 import time
 import zlib
 
@@ -37,9 +40,352 @@ def send_json(fd, json_object):
     fd.write(s)
     fd.flush()
 
+def send_statistics(channel, statistics, index = None):
+    # In session mode statistics are pushed as soon as each trace ends, so they
+    # are preceded by the index of the task they belong to
+    if index is not None:
+        channel.write_line(index)
+    channel.send_json(statistics)
+
+def group_tasks(tasks):
+    """Splits the indexes of the tasks of a session in groups of consecutive tasks
+    with the same 'group', to be run concurrently. Tasks with no group are alone"""
+    groups = []
+    previous = None
+    for index, task in enumerate(tasks):
+        group = task.get('group')
+        if group is not None and group == previous:
+            groups[-1].append(index)
+        else:
+            groups.append([index])
+        previous = group
+    return groups
+
+def decode_series(series):
+    """Decodes a per-packet series encoded with DeltaCodec.java: zig-zag mapped deltas
+    written as little endian base 128 varints, in base64"""
+    if series.get('codec') != Config.DELTA_CODEC:
+        raise ValueError('unknown series codec %s' % series.get('codec'))
+    values = []
+    previous = 0
+    zigzag = 0
+    shift = 0
+    for b in bytearray(base64.b64decode(series['data'])):
+        zigzag |= (b & 0x7f) << shift
+        if b & 0x80:
+            shift += 7
+            continue
+        previous += (zigzag >> 1) ^ -(zigzag & 1)
+        values.append(previous)
+        zigzag = 0
+        shift = 0
+    if len(values) != series['count']:
+        raise ValueError('corrupted series (%s values instead of %s)'
+                         % (len(values), series['count']))
+    return values
+
+def decode_measurement_info(info):
+    # Encoded series are replaced by plain lists, so that the results do not
+    # depend on the encoding negotiated with the client
+    for key, value in info.items():
+        if isinstance(value, dict) and 'codec' in value:
+            info[key] = decode_series(value)
+    # Likewise, timestamp series are always saved in milliseconds (with a fractional
+    # part for the clients timestamping in microseconds). The clock unit still
+    # applies to the timestamps in the packet footers
+    clock = info.get('clock')
+    if isinstance(clock, dict) and clock.get('unit') == 'us':
+        for key in Config.TIMESTAMP_SERIES:
+            if key in info:
+                info[key] = [t / 1000.0 for t in info[key]]
+        for key in Config.DURATION_SERIES:
+            if key in info:
+                info[key] = [d / 1000.0 if d >= 0 else -1 for d in info[key]]
+    return info
+
+class LatencySketch:
+    """Log-linear delay histogram serialized by LatencySketch.java, used to merge
+    the delay distributions of many measurements without their raw samples"""
+
+    def __init__(self, sub_buckets = Config.LATENCY_SKETCH_SUB_BUCKETS):
+        self.sub_buckets = sub_buckets
+        self.buckets = {}   # signed bucket index -> count
+        self.count = 0
+        self.total = 0
+        self.min = None
+        self.max = None
+
+    @staticmethod
+    def from_json(o):
+        if o.get('sketch') != Config.LATENCY_SKETCH:
+            raise ValueError('unknown latency sketch %s' % o.get('sketch'))
+        sketch = LatencySketch(o['sub_buckets'])
+        indexes = decode_series(o['indexes'])
+        counts = decode_series(o['counts'])
+        sketch.buckets = dict(zip(indexes, counts))
+        sketch.count = o['count']
+        sketch.total = o['sum']
+        if sketch.count > 0:
+            sketch.min = o['min']
+            sketch.max = o['max']
+        return sketch
+
+    def merge(self, other):
+        if other.sub_buckets != self.sub_buckets:
+            raise ValueError('cannot merge sketches with different precisions')
+        for index, count in other.buckets.items():
+            self.buckets[index] = self.buckets.get(index, 0) + count
+        self.count += other.count
+        self.total += other.total
+        if other.count > 0:
+            self.min = other.min if self.min is None else min(self.min, other.min)
+            self.max = other.max if self.max is None else max(self.max, other.max)
+
+    def bucket_middle(self, index):
+        if index < 0:
+            return -self.bucket_middle(-index - 1)
+        if index < 2 * self.sub_buckets:
+            return index
+        shift = index // self.sub_buckets - 1
+        low = (index % self.sub_buckets + self.sub_buckets) << shift
+        return low + ((1 << shift) - 1) // 2
+
+    def mean(self):
+        return float(self.total) / self.count if self.count > 0 else 0.0
+
+    def quantile(self, q):
+        if self.count == 0:
+            return 0
+        rank = min(max(int(math.ceil(q * self.count)), 1), self.count)
+        seen = 0
+        for index in sorted(self.buckets):
+            seen += self.buckets[index]
+            if seen >= rank:
+                return min(max(self.bucket_middle(index), self.min), self.max)
+        return self.max
+
+def is_sync_probe(packet):
+    return packet.startswith(Config.CLOCK_SYNC_PROBE)
+
+def answer_sync_probe(connection, packet, address, recv_time):
+    """Answers a clock sync probe (see ClockSync.java) received at recv_time with the
+    receive and send times, in microseconds. Returns True if the packet is the one
+    ending the exchange. Without an address, the connection must be connected"""
+    if packet == Config.CLOCK_SYNC_DONE:
+        return True
+    if len(packet.split(' ')) != 3:
+        return False
+    reply = '%s %d %d' % (packet, int(recv_time * 1000000), int(time.time() * 1000000))
+    if address is None:
+        connection.send(reply)
+    else:
+        connection.sendto(reply, address)
+    return False
+
+def serve_sync_probes(connection, client_IP, timeout = Config.CLOCK_SYNC_TIMEOUT):
+    """Answers the clock sync probes sent by the client after a trace, until the
+    client is done or nothing is received for timeout seconds"""
+    connection.settimeout(timeout)
+    try:
+        while True:
+            packet, address = connection.recvfrom(Config.TRACE_MAX_PACKET_SIZE)
+            recv_time = time.time()
+            if address[0] != client_IP or not is_sync_probe(packet):
+                continue
+            if answer_sync_probe(connection, packet, address, recv_time):
+                return
+    except socket.timeout:
+        pass
+
+class ClockModel:
+    """Offset of the server clock from the client one, as estimated by ClockSync.java:
+    server time = client time + offset_us + skew_ppm * (client time - ref_us) / 10^6"""
+
+    def __init__(self, offset_us, skew_ppm, ref_us):
+        self.offset_us = offset_us
+        self.skew_ppm = skew_ppm
+        self.ref_us = ref_us
+
+    @staticmethod
+    def from_json(o):
+        if not o or o.get('offset_us') is None:
+            return None
+        return ClockModel(o['offset_us'], o['skew_ppm'], o['ref_us'])
+
+    def offset_ms(self, client_ms):
+        return (self.offset_us + self.skew_ppm * (client_ms * 1000 - self.ref_us) / 1e6) / 1000
+
+    def uplink(self, client_send_ms, server_recv_ms):
+        return server_recv_ms - client_send_ms - self.offset_ms(client_send_ms)
+
+    def downlink(self, server_send_ms, client_recv_ms):
+        return client_recv_ms + self.offset_ms(client_recv_ms) - server_send_ms
+
+def client_sent_one_way_delays(model, packets):
+    """One way delays of a trace sent by the client and echoed by the server, given
+    the (seq, server receive time, client send time, RTT) of the packets received by
+    the server, all in ms (None if unknown). Delays are in ms, -1 if unknown"""
+    delays = {'seq': [], 'uplink': [], 'downlink': []}
+    for seq, server_ms, client_send_ms, rtt in packets:
+        uplink = downlink = -1
+        if client_send_ms is not None:
+            uplink = model.uplink(client_send_ms, server_ms)
+            if rtt is not None and rtt >= 0:
+                downlink = model.downlink(server_ms, client_send_ms + rtt)
+        delays['seq'].append(seq)
+        delays['uplink'].append(uplink)
+        delays['downlink'].append(downlink)
+    return delays
+
+def server_sent_one_way_delays(model, sent_packets, replies, recv_seq, recv_timestamps):
+    """One way delays of a trace sent by the server and echoed by the client, for
+    each packet received by the client (see client_sent_one_way_delays())"""
+    reply_times = {}
+    for seq, recv_ts in replies:
+        reply_times.setdefault(seq, recv_ts)
+    delays = {'seq': [], 'uplink': [], 'downlink': []}
+    for seq, client_ms in zip(recv_seq, recv_timestamps):
+        uplink = downlink = -1
+        sent = sent_packets.get(seq)
+        if sent is not None:
+            downlink = model.downlink(1000 * sent[1], client_ms)
+        if seq in reply_times:
+            uplink = model.uplink(client_ms, 1000 * reply_times[seq])
+        delays['seq'].append(seq)
+        delays['uplink'].append(uplink)
+        delays['downlink'].append(downlink)
+    return delays
+
+class LineChannel:
+    """Legacy control protocol: text lines, and JSON documents preceded by their length"""
+
+    def __init__(self, fd):
+        self.fd = fd
+
+    def readline(self):
+        return self.fd.readline()
+
+    def write_line(self, line):
+        self.fd.write(str(line) + '\n')
+
+    def flush(self):
+        self.fd.flush()
+
+    def read_json(self, compressed = False):
+        if compressed:
+            return read_compressed_json(self.fd)
+        return read_json(self.fd)
+
+    def send_json(self, json_object):
+        send_json(self.fd, json_object)
+
+class FramedChannel:
+    """Binary framed control protocol: every message is preceded by an header made of
+    version, type, flags and payload length (see ControlChannel.java). Lines are sent
+    as text frames and JSON documents as JSON frames, gzip'd if FRAME_FLAG_GZIP is set.
+    Large payloads may be split in several frames, all but the last one having
+    FRAME_FLAG_MORE set"""
+
+    header = struct.Struct('!BBHI')
+
+    def __init__(self, fd):
+        self.fd = fd
+
+    def read_exactly(self, length):
+        data = self.fd.read(length)
+        if len(data) != length:
+            raise socket.error('connection closed by remote host')
+        return data
+
+    def read_frame_header(self, expected_type):
+        version, ftype, flags, length = FramedChannel.header.unpack(
+            self.read_exactly(FramedChannel.header.size))
+        if version != Config.FRAME_VERSION:
+            raise ValueError('unsupported control frame version %s' % version)
+        if ftype != expected_type:
+            raise ValueError('unexpected control frame type %s (expecting %s)'
+                             % (ftype, expected_type))
+        return flags, length
+
+    def read_frame(self, expected_type):
+        # Payloads split in several frames (FRAME_FLAG_MORE) are joined, and
+        # decompressed one chunk at a time
+        chunks = []
+        decompressor = None
+        while True:
+            flags, length = self.read_frame_header(expected_type)
+            chunk = self.read_exactly(length)
+            if flags & Config.FRAME_FLAG_GZIP and chunk:
+                if decompressor is None:
+                    decompressor = zlib.decompressobj(Config.ZLIB_MAGIC_NUMBER)
+                chunk = decompressor.decompress(chunk)
+            chunks.append(chunk)
+            if not flags & Config.FRAME_FLAG_MORE:
+                break
+        if decompressor is not None:
+            chunks.append(decompressor.flush())
+        return ''.join(chunks)
+
+    def write_frame(self, ftype, flags, payload):
+        self.fd.write(FramedChannel.header.pack(Config.FRAME_VERSION, ftype, flags,
+                                                len(payload)))
+        self.fd.write(payload)
+
+    def readline(self):
+        return self.read_frame(Config.FRAME_TYPE_TEXT)
+
+    def write_line(self, line):
+        self.write_frame(Config.FRAME_TYPE_TEXT, 0, str(line))
+
+    def flush(self):
+        self.fd.flush()
+
+    def read_json(self, compressed = False):
+        # Frames tell by themselves whether they are compressed
+        payload = self.read_frame(Config.FRAME_TYPE_JSON)
+        if not payload:
+            return None
+        return json.loads(payload)
+
+    def send_json(self, json_object):
+        self.write_frame(Config.FRAME_TYPE_JSON, 0, json.dumps(json_object))
+        self.fd.flush()
+
 def busywait_sleep(sec):
     start = datetime.datetime.now()
     curr = datetime.datetime.now()
     while (curr - start).total_seconds() < sec:
         time.sleep(0.001)
         curr = datetime.datetime.now()
+
+def sleep_until(deadline):
+    remaining = deadline - time.time()
+    while remaining > 0:
+        time.sleep(min(0.001, remaining))
+        remaining = deadline - time.time()
+
+class DrainEstimator:
+    """Estimates how long to wait for the last replies once a trace has been sent,
+    as max(TRACE_DRAIN_RTT_FACTOR * 99th percentile RTT, TRACE_DRAIN_MIN_TIMEOUT),
+    capped to TRACE_RECV_TIMEOUT (which is also used until enough RTTs are known)"""
+
+    min_samples = 10
+
+    def __init__(self, factor = Config.TRACE_DRAIN_RTT_FACTOR,
+                 floor = Config.TRACE_DRAIN_MIN_TIMEOUT,
+                 max_drain = Config.TRACE_RECV_TIMEOUT):
+        self.factor = factor
+        self.floor = floor
+        self.max_drain = max_drain
+        self.samples = []
+
+    def add(self, delay):
+        if delay >= 0:
+            self.samples.append(delay)
+
+    def drain(self):
+        if len(self.samples) < DrainEstimator.min_samples:
+            return self.max_drain
+        samples = sorted(self.samples)
+        p99 = samples[int(math.ceil(0.99 * len(samples))) - 1]
+        return min(max(self.factor * p99, self.floor), self.max_drain)
@@ -16,3 +16,50 @@ def get_timestamp(rtp_packet):
     if len(rtp_packet) < SIZE:
         return None
     return struct.unpack('>I', rtp_packet[4:8])[0]
+
+class SequenceTracker:
+    """Extends 16 bit sequence numbers with the count of their wraparounds, as in
+    RFC 3550 (appendix A.1) and exactly as RTPHeader.SequenceTracker in the client
+    does, so that both ends of a trace agree on the extended sequence numbers"""
+
+    SEQ_MOD = 1 << 16
+    MAX_DROPOUT = 3000
+    MAX_MISORDER = 100
+
+    def __init__(self, extended = None):
+        """Without an extended sequence number to start from, the first sequence
+        number seen starts cycle 0"""
+        self.started = extended is not None
+        self.max_seq = extended & 0xffff if self.started else 0
+        self.cycles = extended >> 16 if self.started else 0
+        self.bad_seq = None
+
+    def extend(self, seq):
+        seq &= 0xffff
+        if not self.started:
+            self.started = True
+            self.max_seq = seq
+            return seq
+        udelta = (seq - self.max_seq) & 0xffff
+        if udelta < SequenceTracker.MAX_DROPOUT:
+            # in order, with a permissible gap
+            self.bad_seq = None
+            return self.advance(seq)
+        elif udelta <= SequenceTracker.SEQ_MOD - SequenceTracker.MAX_MISORDER:
+            # a big jump: follow it only if the previous packet made the same one
+            if seq == self.bad_seq:
+                self.bad_seq = None
+                return self.advance(seq)
+            self.bad_seq = (seq + 1) & 0xffff
+            cycles = self.cycles + 1 if seq < self.max_seq else self.cycles
+            return cycles * SequenceTracker.SEQ_MOD + seq
+        else:
+            # duplicate or reordered packet
+            cycles = self.cycles - 1 if seq > self.max_seq else self.cycles
+            return cycles * SequenceTracker.SEQ_MOD + seq
+
+    def advance(self, seq):
+        if seq < self.max_seq:
+            self.cycles += 1
+        self.max_seq = seq
+        return self.cycles * SequenceTracker.SEQ_MOD + seq
@@ -25,19 +25,23 @@ class RTPTraceReceiver:
     recv_timeout = Config.TRACE_RECV_TIMEOUT
     end_message = Config.TRACE_END_MESSAGE
 
-    def __init__(self, control_connection_fd,
+    def __init__(self, control,
                  server_address, client_address, output_dir):
 
         self.logger = logging.getLogger('RTPTraceReceiver (%s:%s)' % client_address)
         self.logger.debug('init')
 
-        self.control_connection_fd = control_connection_fd
+        self.control = control
 
         self.listen_IP = server_address[0]
 
         self.client_IP = client_address[0]
         self.output_dir = output_dir
 
+        self.trace_connection = None
+        self.tcpdump = None
+        self.clock_sync = False   # whether the client sends clock sync probes
+
     def receive_packets(self, trace_connection):
 
         # Set a large receive buffer size so as to be sure we don't lose any packet
@@ -78,6 +82,11 @@ class RTPTraceReceiver:
                 src_port = address[1]
                 #self.logger.debug('packet received size=%s' % len(packet)) 
 
+                # Clock sync probes precede the trace
+                if MUtils.is_sync_probe(packet):
+                    MUtils.answer_sync_probe(trace_connection, packet, address, timestamp)
+                    continue
+
                 # Send back a reply
                 if first:
                     trace_connection.settimeout(RTPTraceReceiver.recv_timeout)
@@ -119,77 +128,135 @@ class RTPTraceReceiver:
 
         return stats
 
-    def run(self):
-
-        timestamp = time.time()
-        trace_filepath = os.path.join(self.output_dir, '%s.trace' % int(timestamp))
-        pcap_filepath = os.path.join(self.output_dir, '%s.pcap' % int(timestamp))
-
+    def read_trace_info(self):
         try:
-            trace_id = self.control_connection_fd.readline()
-            trace_size = self.control_connection_fd.readline()
+            trace_id = self.control.readline()
+            trace_size = self.control.readline()
             if not (trace_id and trace_size):
                 raise socket.error('connection closed by remote host')
-            trace_id = int(trace_id)
-            trace_size = int(trace_size)
-            self.logger.info('trace id=%s size=%s file=%s pcap=%s' %
-                             (trace_id, trace_size, trace_filepath, pcap_filepath))
+            return {'trace_id': int(trace_id), 'trace_size': int(trace_size)}
         except (ValueError, socket.error, socket.timeout) as e:
             self.logger.error('trace setup failed (%s)' % e)
             raise
 
-        trace_connection = None
-        try:
-            self.logger.info('opening trace connection')
-            trace_connection = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
-            trace_connection.bind((self.listen_IP, 0)) # use a random port
-            listen_address = trace_connection.getsockname()
-
-            # Create the tcpdump object first and sleep one second,
-            # so we can sure all the packets get sniffed
-            self.logger.info('opening capture file %s' % pcap_filepath)
-            tcpdump = NetUtils.Tcpdump(Config.CAPTURE_INTERFACE, self.client_IP,
-                                       listen_address[1], pcap_filepath)
-            tcpdump.make_thread().start()
-            time.sleep(1)
+    def setup(self, trace_info, tag = None):
+        """Opens the trace connection and starts capturing its packets, returning the
+        address the client has to send the trace to. The tag is appended to the names
+        of the result files, so that the traces of a session never overwrite each other"""
+
+        self.timestamp = time.time()
+        basename = str(int(self.timestamp)) if tag is None else '%s_%s' % (int(self.timestamp),
+                                                                           tag)
+        self.trace_filepath = os.path.join(self.output_dir, '%s.trace' % basename)
+        self.pcap_filepath = os.path.join(self.output_dir, '%s.pcap' % basename)
 
-            self.control_connection_fd.write(str(listen_address[0]) + '\n')
-            self.control_connection_fd.write(str(listen_address[1]) + '\n')
-            self.control_connection_fd.flush()
+        try:
+            self.trace_id = int(trace_info['trace_id'])
+            self.trace_size = int(trace_info['trace_size'])
+            self.logger.info('trace id=%s size=%s file=%s pcap=%s' %
+                             (self.trace_id, self.trace_size, self.trace_filepath,
+                              self.pcap_filepath))
+        except (KeyError, TypeError, ValueError) as e:
+            self.logger.error('trace setup failed (%s)' % e)
+            raise ValueError('invalid trace info')
+
+        self.logger.info('opening trace connection')
+        self.trace_connection = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+        self.trace_connection.bind((self.listen_IP, 0)) # use a random port
+        self.listen_address = self.trace_connection.getsockname()
+
+        # Create the tcpdump object before the client is told where to send the trace
+        self.logger.info('opening capture file %s' % self.pcap_filepath)
+        self.tcpdump = NetUtils.Tcpdump(Config.CAPTURE_INTERFACE, self.client_IP,
+                                        self.listen_address[1], self.pcap_filepath)
+        self.tcpdump.make_thread().start()
+
+        return {'IP': self.listen_address[0], 'port': self.listen_address[1]}
+
+    def run_trace(self):
+        # Receive the trace packets
+        self.client_port, self.trace = self.receive_packets(self.trace_connection)
+        if self.clock_sync:
+            self.logger.debug('answering clock sync probes')
+            MUtils.serve_sync_probes(self.trace_connection, self.client_IP)
+        self.close()
+
+    def finish(self, index = None):
+        self.logger.info('reading measurement info from client')
+        client_side_info = MUtils.decode_measurement_info(
+            self.control.read_json(compressed = True))
+
+        self.logger.info('sending trace statistics')
+        trace_statistics = self.compute_trace_statistics(self.trace, self.trace_size)
+        MUtils.send_statistics(self.control, trace_statistics, index)
+
+        result = {}
+        result['timestamp'] = self.timestamp 
+        result['trace_id'] = self.trace_id
+        result['trace_size'] = self.trace_size
+        result['client_side_info'] = client_side_info
+        result['statistics'] = trace_statistics
+        result['server_address'] = {'IP': self.listen_address[0], 'port': self.listen_address[1]}
+        result['client_address'] = {'IP': self.client_IP, 'port': self.client_port}
+        result['trace_filename'] = os.path.basename(self.trace_filepath)
+        result['pcap_filename'] = os.path.basename(self.pcap_filepath)
+        clock_model = MUtils.ClockModel.from_json(client_side_info.get('clock_sync'))
+        if clock_model:
+            result['one_way_delays'] = MUtils.client_sent_one_way_delays(
+                clock_model, self.get_client_sent_packets(client_side_info))
+
+        self.save_received_trace(self.trace, result, self.trace_filepath)
+
+        return result
+
+    def close(self):
+        if self.trace_connection:
+            self.trace_connection.close()
+            self.trace_connection = None
+        if self.tcpdump:
+            self.tcpdump.kill()
+            self.tcpdump = None
 
-            # Receive the trace packets
-            client_port, trace = self.receive_packets(trace_connection)
-            trace_connection.close()
-            tcpdump.kill()
+    def run(self):
 
-            self.logger.info('reading measurement info from client')
-            client_side_info = MUtils.read_compressed_json(self.control_connection_fd)
+        trace_info = self.read_trace_info()
 
-            self.logger.info('sending trace statistics')
-            trace_statistics = self.compute_trace_statistics(trace, trace_size)
-            MUtils.send_json(self.control_connection_fd, trace_statistics)
+        try:
+            listen_address = self.setup(trace_info)
 
-            result = {}
-            result['timestamp'] = timestamp 
-            result['trace_id'] = trace_id
-            result['trace_size'] = trace_size
-            result['client_side_info'] = client_side_info
-            result['statistics'] = trace_statistics
-            result['server_address'] = {'IP': listen_address[0], 'port': listen_address[1]}
-            result['client_address'] = {'IP': self.client_IP, 'port': client_port}
-            result['trace_filename'] = os.path.basename(trace_filepath)
-            result['pcap_filename'] = os.path.basename(pcap_filepath)
+            # Sleep one second after starting tcpdump, so we can sure all the packets get sniffed
+            time.sleep(1)
 
-            self.save_received_trace(trace, result, trace_filepath)
+            self.control.write_line(listen_address['IP'])
+            self.control.write_line(listen_address['port'])
+            self.control.flush()
 
-            return result
+            self.run_trace()
+            return self.finish()
         except (ValueError, socket.error, socket.timeout, zlib.error) as e:
             self.logger.error('read trace failed (%s)' % e)
             raise
         finally:
             # To be sure that the trace connection
             # gets closed even in case of errors
-            if trace_connection: trace_connection.close()
+            self.close()
+
+    def get_client_sent_packets(self, client_side_info):
+        """Returns the (seq, receive time, client send time, RTT) of the packets
+        received, in ms. Client side series are indexed by seq - first_seq"""
+        sent_timestamps = client_side_info.get('sent_timestamps', [])
+        rtts = client_side_info.get('trace_rtts', [])
+        first_seq = client_side_info.get('first_seq', 0)
+        # first_seq is extended, and so are the sequence numbers used as indexes
+        tracker = RTPHeader.SequenceTracker(first_seq)
+        packets = []
+        for timestamp, _, header in self.trace:
+            seq = tracker.extend(RTPHeader.get_sequence_number(header))
+            i = seq - first_seq
+            sent = sent_timestamps[i] if 0 <= i < len(sent_timestamps) else 0
+            rtt = rtts[i] if 0 <= i < len(rtts) else None
+            packets.append((seq, 1000 * timestamp, sent if sent > 0 else None, rtt))
+        return packets
 
     def save_received_trace(self, trace, result, trace_filepath):
         try:
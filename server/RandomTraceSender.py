@@ -16,6 +16,7 @@ import Config
 import MeasurementUtils as MUtils
 import NetUtils
 import PacketFooter
+import SyntheticTrace
 import Trace
 
 class RandomTraceSender:
@@ -26,51 +27,93 @@ class RandomTraceSender:
     end_message = Config.TRACE_END_MESSAGE
     punch_packet = Config.HOLE_PUNCHING_PACKET
     punch_packet_timeout = Config.HOLE_PUNCHING_TIMEOUT
+    drain_poll_timeout = Config.TRACE_DRAIN_POLL_TIMEOUT
 
-    def __init__(self, control_connection_fd,
+    def __init__(self, control,
                  server_address, client_address, output_dir):
 
         self.logger = logging.getLogger('RandomTraceSender (%s:%s)' % client_address)
         self.logger.debug('init')
 
-        self.control_connection_fd = control_connection_fd
+        self.control = control
 
         self.listen_IP = server_address[0]
         self.client_IP = client_address[0]
 
         self.output_dir = output_dir
 
-    def recv_replies(self, trace_connection, replies):
+        self.trace_connection = None
+        self.tcpdump = None
+        self.clock_sync = False   # whether the client sends clock sync probes
+        self.synthetic = None     # SyntheticTrace of the client, if any
+        self.sync_done = False
+        self.drain_timeout = Config.TRACE_RECV_TIMEOUT
+
+    def recv_replies(self, trace_connection, replies, sent_packets, send_done):
 
         self.logger.debug('receive replies thread started')
         trace_connection.settimeout(RandomTraceSender.wait_timeout)
         self.logger.debug('trace connection replies wait timeout set to %s seconds'
                           % RandomTraceSender.wait_timeout)
-        
+
+        # Once the trace has been sent, stop waiting as soon as all the replies have
+        # been received, or when no reply has been received for a while (estimated
+        # from the RTTs seen so far), instead of always waiting for recv_timeout
+        drain = MUtils.DrainEstimator()
+        last_reply = None
+        # Sequence numbers of the packets replied to: duplicates and packets that
+        # are not replies to the trace do not count
+        replied = set()
         try:
             first = True
             while True:
-                packet = trace_connection.recv(RandomTraceSender.max_packet_size)
+                try:
+                    packet = trace_connection.recv(RandomTraceSender.max_packet_size)
+                except socket.timeout:
+                    if first:
+                        raise
+                    packet = None
                 timestamp = time.time()
-                #self.logger.debug('reply received size=%s' % len(packet)) 
+                if packet != None and MUtils.is_sync_probe(packet):
+                    # The client may start the final clock sync before we are done
+                    if MUtils.answer_sync_probe(trace_connection, packet, None, timestamp):
+                        self.sync_done = True
+                    packet = None
                 if packet == RandomTraceSender.punch_packet:
                     self.logger.info('duplicate hole punching packet received, ignoring it')
                     continue
-                if first:
-                    trace_connection.settimeout(RandomTraceSender.recv_timeout)
-                    self.logger.info('first packet received')
-                    self.logger.debug('trace connection recv timeout set to %s seconds'
-                                      % RandomTraceSender.recv_timeout)
-                    first = False
-                footer = PacketFooter.load(packet)
-                if footer != None:
-                    replies.append((footer.seq, timestamp))
-                else:
-                    self.logger.warning('BUG: received a packet with no footer!')
-            return replies 
+                if packet != None:
+                    if first:
+                        trace_connection.settimeout(RandomTraceSender.drain_poll_timeout)
+                        self.logger.info('first packet received')
+                        self.logger.debug('trace connection recv timeout set to %s seconds'
+                                          % RandomTraceSender.drain_poll_timeout)
+                        first = False
+                    footer = PacketFooter.load(packet)
+                    if footer != None:
+                        seq = footer.seq
+                        replies.append((seq, timestamp))
+                    else:
+                        self.logger.warning('BUG: received a packet with no footer!')
+                        continue
+                    sent = sent_packets.get(seq)
+                    if sent != None and seq not in replied:
+                        replied.add(seq)
+                        last_reply = timestamp
+                        drain.add(timestamp - sent[1])
+                if send_done.is_set():
+                    if len(replied) >= len(sent_packets):
+                        self.logger.info('all the replies have been received')
+                        break
+                    idle = timestamp - max(self.send_end_time, last_reply)
+                    if idle >= drain.drain():
+                        self.logger.info('no replies for %.3f seconds, '
+                                         'assuming measurement has finished' % idle)
+                        break
         except socket.timeout:
             self.logger.info('trace connection timeout, assuming measurement has finished')
 
+        self.drain_timeout = drain.drain()
         self.logger.debug('receiver thread has finished')
 
     def receive_punch_packet(self, trace_connection):
@@ -84,6 +127,10 @@ class RandomTraceSender:
                 if address[0] != self.client_IP:
                     self.logger.warning('ignoring packet from unexpected address %s:%s' % address)
                     continue
+                if MUtils.is_sync_probe(packet):
+                    # Clock sync probes precede the hole punching
+                    MUtils.answer_sync_probe(trace_connection, packet, address, time.time())
+                    continue
                 if packet == RandomTraceSender.punch_packet:
                     self.logger.debug('hole punching packet received')
                     return address
@@ -93,34 +140,40 @@ class RandomTraceSender:
                 self.logger.error('hole punching packet not received on time, giving up')
                 raise socket.timeout('hole punching packet not received')
 
-    def send_packets(self, trace_connection, trace, sent_packets):
+    def send_packets(self, trace_connection, trace, sent_packets, send_done):
 
         self.logger.debug('send trace thread started')
 
-        _, trace_packets = trace
-
-        seq = -1
-        prev_packet_time = None
-        for packet in trace_packets:
+        try:
+            _, trace_packets = trace
 
-            seq += 1
+            seq = -1
+            start_time = None
+            first_packet_time = None
+            for packet in trace_packets:
 
-            packet_delta = 0
-            if prev_packet_time != None:
-                packet_delta = packet['timestamp'] - prev_packet_time
-            prev_packet_time = packet['timestamp']
+                seq += 1
 
-            if packet_delta > 0:
-                MUtils.busywait_sleep(packet_delta)
+                # Each packet is due at its offset from the start of the trace, so
+                # that sleeping errors do not pile up along the trace
+                if start_time == None:
+                    start_time = time.time()
+                    first_packet_time = packet['timestamp']
+                else:
+                    MUtils.sleep_until(start_time + packet['timestamp'] - first_packet_time)
 
-            timestamp = time.time()
-            payload = PacketFooter.write(packet['payload'], seq, int(timestamp * 1000))
-            sent_packets[seq] = seq, timestamp, payload
+                timestamp = time.time()
+                payload = PacketFooter.write(packet['payload'], seq, int(timestamp * 1000))
+                sent_packets[seq] = seq, timestamp, payload
 
-            trace_connection.sendall(payload)
-            #self.logger.debug('packet sent size=%s' % len(packet['payload'])) 
+                trace_connection.sendall(payload)
+                #self.logger.debug('packet sent size=%s' % len(packet['payload'])) 
 
-        trace_connection.sendall(RandomTraceSender.end_message)
+            trace_connection.sendall(RandomTraceSender.end_message)
+        finally:
+            # Let the receiver thread know it can start draining the last replies
+            self.send_end_time = time.time()
+            send_done.set()
 
         self.logger.debug('sender thread has finished')
 
@@ -170,117 +223,176 @@ class RandomTraceSender:
     def get_sent_timestamps(self, sent_packets):
         return [1000 * ts for _, ts, _ in sorted(sent_packets.values(), key = lambda (x, y, z): x)]
 
-    def run(self):
-
-        timestamp = time.time()
-        trace_filepath = os.path.join(self.output_dir, '%s.trace' % int(timestamp))
-        pcap_filepath = os.path.join(self.output_dir, '%s.pcap' % int(timestamp))
-
+    def read_trace_info(self):
         try:
-            trace_name = self.control_connection_fd.readline()
-            trace_id = self.control_connection_fd.readline()
+            trace_name = self.control.readline()
+            trace_id = self.control.readline()
             if not (trace_name and trace_id):
                 raise socket.error('connection closed by remote host')
-            trace_id = int(trace_id)
-            trace_name = trace_name.strip()
-            trace = self.load_trace(trace_name, trace_id)
+            return {'trace_name': trace_name.strip(), 'trace_id': int(trace_id)}
+        except (ValueError, socket.error, socket.timeout) as e:
+            self.logger.error('trace setup failed (%s)' % e)
+            raise
+
+    def setup(self, trace_info, tag = None):
+        """Loads the trace, opens the trace connection and starts capturing its packets,
+        returning the address the client has to punch. The tag is appended to the names
+        of the result files, so that the traces of a session never overwrite each other"""
+
+        self.timestamp = time.time()
+        basename = str(int(self.timestamp)) if tag is None else '%s_%s' % (int(self.timestamp),
+                                                                           tag)
+        self.trace_filepath = os.path.join(self.output_dir, '%s.trace' % basename)
+        self.pcap_filepath = os.path.join(self.output_dir, '%s.pcap' % basename)
+
+        try:
+            self.trace_name = trace_info['trace_name'].strip()
+            self.trace_id = int(trace_info['trace_id'])
+            if trace_info.get('synthetic'):
+                # Generated from the seed of the client, with no trace file
+                self.synthetic = SyntheticTrace.SyntheticTrace.from_json(trace_info['synthetic'])
+                self.trace = self.synthetic.as_trace(self.trace_id)
+            else:
+                self.trace = self.load_trace(self.trace_name, self.trace_id)
             self.logger.info('trace name=%s trace id=%s pcap=%s' %
-                             (trace_name, trace_id, pcap_filepath))
-        except (ValueError, IOError, socket.error, socket.timeout) as e:
+                             (self.trace_name, self.trace_id, self.pcap_filepath))
+        except (KeyError, TypeError, AttributeError) as e:
+            self.logger.error('trace setup failed (%s)' % e)
+            raise ValueError('invalid trace info')
+        except (ValueError, IOError) as e:
             self.logger.error('trace setup failed (%s)' % e)
             raise
 
-        trace_connection = None
+        self.logger.info('opening trace connection')
+        self.trace_connection = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+        self.trace_connection.bind((self.listen_IP, 0)) # use a random port
+        self.listen_address = self.trace_connection.getsockname()
+
+        # Create the tcpdump object before the client is told where to punch
+        self.logger.info('opening capture file %s' % self.pcap_filepath)
+        self.tcpdump = NetUtils.Tcpdump(Config.CAPTURE_INTERFACE, self.client_IP,
+                                        self.listen_address[1], self.pcap_filepath)
+        self.tcpdump.make_thread().start()
+
+        return {'IP': self.listen_address[0], 'port': self.listen_address[1]}
+
+    def run_trace(self):
+
+        # Receive a first packet to punch the client-side NAT and set
+        # the trace destination according to the packet's source address
+        self.client_side_address = self.receive_punch_packet(self.trace_connection)
+        self.trace_connection.connect(self.client_side_address)
+
+        # Start one thread that receives the replies 
+        replies = []
+        self.sent_packets = {}
+        send_done = threading.Event()
+        receiver = threading.Thread(target = self.recv_replies,
+                                    args = (self.trace_connection, replies,
+                                            self.sent_packets, send_done))
+        receiver.start()
+
+        # Start another thread that sends the trace packets
+        sender = threading.Thread(target = self.send_packets,
+                                  args = (self.trace_connection, self.trace,
+                                          self.sent_packets, send_done))
+        sender.start()
+
+        # Wait for the threads to complete and close the connection
+        receiver.join()
+        sender.join()
+        self.replies = replies
+        if self.clock_sync and not self.sync_done:
+            self.logger.debug('answering clock sync probes')
+            MUtils.serve_sync_probes(self.trace_connection, self.client_IP)
+        self.logger.info('closing trace connection')
+        self.close()
+
+        self.logger.debug('saving server side measurement info')
+        self.server_side_info = {}
+        self.server_side_info['trace_rtts'] = self.get_trace_RTTs(replies, self.sent_packets)
+        self.server_side_info['sent_timestamps'] = self.get_sent_timestamps(self.sent_packets)
+        self.server_side_info['drain_millis'] = int(self.drain_timeout * 1000)
+
+    def finish(self, index = None):
+
+        self.logger.info('reading measurement info from client')
+        client_side_info = MUtils.decode_measurement_info(
+            self.control.read_json(compressed = True))
+        try:
+            if len(client_side_info['recv_timestamps']) != len(client_side_info['recv_seq']):
+                raise ValueError('len(recv_timestamps) != len(recv_seq)')
+        except (KeyError, ValueError) as e:
+            self.logger.error('BUG client side info is not valid (%s)' % e)
+            raise ValueError('invalid client side info')
+
+        # Use the data sent from the client to reconstruct the trace it received
+        recv_packets = self.rebuild_received_trace_packets(client_side_info, self.sent_packets)
+
+        self.logger.info('sending trace statistics')
+        trace_statistics = self.compute_trace_statistics(self.sent_packets,
+                                                         client_side_info['recv_seq'],
+                                                         recv_packets)
+        MUtils.send_statistics(self.control, trace_statistics, index)
+
+        result = {}
+        result['timestamp'] = self.timestamp 
+        result['trace_id'] = self.trace_id
+        result['client_side_info'] = client_side_info
+        result['server_side_info'] = self.server_side_info
+        result['statistics'] = trace_statistics
+        result['server_address'] = {'IP': self.listen_address[0],
+                                    'port': self.listen_address[1]}
+        result['client_address'] = {'IP': self.client_side_address[0],
+                                    'port': self.client_side_address[1]}
+        result['trace_filename'] = os.path.basename(self.trace_filepath)
+        result['pcap_filename'] = os.path.basename(self.pcap_filepath)
+        if self.synthetic:
+            result['synthetic'] = {'seed': self.synthetic.seed,
+                                   'profile': self.synthetic.profile.name}
+        clock_model = MUtils.ClockModel.from_json(client_side_info.get('clock_sync'))
+        if clock_model:
+            result['one_way_delays'] = MUtils.server_sent_one_way_delays(
+                clock_model, self.sent_packets, self.replies,
+                client_side_info['recv_seq'], client_side_info['recv_timestamps'])
+
+        # Save the resulting trace
+        self.save_sent_trace(recv_packets, result, self.trace_filepath)
+
+        return result
+
+    def close(self):
+        if self.trace_connection:
+            self.trace_connection.close()
+            self.trace_connection = None
+        if self.tcpdump:
+            self.tcpdump.kill()
+            self.tcpdump = None
+
+    def run(self):
+
+        trace_info = self.read_trace_info()
+
         try:
-            self.logger.info('opening trace connection')
-            trace_connection = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
-            trace_connection.bind((self.listen_IP, 0)) # use a random port
-            listen_address = trace_connection.getsockname()
-
-            # Create the tcpdump object first and sleep one second,
-            # so we can sure all the packets get sniffed
-            self.logger.info('opening capture file %s' % pcap_filepath)
-            tcpdump = NetUtils.Tcpdump(Config.CAPTURE_INTERFACE, self.client_IP,
-                                       listen_address[1], pcap_filepath)
-            tcpdump.make_thread().start()
+            listen_address = self.setup(trace_info)
+
+            # Sleep one second after starting tcpdump, so we can sure all the packets get sniffed
             time.sleep(1)
 
             # Tell the client what port should be used for the measurement
-            self.control_connection_fd.write(str(listen_address[0]) + '\n')
-            self.control_connection_fd.write(str(listen_address[1]) + '\n')
-            self.control_connection_fd.flush()
-
-            # Receive a first packet to punch the client-side NAT and set
-            # the trace destination according to the packet's source address
-            client_side_address = self.receive_punch_packet(trace_connection)
-            trace_connection.connect(client_side_address)
-
-            # Start one thread that receives the replies 
-            replies = []
-            receiver = threading.Thread(target = self.recv_replies,
-                                        args = (trace_connection, replies))
-            receiver.start()
-
-            # Start another thread that sends the trace packets
-            sent_packets = {}
-            sender = threading.Thread(target = self.send_packets,
-                                      args = (trace_connection, trace, sent_packets))
-            sender.start()
-
-            # Wait for the threads to complete and close the connection
-            receiver.join()
-            sender.join()
-            self.logger.info('closing trace connection')
-            trace_connection.close()
-            tcpdump.kill()
-
-            self.logger.debug('saving server side measurement info')
-            server_side_info = {}
-            server_side_info['trace_rtts'] = self.get_trace_RTTs(replies, sent_packets)
-            server_side_info['sent_timestamps'] = self.get_sent_timestamps(sent_packets)
-
-            self.logger.info('reading measurement info from client')
-            client_side_info = MUtils.read_compressed_json(self.control_connection_fd)
-            try:
-                if len(client_side_info['recv_timestamps']) != len(client_side_info['recv_seq']):
-                    raise ValueError('len(recv_timestamps) != len(recv_seq)')
-            except (KeyError, ValueError) as e:
-                self.logger.error('BUG client side info is not valid (%s)' % e)
-                raise ValueError('invalid client side info')
-
-            # Use the data sent from the client to reconstruct the trace it received
-            recv_packets = self.rebuild_received_trace_packets(client_side_info, sent_packets)
-
-            self.logger.info('sending trace statistics')
-            trace_statistics = self.compute_trace_statistics(sent_packets,
-                                                             client_side_info['recv_seq'],
-                                                             recv_packets)
-            MUtils.send_json(self.control_connection_fd, trace_statistics)
-
-            result = {}
-            result['timestamp'] = timestamp 
-            result['trace_id'] = trace_id
-            result['client_side_info'] = client_side_info
-            result['server_side_info'] = server_side_info
-            result['statistics'] = trace_statistics
-            result['server_address'] = {'IP': listen_address[0],
-                                        'port': listen_address[1]}
-            result['client_address'] = {'IP': client_side_address[0],
-                                        'port': client_side_address[1]}
-            result['trace_filename'] = os.path.basename(trace_filepath)
-            result['pcap_filename'] = os.path.basename(pcap_filepath)
-
-            # Save the resulting trace
-            self.save_sent_trace(recv_packets, result, trace_filepath)
-
-            return result
+            self.control.write_line(listen_address['IP'])
+            self.control.write_line(listen_address['port'])
+            self.control.flush()
+
+            self.run_trace()
+            return self.finish()
         except (ValueError, socket.error, socket.timeout, zlib.error) as e:
             self.logger.error('read trace failed (%s)' % e)
             raise
         finally:
             # To be sure that the trace connection
             # gets closed even in case of errors
-            if trace_connection: trace_connection.close()
+            self.close()
 
     def rebuild_received_trace_packets(self, client_side_info, sent_packets):
         self.logger.debug('rebuilding the trace received by the client')
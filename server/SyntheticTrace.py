@@ -0,0 +1,182 @@
+#!/usr/bin/env python
+
+# vim: columns=100
+# vim: expandtab softtabstop=4 shiftwidth=4 tabstop=4
+
+"""Random traces generated from a seed and a codec profile (see SyntheticTrace.java).
+
+The generator mirrors the client one draw for draw, through Javarandom, so that the
+same seed and profile give the same packet timestamps, sizes and payloads"""
+
+import Config
+import Javarandom
+import PacketFooter
+
+PACKET_SEED_STRIDE = 0x9E3779B97F4A7C15
+
+def packet_random(seed, index):
+    """Returns the generator of the packet with the given index of the trace with the
+    given seed (also used for the seeded payloads of version 4 trace files)"""
+    # Only the 48 low bits of the seed are used, which Python computes as Java does
+    return Javarandom.Random(seed ^ (index * PACKET_SEED_STRIDE))
+
+class Profile:
+    def __init__(self, name, bitrate, ptime_millis, vbr = 0.0, talk_millis = 0,
+                 silence_millis = 0, sid_interval = 0, sid_size = 0):
+        self.name = name
+        self.bitrate = int(bitrate)
+        self.ptime_millis = int(ptime_millis)
+        self.vbr = float(vbr)
+        self.talk_millis = int(talk_millis)
+        self.silence_millis = int(silence_millis)
+        self.sid_interval = int(sid_interval)
+        self.sid_size = int(sid_size)
+
+        # Profiles come from the clients: refuse the ones that would make us generate
+        # too many packets, or that the generator cannot handle
+        if not Config.SYNTHETIC_MIN_PTIME_MILLIS <= self.ptime_millis <= \
+           Config.SYNTHETIC_MAX_DURATION * 1000:
+            raise ValueError('invalid ptime %s' % self.ptime_millis)
+        if not 0.0 <= self.vbr <= 1.0:
+            raise ValueError('invalid vbr %s' % self.vbr)
+        if self.talk_millis < 0 or self.silence_millis < 0 or self.sid_interval < 0:
+            raise ValueError('invalid VAD model %s/%s/%s' %
+                             (self.talk_millis, self.silence_millis, self.sid_interval))
+        size, spread = self.talk_packet_size(), self.talk_packet_spread()
+        if size - spread < PacketFooter.FOOTER_SIZE or \
+           size + spread > Config.TRACE_MAX_PACKET_SIZE:
+            raise ValueError('invalid talk packet size %s+-%s' % (size, spread))
+        if self.sid_interval > 0 and not \
+           PacketFooter.FOOTER_SIZE <= self.sid_size <= Config.TRACE_MAX_PACKET_SIZE:
+            raise ValueError('invalid SID packet size %s' % self.sid_size)
+
+    @staticmethod
+    def from_json(o):
+        try:
+            return Profile(o.get('name'), o['bitrate'], o['ptime_millis'], o.get('vbr', 0.0),
+                           o.get('talk_millis', 0), o.get('silence_millis', 0),
+                           o.get('sid_interval', 0), o.get('sid_size', 0))
+        except (KeyError, TypeError, AttributeError) as e:
+            raise ValueError('invalid synthetic trace profile (%s)' % e)
+
+    def has_VAD(self):
+        return self.talk_millis > 0 and self.silence_millis > 0
+
+    def talk_packet_size(self):
+        return (self.bitrate * self.ptime_millis + 4000) // 8000
+
+    def talk_packet_spread(self):
+        return int(self.talk_packet_size() * self.vbr)
+
+class SyntheticTrace:
+    """Only the start slot (in ptimes) and first packet index of each talk spurt (even
+    positions) and silence (odd positions) are stored"""
+
+    def __init__(self, seed, profile, duration_millis):
+        if not 0 <= duration_millis <= Config.SYNTHETIC_MAX_DURATION * 1000:
+            raise ValueError('invalid synthetic trace duration %s ms' % duration_millis)
+        self.seed = seed
+        self.profile = profile
+        self.duration_millis = duration_millis
+
+        slots = (duration_millis + profile.ptime_millis - 1) // profile.ptime_millis
+        random = Javarandom.Random(seed)
+        if profile.has_VAD():
+            talk_end = float(profile.ptime_millis) / profile.talk_millis
+            silence_end = float(profile.ptime_millis) / profile.silence_millis
+        self.period_slots = [0]
+        self.period_indexes = [0]
+        size = 0
+        period_start = 0
+        for slot in xrange(slots):
+            talk = len(self.period_slots) % 2 == 1
+            if slot > 0 and profile.has_VAD() and \
+               random.nextDouble() < (talk_end if talk else silence_end):
+                talk = not talk
+                period_start = slot
+                self.period_slots.append(slot)
+                self.period_indexes.append(size)
+            if talk or (profile.sid_interval > 0 and
+                        (slot - period_start) % profile.sid_interval == 0):
+                size += 1
+        self.size = size
+
+    @staticmethod
+    def from_json(o):
+        try:
+            return SyntheticTrace(int(o['seed']), Profile.from_json(o['profile']),
+                                  int(o['duration_millis']))
+        except (KeyError, TypeError, AttributeError) as e:
+            raise ValueError('invalid synthetic trace (%s)' % e)
+
+    def period(self, index):
+        # The last period starting at or before the packet: silences with no packet
+        # start at the same index as the next talk spurt, which is the one we want
+        low, high = 0, len(self.period_indexes) - 1
+        while low < high:
+            middle = (low + high + 1) // 2
+            if self.period_indexes[middle] <= index:
+                low = middle
+            else:
+                high = middle - 1
+        return low
+
+    def slot(self, index):
+        period = self.period(index)
+        offset = index - self.period_indexes[period]
+        if period % 2 == 0:
+            return self.period_slots[period] + offset
+        return self.period_slots[period] + offset * self.profile.sid_interval
+
+    def timestamp(self, index):
+        return self.slot(index) * self.profile.ptime_millis / 1000.0
+
+    def packet_random(self, index):
+        return packet_random(self.seed, index)
+
+    def packet_size(self, index, random = None):
+        if self.period(index) % 2 == 1:
+            return self.profile.sid_size
+        size = self.profile.talk_packet_size()
+        spread = self.profile.talk_packet_spread()
+        if spread > 0:
+            random = random or self.packet_random(index)
+            size += random.nextInt(2 * spread + 1) - spread
+        return size
+
+    def payload(self, index):
+        random = self.packet_random(index)
+        payload = [0] * self.packet_size(index, random)
+        random.nextBytes(payload)
+        return str(bytearray(b & 0xff for b in payload))
+
+    def is_intact(self, index, payload):
+        """Whether a packet received with the given index carries the payload generated
+        for it (the footer aside)"""
+        if not 0 <= index < self.size:
+            return False
+        expected = self.payload(index)
+        return len(payload) == len(expected) and \
+               payload[:-PacketFooter.FOOTER_SIZE] == expected[:-PacketFooter.FOOTER_SIZE]
+
+    def packets(self):
+        """Generates the packets of the trace, as Trace.read_trace() returns them"""
+        for index in xrange(self.size):
+            payload = self.payload(index)
+            yield {'timestamp': self.timestamp(index), 'length': len(payload),
+                   'payload': payload}
+
+    def as_trace(self, trace_id):
+        """Returns the trace in the format of Trace.read_trace(), with the packets
+        generated while they are iterated"""
+        return {'version': 0, 'id': trace_id, 'dport': 0}, SyntheticPackets(self)
+
+class SyntheticPackets:
+    def __init__(self, trace):
+        self.trace = trace
+
+    def __len__(self):
+        return self.trace.size
+
+    def __iter__(self):
+        return self.trace.packets()
@@ -8,6 +8,22 @@ import struct
 
 import PacketFooter
 import RTPHeader
+import SyntheticTrace
+
+# Version 4 trace files (see TraceV4.java)
+V4_FLAG_RTP = 1
+V4_PAYLOAD_RAW = 0
+V4_PAYLOAD_DICTIONARY = 1
+V4_PAYLOAD_SEED = 2
+V4_TIMESTAMPS = 1
+V4_LENGTHS = 2
+V4_RTP_SEQUENCE_NUMBERS = 3
+V4_RTP_TIMESTAMPS = 4
+V4_RTP_FIELDS = 5
+V4_BODIES = 6
+V4_DICTIONARY = 7
+V4_BODY_INDEXES = 8
+V4_SEED = 9
 
 def write_v1_trace((preamble, packets), output_stream, randomize = False):
 
@@ -180,6 +196,121 @@ def read_rtp_trace(input_stream):
     except struct.error as e:
         raise ValueError('unexpected end of trace (%s)' % e)
 
+def decode_varints(data, offset, count):
+    """Decodes count values written by DeltaCodec.java (zig-zag mapped deltas, as
+    little endian base 128 varints) starting at offset. Returns the values and the
+    offset right after the last one"""
+    values = []
+    previous = 0
+    while len(values) < count:
+        zigzag = 0
+        shift = 0
+        while True:
+            if offset >= len(data):
+                raise ValueError('unexpected end of trace column')
+            b = data[offset]
+            offset += 1
+            zigzag |= (b & 0x7f) << shift
+            shift += 7
+            if not b & 0x80:
+                break
+        previous += (zigzag >> 1) ^ -(zigzag & 1)
+        values.append(previous)
+    return values, offset
+
+def read_v4_trace(input_stream):
+    try:
+        data = bytearray(input_stream.read())
+
+        # read the header first, then the column index
+        version, trace_id, dport, flags, mode, size, column_count = \
+            struct.unpack_from('>iiHBBii', data)
+        if version != 4:
+            raise ValueError('invalid trace version (got %s, was expecting 4)' % version)
+        preamble = {}
+        preamble['version'] = version
+        preamble['id'] = trace_id
+        preamble['dport'] = dport
+
+        columns = {}
+        for c in xrange(column_count):
+            column_id, offset, length = struct.unpack_from('>iii', data, 20 + c * 12)
+            if offset < 0 or length < 0 or offset + length > len(data):
+                raise ValueError('invalid trace column index')
+            columns[column_id] = data[offset:offset + length]
+
+        def column(column_id):
+            if column_id not in columns:
+                raise ValueError('missing trace column %s' % column_id)
+            return columns[column_id]
+
+        timestamps = decode_varints(column(V4_TIMESTAMPS), 0, size)[0]
+        lengths = decode_varints(column(V4_LENGTHS), 0, size)[0]
+        header_size = RTPHeader.SIZE if flags & V4_FLAG_RTP else 0
+        for i, length in enumerate(lengths, 1):
+            if not header_size <= length <= 0xffff:
+                raise ValueError('invalid length of packet n.%s' % i)
+
+        # the RTP headers, split in three columns
+        headers = [''] * size
+        if flags & V4_FLAG_RTP:
+            seqs = decode_varints(column(V4_RTP_SEQUENCE_NUMBERS), 0, size)[0]
+            rtp_timestamps = decode_varints(column(V4_RTP_TIMESTAMPS), 0, size)[0]
+            fields = decode_varints(column(V4_RTP_FIELDS), 0, size)[0]
+            headers = [struct.pack('>HHII', (f >> 32) & 0xffff, seq & 0xffff,
+                                   ts & 0xffffffff, f & 0xffffffff)
+                       for seq, ts, f in zip(seqs, rtp_timestamps, fields)]
+
+        # then the bodies
+        body_lengths = [length - header_size for length in lengths]
+        if mode == V4_PAYLOAD_RAW:
+            bodies = column(V4_BODIES)
+            offset = 0
+            payloads = []
+            for length in body_lengths:
+                payloads.append(str(bodies[offset:offset + length]))
+                offset += length
+            if offset > len(bodies):
+                raise ValueError('unexpected end of trace column')
+        elif mode == V4_PAYLOAD_DICTIONARY:
+            dictionary = column(V4_DICTIONARY)
+            entry_count = struct.unpack_from('>i', dictionary)[0]
+            entry_lengths, offset = decode_varints(dictionary, 4, entry_count)
+            entries = []
+            for length in entry_lengths:
+                entries.append(str(dictionary[offset:offset + length]))
+                offset += length
+            if offset > len(dictionary):
+                raise ValueError('truncated payload dictionary')
+            indexes = decode_varints(column(V4_BODY_INDEXES), 0, size)[0]
+            payloads = []
+            for i, (index, length) in enumerate(zip(indexes, body_lengths)):
+                if not 0 <= index < entry_count or len(entries[index]) != length:
+                    raise ValueError('invalid payload of packet n.%s' % (i + 1))
+                payloads.append(entries[index])
+        elif mode == V4_PAYLOAD_SEED:
+            seed = struct.unpack_from('>q', column(V4_SEED))[0]
+            payloads = []
+            for i, length in enumerate(body_lengths):
+                body = [0] * length
+                SyntheticTrace.packet_random(seed, i).nextBytes(body)
+                payloads.append(str(bytearray(b & 0xff for b in body)))
+        else:
+            raise ValueError('unknown payload mode %s' % mode)
+
+        packets = []
+        for timestamp, length, header, body in zip(timestamps, lengths, headers, payloads):
+            packet = {}
+            packet['timestamp'] = timestamp / 1e6
+            packet['length'] = length
+            packet['payload'] = header + body
+            packets.append(packet)
+
+        return preamble, packets
+
+    except struct.error as e:
+        raise ValueError('unexpected end of trace (%s)' % e)
+
 def read_trace(input_stream):
 
     # read the trace version and call the appropriate read function
@@ -194,6 +325,8 @@ def read_trace(input_stream):
             return read_v2_trace(input_stream)
         elif version == 3:
             return read_rtp_trace(input_stream)
+        elif version == 4:
+            return read_v4_trace(input_stream)
         else:
             raise ValueError('unknown trace version %d' % version)
     except struct.error as e:
@@ -75,58 +75,62 @@ class MeasurementHandler(SocketServer.BaseRequestHandler):
 
             self.client_info = self.read_client_info()
             self.logger.info('client id is %s' % self.client_info['device_info']['unique_id'])
+            features = self.send_features()
+            self.features = features
+
+            # From now on, use binary frames if the client supports them
+            if 'frames' in features:
+                self.control = MUtils.FramedChannel(self.fd)
+            else:
+                self.control = MUtils.LineChannel(self.fd)
 
             self.measurement_dir = self.create_measurement_dir(self.server.output_dir,
                                                                self.client_info,
                                                                self.start_time)
             self.logger.info('measurement results directory is %s' % self.measurement_dir)
 
-            self.logger.info('running traceroute')
+            # Clients supporting late traceroutes send theirs after the traces, so
+            # ours can run in the background as well
             self.traceroute = NetUtils.TraceRoute(self.client_address[0])
-            self.traceroute.run()
-
-            self.logger.info('receiving traceroute from client')
-            self.remote_traceroute = MUtils.read_compressed_json(self.fd)
+            late_traceroute = 'late_traceroute' in features
+            if late_traceroute:
+                self.logger.info('running traceroute in the background')
+                traceroute_thread = threading.Thread(target = self.traceroute.run)
+                traceroute_thread.start()
+            else:
+                self.logger.info('running traceroute')
+                self.traceroute.run()
+
+                self.logger.info('receiving traceroute from client')
+                self.remote_traceroute = self.control.read_json(compressed = True)
 
             self.logger.info('receiving traces')
             self.received_traces = []
             while True:
-                mtype = self.fd.readline().strip()
+                mtype = self.control.readline().strip()
                 if not mtype:
                     raise socket.error('connection closed by remote host')
                 elif mtype == Config.END_MEASUREMENTS:
                     self.logger.info('END_MEASUREMENTS received')
                     break
-                elif mtype == Config.RTP_SEND_MEASUREMENT_TYPE:
-                    handler = RTPTraceReceiver.RTPTraceReceiver(self.fd,
-                                                                 self.request.getsockname(),
-                                                                 self.client_address,
-                                                                 self.measurement_dir)
-                elif mtype == Config.RTP_RECV_MEASUREMENT_TYPE:
-                    handler = RTPTraceSender.RTPTraceSender(self.fd,
-                                                            self.request.getsockname(),
-                                                            self.client_address,
-                                                            self.measurement_dir)
-                elif mtype == Config.RANDOM_SEND_MEASUREMENT_TYPE:
-                    handler = RandomTraceReceiver.RandomTraceReceiver(self.fd,
-                                                                      self.request.getsockname(),
-                                                                      self.client_address,
-                                                                      self.measurement_dir)
-                elif mtype == Config.RANDOM_RECV_MEASUREMENT_TYPE:
-                    handler = RandomTraceSender.RandomTraceSender(self.fd,
-                                                                  self.request.getsockname(),
-                                                                  self.client_address,
-                                                                  self.measurement_dir)
-                else:
-                    raise ValueError('BUG: received unknown measurement type %s' % mtype)
+                elif mtype == Config.SESSION_MESSAGE:
+                    self.logger.info('starting measurement session')
+                    self.run_session()
+                    continue
 
+                handler = self.create_handler(mtype)
                 self.logger.info('starting measurement type %s' % mtype)
                 measurement_info = handler.run()
                 measurement_info['measurement_type'] = mtype
                 self.received_traces.append(measurement_info)
 
+            if late_traceroute:
+                self.logger.info('receiving traceroute from client')
+                self.remote_traceroute = self.control.read_json(compressed = True)
+                traceroute_thread.join()
+
             self.logger.info('receiving network statuses')
-            self.network_statuses = MUtils.read_compressed_json(self.fd)
+            self.network_statuses = self.control.read_json(compressed = True)
 
             self.logger.info('saving results')
             self.save_results()
@@ -140,6 +144,102 @@ class MeasurementHandler(SocketServer.BaseRequestHandler):
         finally:
             self.server.measurement_has_finished()
 
+    def send_features(self):
+        # Old clients do not expect any answer, new ones give up waiting after a while
+        client_features = self.client_info.get('features', [])
+        features = [f for f in Config.SERVER_FEATURES if f in client_features]
+        if client_features:
+            self.logger.info('supported features: %s' % features)
+            self.fd.write(' '.join([Config.FEATURES_MESSAGE] + features) + '\n')
+            self.fd.flush()
+        return features
+
+    def create_handler(self, mtype):
+        if mtype == Config.RTP_SEND_MEASUREMENT_TYPE:
+            handler_class = RTPTraceReceiver.RTPTraceReceiver
+        elif mtype == Config.RTP_RECV_MEASUREMENT_TYPE:
+            handler_class = RTPTraceSender.RTPTraceSender
+        elif mtype == Config.RANDOM_SEND_MEASUREMENT_TYPE:
+            handler_class = RandomTraceReceiver.RandomTraceReceiver
+        elif mtype == Config.RANDOM_RECV_MEASUREMENT_TYPE:
+            handler_class = RandomTraceSender.RandomTraceSender
+        else:
+            raise ValueError('BUG: received unknown measurement type %s' % mtype)
+        handler = handler_class(self.control, self.request.getsockname(), self.client_address,
+                                self.measurement_dir)
+        handler.clock_sync = 'clock_sync' in self.features
+        return handler
+
+    def run_session(self):
+        """Pipelined session: all the trace endpoints are allocated at once, then the
+        traces are run back to back and the statistics of each one are pushed to the
+        client, tagged with its index, as soon as its measurement info is received.
+        Consecutive tasks with the same group are run concurrently (see run_flows)"""
+
+        tasks = self.control.read_json()
+        handlers = []
+        try:
+            endpoints = []
+            for index, task in enumerate(tasks):
+                handler = self.create_handler(task['type'])
+                handlers.append((task['type'], handler))
+                endpoints.append(handler.setup(task, tag = index))
+
+            # Sleep one second after starting tcpdump, so we can sure all the packets get sniffed
+            time.sleep(1)
+            self.control.send_json(endpoints)
+
+            for group in MUtils.group_tasks(tasks):
+                if len(group) == 1:
+                    index = group[0]
+                    mtype, handler = handlers[index]
+                    self.logger.info('starting session measurement %s type %s' % (index, mtype))
+                    handler.run_trace()
+                    self.finish_session_task(handlers, index)
+                else:
+                    self.run_flows(handlers, group)
+        finally:
+            for _, handler in handlers:
+                handler.close()
+
+    def run_flows(self, handlers, group):
+        """Runs the traces of a group of tasks at the same time, one thread each. The
+        client sends the measurement info of each flow as soon as it ends, preceded
+        by the index of its task"""
+
+        errors = []
+        def run_trace(handler):
+            try:
+                handler.run_trace()
+            except Exception as e:
+                self.logger.error('flow failed: %s' % e)
+                errors.append(e)
+
+        threads = []
+        for index in group:
+            mtype, handler = handlers[index]
+            self.logger.info('starting session flow %s type %s' % (index, mtype))
+            thread = threading.Thread(target = run_trace, args = (handler,))
+            thread.start()
+            threads.append(thread)
+        for thread in threads:
+            thread.join()
+        if errors:
+            raise errors[0]
+
+        for _ in group:
+            index = int(self.control.readline())
+            if index not in group:
+                raise ValueError('unexpected flow %s' % index)
+            self.finish_session_task(handlers, index)
+
+    def finish_session_task(self, handlers, index):
+        mtype, handler = handlers[index]
+        measurement_info = handler.finish(index)
+        measurement_info['measurement_type'] = mtype
+        measurement_info['session_index'] = index
+        self.received_traces.append(measurement_info)
+
     def finish(self):
         self.logger.info('closing connection')
         self.fd.close()